@@ -17,16 +17,31 @@
  */
 package org.xenei.bloom.multidimensional;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.apache.commons.collections4.bloomfilter.hasher.StaticHasher;
+import org.xenei.bloom.multidimensional.query.BitmapAlgebra;
+import org.xenei.bloom.multidimensional.query.Plan;
+import org.xenei.bloom.multidimensional.query.Query;
 
 /**
  * A container that implements multidimensional Bloom filter storage.
@@ -72,6 +87,27 @@ public interface Container<E> {
      */
     void put(Hasher hasher, E value);
 
+    /**
+     * Puts an object into the container that expires after a time.
+     * <p>
+     * Once the time to live has passed the object is no longer returned and it is
+     * removed by the next sweep of expired objects.
+     * </p>
+     *
+     * @param hasher a Hasher that generates hash values for the value.
+     * @param value  the value to store.
+     * @param ttl the time to live.
+     * @param unit the unit of the time to live.
+     */
+    void put(Hasher hasher, E value, long ttl, TimeUnit unit);
+
+    /**
+     * Removes the objects whose time to live has passed.
+     *
+     * @return the number of objects removed.
+     */
+    int expire();
+
     /**
      * Removes an object into the container. Only stored values that have a Bloom
      * filter exact match (bit by bit comparison) with the Bloom filter created by
@@ -82,6 +118,28 @@ public interface Container<E> {
      */
     void remove(Hasher hasher, E value);
 
+    /**
+     * Puts a batch of objects into the container.
+     * <p>
+     * The entries are grouped by Bloom filter so that the gate, index and storage
+     * are updated once for each distinct filter rather than once for each object.
+     * </p>
+     *
+     * @param entries the Hashers and the values to store with them.
+     */
+    void putAll(Collection<? extends Map.Entry<Hasher, E>> entries);
+
+    /**
+     * Removes a batch of objects from the container.
+     * <p>
+     * As with {@code remove(Hasher, E)} only stored values that have a Bloom filter
+     * exact match with the Bloom filter created by the hasher will be removed.
+     * </p>
+     *
+     * @param entries the Hashers and the values to remove.
+     */
+    void removeAll(Collection<? extends Map.Entry<Hasher, E>> entries);
+
     /**
      * Searches the container for matching objects.
      *
@@ -92,6 +150,87 @@ public interface Container<E> {
      */
     Iterator<E> search(Hasher hasher);
 
+    /**
+     * Searches the container for objects that satisfy a query.
+     * <p>
+     * The query is compiled and evaluated with bitmap operations inside the index
+     * so combinations of hashers do not require several searches.
+     * </p>
+     *
+     * @param query the query to satisfy.
+     * @return an iterator of stored objects whose filters satisfy the query.
+     */
+    Iterator<E> search(Query query);
+
+    /**
+     * Searches the container for the matching objects of several hashers at once.
+     * <p>
+     * The index is scanned once for all the hashers rather than once per hasher.
+     * </p>
+     *
+     * @param hashers the Hashers that generate hash values to create the Bloom
+     *               filters to locate the values with.
+     * @return a list of iterators of stored objects, in the same order as the hashers.
+     */
+    List<Iterator<E>> searchAll(List<Hasher> hashers);
+
+    /**
+     * Searches the container for matching objects and returns one page of them.
+     * <p>
+     * Only as much of the index as is needed to fill the page is searched.  The token
+     * from the returned page resumes the search where this page ended.  Tokens are only
+     * guaranteed to be accurate while the container is not modified.
+     * </p>
+     *
+     * @param hasher the Hasher that generates hash values to create the Bloom
+     *               filter to locate the values with.
+     * @param token  the token from the previous page or {@code null} to start with the first page.
+     * @param limit  the maximum number of objects on the page.
+     * @return the page of stored objects that match the Bloom filter created by the hasher.
+     * @throws IllegalArgumentException if the limit is less than 1 or the token is invalid.
+     */
+    Page<E> search(Hasher hasher, String token, int limit);
+
+    /**
+     * Creates a stream of matching objects.
+     * <p>
+     * The index is searched as the stream is consumed so short-circuiting operations
+     * such as {@code limit()} or {@code findFirst()} stop the search early.  The stream
+     * may be made parallel.
+     * </p>
+     *
+     * @param hasher the Hasher that generates hash values to create the Bloom
+     *               filter to locate the values with.
+     * @return a stream of stored objects that match the Bloom filter created by the hasher.
+     */
+    Stream<E> stream(Hasher hasher);
+
+    /**
+     * Counts the filters in the container that match the hasher.
+     * <p>
+     * Only the index is consulted, stored objects are not retrieved. Since more than
+     * one object may be stored with a single Bloom filter the result is the number of
+     * matching filters, not the number of matching objects.
+     * </p>
+     *
+     * @param hasher the Hasher that generates hash values to create the Bloom
+     *               filter to locate the filters with.
+     * @return the number of filters that match the Bloom filter created by the hasher.
+     */
+    int count(Hasher hasher);
+
+    /**
+     * Determines if any object in the container matches the hasher.
+     * <p>
+     * Only the index is consulted, stored objects are not retrieved.
+     * </p>
+     *
+     * @param hasher the Hasher that generates hash values to create the Bloom
+     *               filter to locate the filters with.
+     * @return true if at least one filter matches the Bloom filter created by the hasher.
+     */
+    boolean exists(Hasher hasher);
+
     /**
      * A static method to create an empty stream.
      *
@@ -140,6 +279,28 @@ public interface Container<E> {
          */
         void remove(I index);
 
+        /**
+         * Puts several bloom filters into the index.
+         * <p>
+         * Implementations should override this if adding filters together is
+         * cheaper than adding them one at a time.
+         * </p>
+         *
+         * @param entries the map of Index values to the hashers to add.
+         */
+        default void putAll(Map<I, Hasher> entries) {
+            entries.forEach(this::put);
+        }
+
+        /**
+         * Removes the filters at several storage indexes from the index.
+         *
+         * @param indexes the indexes to remove.
+         */
+        default void removeAll(Collection<I> indexes) {
+            indexes.forEach(this::remove);
+        }
+
         /**
          * Searches for matching filters.
          *
@@ -148,6 +309,171 @@ public interface Container<E> {
          */
         Set<I> search(Hasher hasher);
 
+        /**
+         * Searches for the filters that satisfy a query plan.
+         * <p>
+         * Implementations should override this to evaluate the plan with bitmap
+         * operations over the index data.  The default implementation combines the
+         * results of {@code search(Hasher)} with set operations.
+         * </p>
+         *
+         * @param plan the compiled query.
+         * @return the set of storage indexes.
+         */
+        default Set<I> search(Plan plan) {
+            return plan.evaluate(new BitmapAlgebra<Set<I>>() {
+
+                @Override
+                public Set<I> all() {
+                    Set<I> result = getAll();
+                    result.remove(null);
+                    return result;
+                }
+
+                @Override
+                public Set<I> match(int[] bits) {
+                    return search(new StaticHasher(Arrays.stream(bits).boxed().iterator(), getShape()));
+                }
+
+                @Override
+                public Set<I> and(Set<I> left, Set<I> right) {
+                    Set<I> result = new HashSet<I>(left);
+                    result.retainAll(right);
+                    return result;
+                }
+
+                @Override
+                public Set<I> or(Set<I> left, Set<I> right) {
+                    Set<I> result = new HashSet<I>(left);
+                    result.addAll(right);
+                    return result;
+                }
+
+                @Override
+                public Set<I> andNot(Set<I> left, Set<I> right) {
+                    Set<I> result = new HashSet<I>(left);
+                    result.removeAll(right);
+                    return result;
+                }
+            });
+        }
+
+        /**
+         * Searches for the matching filters of several hashers at once.
+         * <p>
+         * Implementations should override this to evaluate all the hashers in a single
+         * pass over the index data.
+         * </p>
+         *
+         * @param hashers the hashers to search for.
+         * @return the sets of storage indexes in the same order as the hashers.
+         */
+        default List<Set<I>> searchAll(List<Hasher> hashers) {
+            return hashers.stream().map(this::search).collect(Collectors.toList());
+        }
+
+        /**
+         * Counts the matching filters.
+         * <p>
+         * Implementations should override this to compute the count without
+         * building the set of storage indexes.
+         * </p>
+         *
+         * @param hasher the hasher to search for.
+         * @return the number of matching filters.
+         */
+        default int count(Hasher hasher) {
+            return search(hasher).size();
+        }
+
+        /**
+         * Determines if there is at least one matching filter.
+         * <p>
+         * Implementations should override this to stop at the first match.
+         * </p>
+         *
+         * @param hasher the hasher to search for.
+         * @return true if there is a matching filter.
+         */
+        default boolean exists(Hasher hasher) {
+            return !search(hasher).isEmpty();
+        }
+
+        /**
+         * Creates a cursor over the matching filters.
+         * <p>
+         * Implementations should produce the matches incrementally so that a search
+         * that is abandoned early does not pay for the remainder of the index.  The default
+         * implementation performs the full search and skips the first {@code position} results.
+         * </p>
+         * <p>
+         * The meaning of the position is implementation specific. Positions are only
+         * guaranteed to be stable while the index is not modified.
+         * </p>
+         *
+         * @param hasher the hasher to search for.
+         * @param position the position to start at.  Either 0 or a value returned
+         * from {@code Cursor.getPosition()} of a cursor for the same hasher.
+         * @return a cursor over the storage indexes.
+         */
+        default Cursor<I> cursor(Hasher hasher, long position) {
+            Iterator<I> iter = search(hasher).iterator();
+            return new Cursor<I>() {
+                private long next = 0;
+                private long last = -1;
+
+                @Override
+                public boolean hasNext() {
+                    while (next < position && iter.hasNext()) {
+                        iter.next();
+                        next++;
+                    }
+                    return iter.hasNext();
+                }
+
+                @Override
+                public I next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next++;
+                    return iter.next();
+                }
+
+                @Override
+                public long getPosition() {
+                    return last;
+                }
+            };
+        }
+
+        /**
+         * Creates a Spliterator over the matching filters.
+         * <p>
+         * The Spliterator is suitable for use in parallel streams.  Implementations
+         * should override this if they can split the search more effectively.
+         * </p>
+         *
+         * @param hasher the hasher to search for.
+         * @return a Spliterator of storage indexes.
+         */
+        default Spliterator<I> spliterator(Hasher hasher) {
+            return Spliterators.spliteratorUnknownSize(cursor(hasher, 0),
+                    Spliterator.DISTINCT | Spliterator.NONNULL);
+        }
+
+        /**
+         * Writes a snapshot of the index.
+         * <p>
+         * Each implementation provides a static {@code load} method that creates an
+         * index from its snapshot.  The stream is not closed.
+         * </p>
+         *
+         * @param out the stream to write the snapshot to.
+         * @throws IOException on IO error.
+         */
+        void save(OutputStream out) throws IOException;
+
         /**
          * Gets all the indexes.
          * @return The set of storage indexes
@@ -166,6 +492,24 @@ public interface Container<E> {
          * @return the index value.
          */
         I create(Hasher hasher);
+
+        /**
+         * An iterator over storage indexes that tracks its position so that a search
+         * can be resumed.
+         *
+         * @param <I> The type of object used for the index.
+         */
+        public interface Cursor<I> extends Iterator<I> {
+            /**
+             * Gets the position of the last index returned by {@code next()}.
+             * Creating a cursor for the same hasher at this position will return this
+             * index first.
+             *
+             * @return the position of the last index returned or -1 if {@code next()} has
+             * not been called.
+             */
+            long getPosition();
+        }
     }
 
     /**
@@ -201,6 +545,67 @@ public interface Container<E> {
          */
         void put(I idx, E value);
 
+        /**
+         * Puts several objects in the collection at the storage index.
+         *
+         * @param idx    the storage index.
+         * @param values the values to put in the collection.
+         */
+        default void putAll(I idx, Collection<E> values) {
+            values.forEach(value -> put(idx, value));
+        }
+
+        /**
+         * Puts several objects in the collections at several storage indexes.
+         *
+         * @param values the values to put in the collection for each storage index.
+         */
+        default void putAll(Map<I, ? extends Collection<E>> values) {
+            values.forEach(this::putAll);
+        }
+
+        /**
+         * Puts several objects in the collections at several storage indexes
+         * asynchronously.
+         * <p>
+         * The default implementation puts the values before returning.
+         * </p>
+         *
+         * @param values the values to put in the collection for each storage index.
+         * @return a future that completes when the values have been put.
+         */
+        default CompletableFuture<Void> putAllAsync(Map<I, ? extends Collection<E>> values) {
+            putAll(values);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        /**
+         * Gets the collections of objects at several storage indexes.
+         *
+         * @param idxs the storage indexes.
+         * @return a map of storage index to the collection of objects, indexes without
+         *         objects may be absent.
+         */
+        default Map<I, Collection<E>> getAll(Collection<I> idxs) {
+            Map<I, Collection<E>> result = new HashMap<I, Collection<E>>();
+            idxs.forEach(idx -> result.put(idx, get(idx)));
+            return result;
+        }
+
+        /**
+         * Gets the collections of objects at several storage indexes asynchronously.
+         * <p>
+         * The default implementation gets the objects before returning.
+         * </p>
+         *
+         * @param idxs the storage indexes.
+         * @return a future map of storage index to the collection of objects, indexes
+         *         without objects may be absent.
+         */
+        default CompletableFuture<Map<I, Collection<E>>> getAllAsync(Collection<I> idxs) {
+            return CompletableFuture.completedFuture(getAll(idxs));
+        }
+
         /**
          * Removes a value from the collection at the storage index
          *
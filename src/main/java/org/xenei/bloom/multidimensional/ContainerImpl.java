@@ -17,19 +17,36 @@
  */
 package org.xenei.bloom.multidimensional;
 
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.collections4.iterators.LazyIteratorChain;
 import org.apache.commons.collections4.iterators.UnmodifiableIterator;
-import org.xenei.bloom.filter.EWAHBloomFilter;
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
 import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentity;
 import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionValidator;
 import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
-import org.apache.commons.collections4.bloomfilter.CountingBloomFilter;
+import org.xenei.bloom.multidimensional.gate.Gate;
+import org.xenei.bloom.multidimensional.gate.ScalableGate;
+import org.xenei.bloom.multidimensional.query.Query;
 
 /**
  * An iplementation of a Multidimensional Bloom filter.
@@ -38,6 +55,14 @@ import org.apache.commons.collections4.bloomfilter.CountingBloomFilter;
  * @param <I> The type of object used for the index.
  */
 public class ContainerImpl<E,I> implements Container<E> {
+    /**
+     * The separator between the index position and value offset in a page token.
+     */
+    private static final String TOKEN_SEPARATOR = ":";
+    /**
+     * The length in milliseconds of the expiry buckets swept together.
+     */
+    private static final long EXPIRY_TICK = 1000;
     /**
      * The storage for the objects.
      */
@@ -56,9 +81,39 @@ public class ContainerImpl<E,I> implements Container<E> {
     private int valueCount;
 
     /**
-     * The Bloom filter that gates the container.
+     * The gate in front of the index.
+     */
+    private Gate gate;
+
+    /**
+     * The cache of search results, may be null.
      */
-    private CountingBloomFilter gate;
+    private ResultCache<I> resultCache;
+
+    /**
+     * The write ahead log, may be null.
+     */
+    private WriteAheadLog<E> writeAheadLog;
+
+    /**
+     * The number of indexes to prefetch the values of, 0 for none.
+     */
+    private int prefetch;
+
+    /**
+     * The expiry times of the entries put with a time to live.
+     */
+    private ExpiryBuckets<E, I> expiries = new ExpiryBuckets<E, I>(EXPIRY_TICK);
+
+    /**
+     * The migration to a new shape, null if there is none.
+     */
+    private Reshape<E, I> reshape;
+
+    /**
+     * The clock for expiry times, in milliseconds.
+     */
+    LongSupplier clock = System::currentTimeMillis;
 
     /**
      * Constructs a Container.
@@ -74,10 +129,9 @@ public class ContainerImpl<E,I> implements Container<E> {
     /**
      * Constructs a Container.
      * <p>
-     * This Container implementation is sensitive to the estimated population.  The
-     * estimated population is used to create a Bloom filter that gates the index. If
-     * the estimated population is too small additional overhead is consumed when putting
-     * objects into the container as additional searches are performed.
+     * The estimated population is used to size the first layer of a ScalableGate that
+     * gates the index.  If the population exceeds the estimate the gate adds layers so
+     * that it continues to filter, at some additional cost for each gate check.
      * </p>
      * @param estimatedPopulation the estimated number of objects in the container.
      * @param shape the shape of the Bloom filter.
@@ -85,12 +139,210 @@ public class ContainerImpl<E,I> implements Container<E> {
      * @param index the index for the bloom filter.
      */
     public ContainerImpl(int estimatedPopulation, Shape shape, Storage<E,I> storage, Index<I> index) {
+        this( new ScalableGate( new Shape(shape.getHashFunctionIdentity(), estimatedPopulation, shape.getProbability())),
+                shape, storage, index );
+    }
+
+    /**
+     * Constructs a Container with a specific gate.
+     * @param gate the gate in front of the index.
+     * @param shape the shape of the Bloom filter.
+     * @param storage the storage for the objects
+     * @param index the index for the bloom filter.
+     * @throws IllegalArgumentException if the gate does not use the hash function of the shape.
+     */
+    public ContainerImpl(Gate gate, Shape shape, Storage<E,I> storage, Index<I> index) {
+        HashFunctionValidator.checkAreEqual( shape.getHashFunctionIdentity(), gate.getShape().getHashFunctionIdentity());
+        this.gate = gate;
         this.shape = shape;
         this.storage = storage;
         this.index = index;
         this.valueCount = 0;
-        Shape gateShape = new Shape(shape.getHashFunctionIdentity(), estimatedPopulation, shape.getProbability());
-        gate = new CountingBloomFilter(gateShape);
+    }
+
+    /**
+     * Sets the cache for search results.
+     * <p>
+     * When set the results of {@code search(Hasher)} are cached and invalidated as
+     * filters are put into and removed from the container.
+     * </p>
+     * @param resultCache the cache to use, or {@code null} to disable caching.
+     */
+    public void setResultCache(ResultCache<I> resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Gets the cache for search results.
+     * @return the cache for search results or {@code null} if caching is disabled.
+     */
+    public ResultCache<I> getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the number of indexes whose values are prefetched when iterating search results.
+     * <p>
+     * When greater than 0 the values of the matching indexes are fetched from the storage
+     * in batches with {@code Storage.getAllAsync()}, the next batch being fetched while
+     * the current batch is consumed.  When 0 the values of each index are fetched as
+     * the iterator reaches it.
+     * </p>
+     * @param prefetch the number of indexes to fetch at once, 0 to disable prefetching.
+     */
+    public void setPrefetch(int prefetch) {
+        if (prefetch < 0) {
+            throw new IllegalArgumentException("Prefetch may not be negative");
+        }
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Gets the number of indexes whose values are prefetched when iterating search results.
+     * @return the number of indexes fetched at once, 0 if prefetching is disabled.
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Recovers the container from a write ahead log and logs further changes to it.
+     * <p>
+     * The log holds the words of the filters rather than the hashed objects, and filter
+     * words can only be merged into a gate of the container shape.  A container with a
+     * gate of another shape, such as the default ScalableGate, must be recovered with
+     * {@code recover(writeAheadLog, hasherFunction)}.
+     * </p>
+     * @param writeAheadLog the log to recover from and write to.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalStateException if the gate does not have the container shape.
+     * @see #recover(WriteAheadLog, Function)
+     */
+    public void recover(WriteAheadLog<E> writeAheadLog) throws IOException {
+        recover(writeAheadLog, null);
+    }
+
+    /**
+     * Recovers the container from a write ahead log and logs further changes to it.
+     * <p>
+     * The snapshot and log are replayed into the container, which should be empty.
+     * From then on every put and remove is logged before the container is changed.
+     * </p>
+     * <p>
+     * Each value is replayed with the hasher created by the hasher function, so the
+     * gate is rebuilt whatever its shape.  Without a hasher function the logged filter
+     * words are replayed, which requires a gate of the container shape.
+     * </p>
+     * @param writeAheadLog the log to recover from and write to.
+     * @param hasherFunction creates the hasher that a value was put with, or {@code null}
+     * to replay the logged filter words.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalStateException if there is no hasher function and the gate does not
+     * have the container shape.
+     * @throws IllegalArgumentException if the hasher function does not produce the logged filters.
+     */
+    public void recover(WriteAheadLog<E> writeAheadLog, Function<E, Hasher> hasherFunction) throws IOException {
+        if (hasherFunction == null && !gate.getShape().equals(shape)) {
+            throw new IllegalStateException(
+                    "A gate of a different shape than the container requires a hasher function to recover");
+        }
+        this.writeAheadLog = null;
+        writeAheadLog.replay(this, hasherFunction);
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    /**
+     * Gets the write ahead log.
+     * @return the write ahead log or {@code null} if changes are not logged.
+     */
+    public WriteAheadLog<E> getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Starts migrating the container to a new Shape.
+     * <p>
+     * A container with the new shape is built from the storage, index and shape given
+     * here.  The storage indexes of the container are listed and then migrated a batch
+     * at a time, by rehashing their values with the hasher function, after each put and
+     * remove and whenever {@code migrate()} is called.  Puts and removes are written to
+     * both containers once their index has been migrated.  Until the migration completes
+     * the container is searched with the old shape; when it completes the container
+     * switches to the new shape, storage and index in a single step.
+     * </p>
+     * <p>
+     * The old storage is not cleared.  A container with a write ahead log can not be
+     * reshaped because the log holds filters of the old shape.
+     * </p>
+     * @param newShape the new shape.
+     * @param newStorage the storage for the new shape, which should be empty.
+     * @param newIndex the index for the new shape, which should be empty.
+     * @param hasherFunction creates the hasher that a value was put with.
+     * @param batchSize the number of storage indexes migrated after each change.
+     * @throws IllegalStateException if a migration is in progress or the container has a
+     * write ahead log.
+     */
+    public void reshape(Shape newShape, Storage<E,I> newStorage, Index<I> newIndex, Function<E, Hasher> hasherFunction,
+            int batchSize) {
+        if (reshape != null) {
+            throw new IllegalStateException("The container is already being reshaped");
+        }
+        if (writeAheadLog != null) {
+            throw new IllegalStateException("A container with a write ahead log can not be reshaped");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be greater than 0");
+        }
+        ContainerImpl<E,I> target = new ContainerImpl<E,I>(newShape.getNumberOfItems(), newShape, newStorage, newIndex);
+        reshape = new Reshape<E, I>(storage, target, hasherFunction, batchSize);
+    }
+
+    /**
+     * Determines if the container is being migrated to a new Shape.
+     * @return true if a migration is in progress.
+     */
+    public boolean isReshaping() {
+        return reshape != null;
+    }
+
+    /**
+     * Migrates storage indexes to the new Shape, switching to it once all are migrated.
+     * @param count the maximum number of storage indexes to migrate.
+     * @return true if there is no migration in progress after the call.
+     */
+    public boolean migrate(int count) {
+        if (reshape != null && reshape.step(count)) {
+            ContainerImpl<E,I> target = reshape.getTarget();
+            Function<E, Hasher> hasherFunction = reshape.getHasherFunction();
+            reshape = null;
+            shape = target.shape;
+            gate = target.gate;
+            index = target.index;
+            storage = target.storage;
+            valueCount = target.valueCount;
+            expiries = expiries.rekey(hasherFunction, index::create);
+            if (resultCache != null) {
+                resultCache.clear();
+            }
+        }
+        return reshape == null;
+    }
+
+    /**
+     * Migrates a batch of storage indexes if a migration is in progress.
+     */
+    private void advanceReshape() {
+        if (reshape != null) {
+            migrate(reshape.getBatchSize());
+        }
+    }
+
+    /**
+     * Gets the estimated false positive rate of the gate in front of the index.
+     * @return the estimated false positive rate of the gate.
+     */
+    public double getGateFalsePositiveRate() {
+        return gate.getFalsePositiveRate();
     }
 
     @Override
@@ -112,7 +364,7 @@ public class ContainerImpl<E,I> implements Container<E> {
     public Iterator<E> get(Hasher hasher) {
         verifyHasher(hasher);
 
-        if (gate.contains(hasher)) {
+        if (gate.mayContain(hasher)) {
             Optional<I> idx = index.get(hasher);
             if (idx.isPresent()) {
                 return getEntryIterator(idx.get());
@@ -123,66 +375,371 @@ public class ContainerImpl<E,I> implements Container<E> {
 
     @Override
     public void put(Hasher hasher, E value) {
+        putValue(hasher, value);
+        advanceReshape();
+    }
+
+    /**
+     * Puts a value without advancing a migration.
+     * @param hasher a Hasher that generates hash values for the value.
+     * @param value  the value to store.
+     * @return the storage index of the value.
+     */
+    private I putValue(Hasher hasher, E value) {
         verifyHasher(hasher);
+        sweep();
+        if (writeAheadLog != null) {
+            writeAheadLog.logPut(getFilterWords(hasher), value);
+            writeAheadLog.commit(1);
+        }
         gate.merge(hasher);
         I idx = index.create( hasher );
         index.put( idx, hasher );
+        if (resultCache != null) {
+            resultCache.invalidateSubsets( getFilterWords( hasher ) );
+        }
         storage.put( idx, value);
         valueCount++;
+        if (reshape != null) {
+            reshape.put(idx, value);
+        }
+        return idx;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Expiry times are kept in buckets of one second.  Expired objects are filtered from
+     * the results of get and search as they are read, but {@code count} and {@code exists}
+     * include filters whose objects have all expired until they are swept.  A sweep runs
+     * before a put or remove once a bucket has passed, and whenever {@code expire()} is
+     * called, and removes all the expired objects with {@code removeAll}.
+     * </p>
+     * <p>
+     * Expiry times are not written to the write ahead log, so recovered objects do not
+     * expire.
+     * </p>
+     */
+    @Override
+    public void put(Hasher hasher, E value, long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be greater than 0");
+        }
+        I idx = putValue(hasher, value);
+        expiries.add(idx, hasher, value, clock.getAsLong() + unit.toMillis(ttl));
+        advanceReshape();
+    }
+
+    @Override
+    public int expire() {
+        List<ExpiryBuckets.Expiring<E, I>> expired = expiries.expire(clock.getAsLong());
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        List<Map.Entry<Hasher, E>> entries = new ArrayList<Map.Entry<Hasher, E>>(expired.size());
+        expired.forEach(e -> entries.add(new AbstractMap.SimpleImmutableEntry<Hasher, E>(e.getHasher(), e.getValue())));
+        int before = valueCount;
+        removeEntries(entries, false);
+        return before - valueCount;
+    }
+
+    /**
+     * Sweeps the expired entries if the earliest expiry bucket has passed.
+     */
+    private void sweep() {
+        if (!expiries.isEmpty() && clock.getAsLong() >= expiries.nextSweep()) {
+            expire();
+        }
+    }
+
+    /**
+     * Removes the expired values of an index from its values.
+     * @param idx the storage index.
+     * @param values the values stored at the index.
+     * @return the unexpired values.
+     */
+    private Collection<E> live(I idx, Collection<E> values) {
+        return expiries.isEmpty() ? values : expiries.filter(idx, values, clock.getAsLong());
     }
 
     @Override
     public void remove(Hasher hasher, E value) {
         verifyHasher(hasher);
+        sweep();
+        if (writeAheadLog != null) {
+            writeAheadLog.logRemove(getFilterWords(hasher), value);
+            writeAheadLog.commit(1);
+        }
 
-        if (gate.contains(hasher)) {
+        if (gate.mayContain(hasher)) {
             Optional<I> idx = index.get(hasher);
             if (idx.isPresent()) {
 
                 boolean[] result = storage.remove(idx.get(), value);
                 if (result[Storage.REMOVED]) {
-                    BloomFilter gateFilter = new EWAHBloomFilter(hasher, gate.getShape());
                     valueCount--;
-                    gate.remove(gateFilter);
+                    gate.remove(hasher);
+                    if (!expiries.isEmpty()) {
+                        expiries.cancel(idx.get(), value);
+                    }
+                    if (reshape != null) {
+                        reshape.remove(idx.get(), value);
+                    }
                     if (result[Storage.EMPTY]) {
                         index.remove(idx.get());
+                        if (resultCache != null) {
+                            resultCache.invalidate(idx.get());
+                        }
                     }
                 }
             }
         }
+        advanceReshape();
+    }
+
+    @Override
+    public void putAll(Collection<? extends Map.Entry<Hasher, E>> entries) {
+        sweep();
+        Map<I, Hasher> filters = new LinkedHashMap<I, Hasher>();
+        Map<I, List<E>> values = new HashMap<I, List<E>>();
+        for (Map.Entry<Hasher, E> entry : entries) {
+            verifyHasher(entry.getKey());
+            I idx = index.create(entry.getKey());
+            filters.putIfAbsent(idx, entry.getKey());
+            values.computeIfAbsent(idx, k -> new ArrayList<E>()).add(entry.getValue());
+        }
+        if (writeAheadLog != null) {
+            entries.forEach(entry -> writeAheadLog.logPut(getFilterWords(entry.getKey()), entry.getValue()));
+            writeAheadLog.commit(entries.size());
+        }
+        // the gate counts values so each filter is merged once with its value count.
+        filters.forEach((idx, hasher) -> gate.merge(hasher, values.get(idx).size()));
+        index.putAll(filters);
+        if (resultCache != null) {
+            filters.values().forEach(hasher -> resultCache.invalidateSubsets(getFilterWords(hasher)));
+        }
+        storage.putAll(values);
+        valueCount += entries.size();
+        if (reshape != null) {
+            values.forEach((idx, lst) -> lst.forEach(value -> reshape.put(idx, value)));
+            advanceReshape();
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Map.Entry<Hasher, E>> entries) {
+        sweep();
+        removeEntries(entries, true);
+        advanceReshape();
+    }
+
+    /**
+     * Removes a batch of objects.
+     * @param entries the Hashers and the values to remove.
+     * @param cancel true to cancel the expiry of the removed values, false if they
+     * are being removed because they expired.
+     */
+    private void removeEntries(Collection<? extends Map.Entry<Hasher, E>> entries, boolean cancel) {
+        Map<I, Hasher> filters = new LinkedHashMap<I, Hasher>();
+        Map<I, List<E>> values = new HashMap<I, List<E>>();
+        for (Map.Entry<Hasher, E> entry : entries) {
+            verifyHasher(entry.getKey());
+            if (gate.mayContain(entry.getKey())) {
+                I idx = index.create(entry.getKey());
+                filters.putIfAbsent(idx, entry.getKey());
+                values.computeIfAbsent(idx, k -> new ArrayList<E>()).add(entry.getValue());
+            }
+        }
+        if (writeAheadLog != null) {
+            entries.forEach(entry -> writeAheadLog.logRemove(getFilterWords(entry.getKey()), entry.getValue()));
+            writeAheadLog.commit(entries.size());
+        }
+        List<I> emptied = new ArrayList<I>();
+        for (Map.Entry<I, Hasher> entry : filters.entrySet()) {
+            int removed = 0;
+            boolean empty = false;
+            for (E value : values.get(entry.getKey())) {
+                boolean[] result = storage.remove(entry.getKey(), value);
+                if (result[Storage.REMOVED]) {
+                    removed++;
+                    empty = result[Storage.EMPTY];
+                    if (cancel && !expiries.isEmpty()) {
+                        expiries.cancel(entry.getKey(), value);
+                    }
+                    if (reshape != null) {
+                        reshape.remove(entry.getKey(), value);
+                    }
+                }
+            }
+            if (removed > 0) {
+                gate.remove(entry.getValue(), removed);
+                valueCount -= removed;
+                if (empty) {
+                    emptied.add(entry.getKey());
+                }
+            }
+        }
+        index.removeAll(emptied);
+        if (resultCache != null) {
+            emptied.forEach(resultCache::invalidate);
+        }
     }
 
     @Override
     public Iterator<E> search(Hasher hasher) {
         verifyHasher(hasher);
 
-        if (hasher.isEmpty())
-        {
-            Iterator<I> iter = index.getAll().iterator();
-            // we are searching for all the items.
-            return new LazyIteratorChain<E>() {
-                @Override
-                protected Iterator<E> nextIterator(int count) {
-                    return iter.hasNext() ? getEntryIterator(iter.next()) : null;
-                }
-            };
+        // an empty hasher matches all the items.
+        if (hasher.isEmpty() || gate.mayMatch(hasher)) {
+            if (resultCache == null) {
+                return getEntryIterator(index.cursor(hasher, 0));
+            }
+            long[] words = getFilterWords(hasher);
+            Set<I> found = resultCache.get(words);
+            if (found == null) {
+                found = resultCache.put(words, index.search(hasher));
+            }
+            return getEntryIterator(found.iterator());
+        }
+        return Collections.emptyListIterator();
+
+    }
+
+    @Override
+    public Iterator<E> search(Query query) {
+        return getEntryIterator(index.search(query.compile(shape)).iterator());
+    }
+
+    @Override
+    public List<Iterator<E>> searchAll(List<Hasher> hashers) {
+        // only the hashers that pass the gate are sent to the index.
+        boolean[] gated = new boolean[hashers.size()];
+        List<Hasher> candidates = new ArrayList<Hasher>(hashers.size());
+        for (int i = 0; i < gated.length; i++) {
+            Hasher hasher = hashers.get(i);
+            verifyHasher(hasher);
+            if (hasher.isEmpty() || gate.mayMatch(hasher)) {
+                candidates.add(hasher);
+            } else {
+                gated[i] = true;
+            }
+        }
+        Iterator<Set<I>> found = index.searchAll(candidates).iterator();
+        List<Iterator<E>> result = new ArrayList<Iterator<E>>(gated.length);
+        for (int i = 0; i < gated.length; i++) {
+            if (gated[i]) {
+                result.add(Collections.emptyIterator());
+            } else {
+                result.add(getEntryIterator(found.next().iterator()));
+            }
+        }
+        return result;
+    }
 
+    @Override
+    public Page<E> search(Hasher hasher, String token, int limit) {
+        verifyHasher(hasher);
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be greater than 0");
         }
-        if (gate.contains(hasher)) {
-            Iterator<I> iter = index.search(hasher).iterator();
-            return new LazyIteratorChain<E>() {
-                @Override
-                protected Iterator<E> nextIterator(int count) {
-                    return iter.hasNext() ? getEntryIterator(iter.next()) : null;
+
+        List<E> result = new ArrayList<E>(limit);
+        if (hasher.isEmpty() || gate.mayMatch(hasher)) {
+            long position = 0;
+            int offset = 0;
+            if (token != null) {
+                String[] parts = token.split(TOKEN_SEPARATOR);
+                try {
+                    position = Long.parseLong(parts[0], Character.MAX_RADIX);
+                    offset = Integer.parseInt(parts[1], Character.MAX_RADIX);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException(String.format("Invalid token: %s", token), e);
                 }
-            };
+            }
+            Index.Cursor<I> cursor = index.cursor(hasher, position);
+            while (cursor.hasNext()) {
+                I idx = cursor.next();
+                // the offset only applies to the index the previous page ended in.
+                int skip = cursor.getPosition() == position ? offset : 0;
+                int valueIdx = 0;
+                for (E value : live(idx, storage.get(idx))) {
+                    if (valueIdx >= skip) {
+                        if (result.size() == limit) {
+                            return new Page<E>(result, Long.toString(cursor.getPosition(), Character.MAX_RADIX)
+                                    + TOKEN_SEPARATOR + Integer.toString(valueIdx, Character.MAX_RADIX));
+                        }
+                        result.add(value);
+                    }
+                    valueIdx++;
+                }
+            }
         }
-        return Collections.emptyListIterator();
+        return new Page<E>(result, null);
+    }
 
+    @Override
+    public Stream<E> stream(Hasher hasher) {
+        verifyHasher(hasher);
+
+        if (hasher.isEmpty() || gate.mayMatch(hasher)) {
+            return StreamSupport.stream(index.spliterator(hasher), false).flatMap(idx -> live(idx, storage.get(idx)).stream());
+        }
+        return Container.emptyStream();
+    }
+
+    @Override
+    public int count(Hasher hasher) {
+        verifyHasher(hasher);
+
+        if (hasher.isEmpty()) {
+            return index.getFilterCount();
+        }
+        return gate.mayMatch(hasher) ? index.count(hasher) : 0;
+    }
+
+    @Override
+    public boolean exists(Hasher hasher) {
+        verifyHasher(hasher);
+
+        if (hasher.isEmpty()) {
+            return index.getFilterCount() > 0;
+        }
+        return gate.mayMatch(hasher) && index.exists(hasher);
+    }
+
+    /**
+     * Gets the words of the Bloom filter for the hasher.
+     * @param hasher the hasher.
+     * @return the filter words without trailing zero words.
+     */
+    private long[] getFilterWords(Hasher hasher) {
+        BitSet bits = new BitSet(shape.getNumberOfBits());
+        hasher.getBits(shape).forEachRemaining((IntConsumer) bits::set);
+        return bits.toLongArray();
     }
 
     private Iterator<E> getEntryIterator( I index ) {
-        return UnmodifiableIterator.unmodifiableIterator(storage.get(index).iterator());
+        return UnmodifiableIterator.unmodifiableIterator(live(index, storage.get(index)).iterator());
+    }
+
+    /**
+     * Creates an iterator over the values stored at each of the indexes.
+     * The values for an index are only retrieved when the iterator reaches it, or
+     * the prefetch window before it.
+     * @param iter the iterator of indexes.
+     * @return an iterator of stored values.
+     */
+    private Iterator<E> getEntryIterator( Iterator<I> iter ) {
+        if (prefetch > 0) {
+            return UnmodifiableIterator.unmodifiableIterator(
+                    new PrefetchIterator<E, I>(storage, iter, prefetch, this::live));
+        }
+        return new LazyIteratorChain<E>() {
+            @Override
+            protected Iterator<E> nextIterator(int count) {
+                return iter.hasNext() ? getEntryIterator(iter.next()) : null;
+            }
+        };
     }
 
     /**
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+
+/**
+ * The expiry times of the container entries that were put with a time to live.
+ * <p>
+ * Entries are grouped in buckets of one tick of time so that expired entries are
+ * swept a bucket at a time.  The entries of each index are also kept so that values
+ * that have expired but not been swept can be filtered from results.
+ * </p>
+ *
+ * @param <E> The type of object stored.
+ * @param <I> The type of object used for the index.
+ */
+final class ExpiryBuckets<E, I> {
+
+    /**
+     * An entry with an expiry time.
+     *
+     * @param <E> The type of object stored.
+     * @param <I> The type of object used for the index.
+     */
+    static final class Expiring<E, I> {
+        /**
+         * The storage index of the entry.
+         */
+        private final I idx;
+        /**
+         * The hasher the entry was put with.
+         */
+        private final Hasher hasher;
+        /**
+         * The value of the entry.
+         */
+        private final E value;
+        /**
+         * The expiry time in milliseconds.
+         */
+        private final long expiresAt;
+        /**
+         * True if the value was removed before it expired.
+         */
+        private boolean cancelled;
+
+        Expiring(I idx, Hasher hasher, E value, long expiresAt) {
+            this.idx = idx;
+            this.hasher = hasher;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        Hasher getHasher() {
+            return hasher;
+        }
+
+        E getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * The length of a bucket in milliseconds.
+     */
+    private final long tick;
+    /**
+     * The buckets by tick number.
+     */
+    private final TreeMap<Long, List<Expiring<E, I>>> buckets;
+    /**
+     * The unexpired entries of each index.
+     */
+    private final Map<I, List<Expiring<E, I>>> byIndex;
+
+    /**
+     * Constructs the buckets.
+     * @param tick the length of a bucket in milliseconds.
+     */
+    ExpiryBuckets(long tick) {
+        this.tick = tick;
+        this.buckets = new TreeMap<Long, List<Expiring<E, I>>>();
+        this.byIndex = new HashMap<I, List<Expiring<E, I>>>();
+    }
+
+    /**
+     * Determines if there are no entries with an expiry time.
+     * @return true if there are no entries.
+     */
+    boolean isEmpty() {
+        return byIndex.isEmpty();
+    }
+
+    /**
+     * Gets the time at which the earliest bucket will have fully expired.
+     * @return the time in milliseconds or Long.MAX_VALUE if there are no buckets.
+     */
+    long nextSweep() {
+        return buckets.isEmpty() ? Long.MAX_VALUE : (buckets.firstKey() + 1) * tick;
+    }
+
+    /**
+     * Adds an entry.
+     * @param idx the storage index of the entry.
+     * @param hasher the hasher the entry was put with.
+     * @param value the value of the entry.
+     * @param expiresAt the expiry time in milliseconds.
+     */
+    void add(I idx, Hasher hasher, E value, long expiresAt) {
+        Expiring<E, I> expiring = new Expiring<E, I>(idx, hasher, value, expiresAt);
+        buckets.computeIfAbsent(expiresAt / tick, k -> new ArrayList<Expiring<E, I>>()).add(expiring);
+        byIndex.computeIfAbsent(idx, k -> new ArrayList<Expiring<E, I>>(1)).add(expiring);
+    }
+
+    /**
+     * Removes the expired entries.
+     * @param now the current time in milliseconds.
+     * @return the expired entries.
+     */
+    List<Expiring<E, I>> expire(long now) {
+        List<Expiring<E, I>> result = new ArrayList<Expiring<E, I>>();
+        long current = now / tick;
+        while (!buckets.isEmpty() && buckets.firstKey() <= current) {
+            Map.Entry<Long, List<Expiring<E, I>>> bucket = buckets.pollFirstEntry();
+            List<Expiring<E, I>> pending = new ArrayList<Expiring<E, I>>();
+            for (Expiring<E, I> expiring : bucket.getValue()) {
+                if (!expiring.cancelled) {
+                    if (expiring.expiresAt <= now) {
+                        result.add(expiring);
+                        unlink(expiring);
+                    } else {
+                        pending.add(expiring);
+                    }
+                }
+            }
+            if (!pending.isEmpty()) {
+                // only the current bucket holds entries that have not expired.
+                buckets.put(bucket.getKey(), pending);
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void unlink(Expiring<E, I> expiring) {
+        List<Expiring<E, I>> entries = byIndex.get(expiring.idx);
+        entries.remove(expiring);
+        if (entries.isEmpty()) {
+            byIndex.remove(expiring.idx);
+        }
+    }
+
+    /**
+     * Cancels the expiry of a value that was removed.
+     * @param idx the storage index of the value.
+     * @param value the value.
+     */
+    void cancel(I idx, E value) {
+        List<Expiring<E, I>> entries = byIndex.get(idx);
+        if (entries != null) {
+            for (Expiring<E, I> expiring : entries) {
+                if (expiring.value.equals(value)) {
+                    expiring.cancelled = true;
+                    unlink(expiring);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a copy of the unexpired entries with new hashers and indexes, used when
+     * the container changes shape.
+     * @param hasherFunction creates the hasher for a value.
+     * @param indexFunction creates the storage index for a hasher.
+     * @return the new buckets.
+     */
+    ExpiryBuckets<E, I> rekey(Function<E, Hasher> hasherFunction, Function<Hasher, I> indexFunction) {
+        ExpiryBuckets<E, I> result = new ExpiryBuckets<E, I>(tick);
+        for (List<Expiring<E, I>> entries : byIndex.values()) {
+            for (Expiring<E, I> expiring : entries) {
+                Hasher hasher = hasherFunction.apply(expiring.value);
+                result.add(indexFunction.apply(hasher), hasher, expiring.value, expiring.expiresAt);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the expired values of an index from its values.
+     * @param idx the storage index.
+     * @param values the values stored at the index.
+     * @param now the current time in milliseconds.
+     * @return the unexpired values.
+     */
+    Collection<E> filter(I idx, Collection<E> values, long now) {
+        List<Expiring<E, I>> entries = byIndex.get(idx);
+        if (entries == null) {
+            return values;
+        }
+        List<E> expired = new ArrayList<E>();
+        for (Expiring<E, I> expiring : entries) {
+            if (expiring.expiresAt <= now) {
+                expired.add(expiring.value);
+            }
+        }
+        if (expired.isEmpty()) {
+            return values;
+        }
+        List<E> result = new ArrayList<E>(values.size());
+        for (E value : values) {
+            if (!expired.remove(value)) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+/**
+ * Non-cryptographic hashes of the words of a Bloom filter.
+ * <p>
+ * The hashes are MurmurHash3 x64 128 applied to the words rather than to
+ * bytes. Trailing zero words are ignored so filters that differ only in the
+ * length of their word arrays hash to the same value.
+ * </p>
+ */
+public final class FilterHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private FilterHash() {
+    }
+
+    /**
+     * Calculates the 64 bit hash of the words.
+     * @param words the words of the Bloom filter.
+     * @return the hash.
+     */
+    public static long hash64(long[] words) {
+        return hash128(words)[0];
+    }
+
+    /**
+     * Calculates the 128 bit hash of the words.
+     * @param words the words of the Bloom filter.
+     * @return the hash as two longs.
+     */
+    public static long[] hash128(long[] words) {
+        int length = words.length;
+        while (length > 0 && words[length - 1] == 0) {
+            length--;
+        }
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            h1 ^= mixK1(words[i]);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(words[i + 1]);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        if (i < length) {
+            h1 ^= mixK1(words[i]);
+        }
+
+        h1 ^= length * (long) Long.BYTES;
+        h2 ^= length * (long) Long.BYTES;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[] { h1, h2 };
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+import org.apache.commons.collections4.bloomfilter.BloomFilter;
+import org.apache.commons.collections4.bloomfilter.HasherBloomFilter;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A function that creates the index value for a Bloom filter from the words of
+ * the filter.
+ * <p>
+ * Indexes call {@code apply(long[])} with words built directly from the hasher
+ * so no Bloom filter is constructed.  The {@code uuid()} and {@code longId()}
+ * functions hash the words with FilterHash and are much faster than a
+ * cryptographic digest.
+ * </p>
+ *
+ * @param <I> The type of object used for the index.
+ */
+@FunctionalInterface
+public interface IdFunction<I> extends Function<BloomFilter, I> {
+
+    /**
+     * Creates the index value from the words of a Bloom filter.
+     * Trailing zero words must not change the result.
+     * @param words the words of the Bloom filter.
+     * @return the index value.
+     */
+    I apply(long[] words);
+
+    @Override
+    default I apply(BloomFilter filter) {
+        return apply(filter.getBits());
+    }
+
+    /**
+     * Creates a function that returns the 128 bit FilterHash as a UUID.
+     * @return the UUID function.
+     */
+    static IdFunction<UUID> uuid() {
+        return words -> {
+            long[] hash = FilterHash.hash128(words);
+            return new UUID(hash[0], hash[1]);
+        };
+    }
+
+    /**
+     * Creates a function that returns the 64 bit FilterHash.
+     * <p>
+     * The function is a LongIdFunction so the id can be read as a primitive long.
+     * </p>
+     * @return the long function.
+     */
+    static LongIdFunction longId() {
+        return FilterHash::hash64;
+    }
+
+    /**
+     * Creates the index value for a hasher.
+     * <p>
+     * If the function is an IdFunction the words are built directly from the
+     * hasher, otherwise a Bloom filter is built and passed to the function.
+     * </p>
+     * @param <I> The type of object used for the index.
+     * @param func the function to create the index value with.
+     * @param hasher the hasher to create the index value for.
+     * @param shape the shape of the Bloom filter.
+     * @return the index value.
+     */
+    @SuppressWarnings("unchecked")
+    static <I> I create(Function<BloomFilter, I> func, Hasher hasher, Shape shape) {
+        if (func instanceof IdFunction) {
+            // an IdFunction that is a Function<BloomFilter, I> returns I from its words.
+            return ((IdFunction<I>) func).apply(getWords(hasher, shape));
+        }
+        return func.apply(new HasherBloomFilter(hasher, shape));
+    }
+
+    /**
+     * Gets the words of the Bloom filter for a hasher.
+     * @param hasher the hasher.
+     * @param shape the shape of the Bloom filter.
+     * @return the words of the Bloom filter.
+     */
+    static long[] getWords(Hasher hasher, Shape shape) {
+        long[] words = new long[(shape.getNumberOfBits() + Long.SIZE - 1) / Long.SIZE];
+        hasher.getBits(shape).forEachRemaining((IntConsumer) i -> words[i / Long.SIZE] |= 1L << i);
+        return words;
+    }
+}
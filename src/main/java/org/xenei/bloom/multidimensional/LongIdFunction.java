@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * An IdFunction that creates a primitive long index value.
+ * <p>
+ * {@code applyAsLong} returns the id without boxing.  An index typed on
+ * {@code Long} still boxes the id at the Index interface, the primitive methods
+ * are for callers that keep their own long keyed structures.
+ * </p>
+ */
+@FunctionalInterface
+public interface LongIdFunction extends IdFunction<Long> {
+
+    /**
+     * Creates the index value from the words of a Bloom filter.
+     * Trailing zero words must not change the result.
+     * @param words the words of the Bloom filter.
+     * @return the index value.
+     */
+    long applyAsLong(long[] words);
+
+    @Override
+    default Long apply(long[] words) {
+        return applyAsLong(words);
+    }
+
+    /**
+     * Creates the index value for a hasher without boxing.
+     * @param hasher the hasher to create the index value for.
+     * @param shape the shape of the Bloom filter.
+     * @return the index value.
+     */
+    default long applyAsLong(Hasher hasher, Shape shape) {
+        return applyAsLong(IdFunction.getWords(hasher, shape));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A page of results from a paged container search.
+ *
+ * @param <E> The type of object in the page.
+ */
+public final class Page<E> {
+    /**
+     * The values on this page.
+     */
+    private final List<E> values;
+    /**
+     * The token to retrieve the next page or {@code null} if this is the last page.
+     */
+    private final String token;
+
+    /**
+     * Constructs a page.
+     * @param values the values on the page.
+     * @param token the token to retrieve the next page, or {@code null} if this is the last page.
+     */
+    public Page(List<E> values, String token) {
+        this.values = Collections.unmodifiableList(values);
+        this.token = token;
+    }
+
+    /**
+     * Gets the values on this page.
+     * @return the unmodifiable list of values.
+     */
+    public List<E> getValues() {
+        return values;
+    }
+
+    /**
+     * Gets the token to retrieve the next page.
+     * The token is only valid for the same hasher.
+     * @return the token or empty if this is the last page.
+     */
+    public Optional<String> getToken() {
+        return Optional.ofNullable(token);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+/**
+ * An iterator over the values stored at a sequence of indexes that fetches the
+ * values for the next batch of indexes while the current batch is consumed.
+ *
+ * @param <E> The type of object stored.
+ * @param <I> The type of object used for the index.
+ */
+final class PrefetchIterator<E, I> implements Iterator<E> {
+    /**
+     * The storage to fetch from.
+     */
+    private final Storage<E, I> storage;
+    /**
+     * The indexes to fetch the values of.
+     */
+    private final Iterator<I> idxs;
+    /**
+     * The number of indexes to fetch at once.
+     */
+    private final int batchSize;
+    /**
+     * The filter applied to the values of each index.
+     */
+    private final BiFunction<I, Collection<E>, Collection<E>> filter;
+    /**
+     * The indexes of the batch being fetched.
+     */
+    private List<I> fetching;
+    /**
+     * The values of the batch being fetched, null when there are no more indexes.
+     */
+    private CompletableFuture<Map<I, Collection<E>>> fetched;
+    /**
+     * The values being consumed.
+     */
+    private Iterator<E> current;
+
+    /**
+     * Constructs the iterator and starts fetching the first batch.
+     * @param storage the storage to fetch from.
+     * @param idxs the indexes to fetch the values of.
+     * @param batchSize the number of indexes to fetch at once.
+     * @param filter the filter applied to the values of each index.
+     */
+    PrefetchIterator(Storage<E, I> storage, Iterator<I> idxs, int batchSize,
+            BiFunction<I, Collection<E>, Collection<E>> filter) {
+        this.storage = storage;
+        this.idxs = idxs;
+        this.batchSize = batchSize;
+        this.filter = filter;
+        this.current = Collections.emptyIterator();
+        fetch();
+    }
+
+    private void fetch() {
+        fetching = new ArrayList<I>(batchSize);
+        while (fetching.size() < batchSize && idxs.hasNext()) {
+            fetching.add(idxs.next());
+        }
+        fetched = fetching.isEmpty() ? null : storage.getAllAsync(fetching);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (fetched == null) {
+                return false;
+            }
+            Map<I, Collection<E>> values = fetched.join();
+            List<I> batch = fetching;
+            fetch();
+            List<E> result = new ArrayList<E>();
+            for (I idx : batch) {
+                result.addAll(filter.apply(idx, values.getOrDefault(idx, Collections.emptyList())));
+            }
+            current = result.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+/**
+ * The state of a container migrating to a new Shape.
+ * <p>
+ * The storage indexes of the source are listed when the migration starts and are
+ * migrated a batch at a time into a target container by rehashing their values.
+ * Changes to an index that has been migrated, or that was created after the migration
+ * started, are written to the target as well as the source.  Changes to an index
+ * that has not been migrated are only written to the source and reach the target when
+ * the index is migrated.
+ * </p>
+ *
+ * @param <E> The type of object stored.
+ * @param <I> The type of object used for the index.
+ */
+final class Reshape<E, I> {
+    /**
+     * The storage of the source container.
+     */
+    private final Storage<E, I> source;
+    /**
+     * The container with the new shape.
+     */
+    private final ContainerImpl<E, I> target;
+    /**
+     * Creates the hasher for a value.
+     */
+    private final Function<E, Hasher> hasherFunction;
+    /**
+     * The number of indexes migrated by each step.
+     */
+    private final int batchSize;
+    /**
+     * The source indexes that have not been migrated.
+     */
+    private final LinkedHashSet<I> pending;
+
+    /**
+     * Starts a migration.
+     * @param source the storage of the source container.
+     * @param target the container with the new shape.
+     * @param hasherFunction creates the hasher for a value.
+     * @param batchSize the number of indexes migrated by each step.
+     */
+    Reshape(Storage<E, I> source, ContainerImpl<E, I> target, Function<E, Hasher> hasherFunction, int batchSize) {
+        this.source = source;
+        this.target = target;
+        this.hasherFunction = hasherFunction;
+        this.batchSize = batchSize;
+        this.pending = new LinkedHashSet<I>();
+        source.list().forEachRemaining(entry -> pending.add(entry.getKey()));
+    }
+
+    /**
+     * Gets the container with the new shape.
+     * @return the target container.
+     */
+    ContainerImpl<E, I> getTarget() {
+        return target;
+    }
+
+    /**
+     * Gets the function that creates the hasher for a value.
+     * @return the hasher function.
+     */
+    Function<E, Hasher> getHasherFunction() {
+        return hasherFunction;
+    }
+
+    /**
+     * Gets the number of indexes migrated by each step.
+     * @return the batch size.
+     */
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Gets the number of source indexes that have not been migrated.
+     * @return the number of pending indexes.
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Records a value put into the source.
+     * @param idx the source index.
+     * @param value the value.
+     */
+    void put(I idx, E value) {
+        if (!pending.contains(idx)) {
+            target.put(hasherFunction.apply(value), value);
+        }
+    }
+
+    /**
+     * Records a value removed from the source.
+     * @param idx the source index.
+     * @param value the value.
+     */
+    void remove(I idx, E value) {
+        if (!pending.contains(idx)) {
+            target.remove(hasherFunction.apply(value), value);
+        }
+    }
+
+    /**
+     * Migrates source indexes into the target.
+     * @param count the maximum number of indexes to migrate.
+     * @return true if all the indexes have been migrated.
+     */
+    boolean step(int count) {
+        List<Map.Entry<Hasher, E>> entries = new ArrayList<Map.Entry<Hasher, E>>();
+        Iterator<I> iter = pending.iterator();
+        for (int i = 0; i < count && iter.hasNext(); i++) {
+            I idx = iter.next();
+            iter.remove();
+            for (E value : source.get(idx)) {
+                entries.add(new SimpleImmutableEntry<Hasher, E>(hasherFunction.apply(value), value));
+            }
+        }
+        if (!entries.isEmpty()) {
+            target.putAll(entries);
+        }
+        return pending.isEmpty();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded cache of search results for a ContainerImpl.
+ * <p>
+ * Results are keyed by the words of the Bloom filter being searched for and
+ * evicted in least recently used order.  Invalidation is precise:
+ * </p>
+ * <ul>
+ * <li>Putting a filter invalidates only the cached searches whose filter is a
+ * subset of the new filter, as only they can have gained a result.</li>
+ * <li>Removing an index invalidates only the cached searches whose result
+ * contains the index.</li>
+ * </ul>
+ * <p>
+ * Both invalidations check every cached search, so the cost of a put or remove
+ * grows with the size of the cache.
+ * </p>
+ *
+ * @param <I> The type of object used for the index.
+ */
+public final class ResultCache<I> {
+    /**
+     * The cached results in access order.
+     */
+    private final LinkedHashMap<Key, Set<I>> cache;
+    /**
+     * The number of searches answered from the cache.
+     */
+    private long hits;
+    /**
+     * The number of searches not answered from the cache.
+     */
+    private long misses;
+    /**
+     * The number of results evicted because the cache was full.
+     */
+    private long evictions;
+
+    /**
+     * Constructs a result cache.
+     * @param maxSize the maximum number of search results to cache.
+     */
+    public ResultCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be greater than 0");
+        }
+        this.cache = new LinkedHashMap<Key, Set<I>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Set<I>> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached result for a filter.
+     * @param filter the words of the filter being searched for.
+     * @return the unmodifiable cached result or {@code null} if there is none.
+     */
+    Set<I> get(long[] filter) {
+        Set<I> result = cache.get(new Key(filter));
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    /**
+     * Caches the result for a filter.
+     * @param filter the words of the filter being searched for.
+     * @param result the result of the search.
+     * @return the unmodifiable cached result.
+     */
+    Set<I> put(long[] filter, Set<I> result) {
+        Set<I> cached = Collections.unmodifiableSet(result);
+        cache.put(new Key(filter), cached);
+        return cached;
+    }
+
+    /**
+     * Invalidates the cached results that a new filter may be added to.
+     * @param filter the words of the filter that was put.
+     */
+    void invalidateSubsets(long[] filter) {
+        Iterator<Key> iter = cache.keySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isSubsetOf(filter)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the cached results that contain an index.
+     * @param idx the index that was removed.
+     */
+    void invalidate(I idx) {
+        cache.values().removeIf(result -> result.contains(idx));
+    }
+
+    /**
+     * Removes all the cached results.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Gets the number of cached results.
+     * @return the number of cached results.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Gets the number of searches answered from the cache.
+     * @return the hit count.
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of searches that were not answered from the cache.
+     * @return the miss count.
+     */
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of results evicted because the cache was full.
+     * @return the eviction count.
+     */
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ResultCache[size=%s hits=%s misses=%s evictions=%s]", cache.size(), hits, misses,
+                evictions);
+    }
+
+    /**
+     * The cache key, the words of a Bloom filter.
+     */
+    private static class Key {
+        /**
+         * The filter words with trailing zero words removed.
+         */
+        private final long[] words;
+        /**
+         * The hash code of the words.
+         */
+        private final int hashCode;
+
+        Key(long[] words) {
+            this.words = words;
+            this.hashCode = Arrays.hashCode(words);
+        }
+
+        /**
+         * Determines if every bit of this key is enabled in the filter.
+         * @param filter the filter words.
+         * @return true if this key is a subset of the filter.
+         */
+        boolean isSubsetOf(long[] filter) {
+            if (words.length > filter.length) {
+                return false;
+            }
+            for (int i = 0; i < words.length; i++) {
+                if ((words[i] & ~filter[i]) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(words, ((Key) o).words);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
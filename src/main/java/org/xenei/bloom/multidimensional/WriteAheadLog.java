@@ -0,0 +1,590 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentity;
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentityImpl;
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionValidator;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.xenei.bloom.multidimensional.index.Snapshot;
+import org.xenei.bloom.multidimensional.storage.Serde;
+
+/**
+ * An append only write ahead log for a ContainerImpl.
+ * <p>
+ * Each put and remove is logged with the words of its Bloom filter and its value,
+ * serialized by the Serde, before the container is changed.  The filter words are
+ * logged so that replaying the log does not hash the original objects again.  Each
+ * record carries its own CRC32 so a record torn by a crash is detected and the log
+ * is truncated to the last complete record.
+ * </p>
+ * <p>
+ * The log is forced to disk once for every {@code syncBatch} records (group commit).
+ * A batch operation such as {@code putAll} is written and forced as a single group.
+ * Records that have not been forced may be lost in a crash; {@code sync()} forces
+ * them explicitly.
+ * </p>
+ * <p>
+ * {@code checkpoint()} folds the log into a snapshot of the live entries and empties
+ * the log.  Recovery loads the snapshot and replays the log written since.
+ * </p>
+ * <p>
+ * The log header and the snapshot carry a generation.  The log generation is increased
+ * each time the log is emptied by a checkpoint and the snapshot records the generation
+ * of the log it folded, so a log that a checkpoint did not empty before a crash is not
+ * replayed on top of the snapshot that already contains it.
+ * </p>
+ * <p>
+ * The log is not thread safe.
+ * </p>
+ *
+ * @param <E> The type of object stored in the container.
+ */
+public final class WriteAheadLog<E> implements Closeable {
+    /**
+     * The name of the log file in the log directory.
+     */
+    public static final String LOG_FILE = "container.wal";
+    /**
+     * The name of the snapshot file in the log directory.
+     */
+    public static final String SNAPSHOT_FILE = "container.snapshot";
+    /**
+     * The snapshot type.
+     */
+    private static final String TYPE = "WriteAheadLog";
+    /**
+     * The magic number at the start of the log file.
+     */
+    private static final int MAGIC = 0x4d424c57;
+    /**
+     * The operation code for a put.
+     */
+    private static final byte PUT = 1;
+    /**
+     * The operation code for a remove.
+     */
+    private static final byte REMOVE = 2;
+
+    /**
+     * The snapshot file.
+     */
+    private final Path snapshotFile;
+    /**
+     * The shape of the logged filters.
+     */
+    private final Shape shape;
+    /**
+     * The serializer for the values.
+     */
+    private final Serde<E> serde;
+    /**
+     * The number of records between forces.
+     */
+    private final int syncBatch;
+    /**
+     * The log file.
+     */
+    private final FileChannel channel;
+    /**
+     * The records that have been appended but not written.
+     */
+    private final ByteArrayOutputStream pending;
+    /**
+     * The record being appended.
+     */
+    private final ByteArrayOutputStream record;
+    /**
+     * The data output for the record being appended.
+     */
+    private final DataOutputStream recordData;
+    /**
+     * The checksum for the record being appended.
+     */
+    private final CRC32 crc;
+    /**
+     * The number of records written since the last force.
+     */
+    private int unsynced;
+    /**
+     * The generation of the log.
+     */
+    private long generation;
+    /**
+     * The length of the log header: the magic number, number of bits, number of hash functions,
+     * generation and hash function identity.
+     */
+    private final int headerLength;
+
+    /**
+     * Opens a write ahead log that forces every record to disk.
+     * @param directory the directory for the log and snapshot files.
+     * @param shape the shape of the container.
+     * @param serde the serializer for the values.
+     * @throws IOException on IO error.
+     * @throws IllegalArgumentException if the existing log is for a different shape.
+     */
+    public WriteAheadLog(Path directory, Shape shape, Serde<E> serde) throws IOException {
+        this(directory, shape, serde, 1);
+    }
+
+    /**
+     * Opens a write ahead log.
+     * <p>
+     * If the log ends with an incomplete record, left by a crash, it is truncated to
+     * the last complete record.  If the log was folded into the snapshot by a checkpoint
+     * that did not empty it, it is emptied.
+     * </p>
+     * @param directory the directory for the log and snapshot files.
+     * @param shape the shape of the container.
+     * @param serde the serializer for the values.
+     * @param syncBatch the number of records to write between forcing the log to disk.
+     * @throws IOException on IO error.
+     * @throws IllegalArgumentException if the existing log is for a different shape or
+     * syncBatch is less than 1.
+     */
+    public WriteAheadLog(Path directory, Shape shape, Serde<E> serde, int syncBatch) throws IOException {
+        if (syncBatch < 1) {
+            throw new IllegalArgumentException("Sync batch must be greater than 0");
+        }
+        this.snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        this.shape = shape;
+        this.serde = serde;
+        this.syncBatch = syncBatch;
+        this.pending = new ByteArrayOutputStream();
+        this.record = new ByteArrayOutputStream();
+        this.recordData = new DataOutputStream(record);
+        this.crc = new CRC32();
+        this.headerLength = header().length;
+        this.channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            generation = readSnapshotGeneration() + 1;
+            writeHeader();
+        } else {
+            channel.truncate(read(null));
+            channel.position(channel.size());
+            long snapshotGeneration = readSnapshotGeneration();
+            if (generation <= snapshotGeneration) {
+                // a checkpoint did not empty the log before a crash, its records are in the snapshot.
+                generation = snapshotGeneration + 1;
+                writeHeader();
+            }
+        }
+    }
+
+    /**
+     * Writes the log header to an empty log.
+     * @throws IOException on IO error.
+     */
+    private void writeHeader() throws IOException {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(header()), 0);
+        channel.position(headerLength);
+        channel.force(true);
+    }
+
+    /**
+     * Creates the log header.
+     * @return the log header.
+     */
+    private byte[] header() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeInt(shape.getNumberOfBits());
+            data.writeInt(shape.getNumberOfHashFunctions());
+            data.writeLong(generation);
+            HashFunctionIdentity identity = shape.getHashFunctionIdentity();
+            data.writeUTF(identity.getProvider());
+            data.writeUTF(identity.getName());
+            data.writeUTF(identity.getSignedness().name());
+            data.writeUTF(identity.getProcessType().name());
+            data.writeLong(identity.getSignature());
+            data.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // byte array streams do not throw.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends a put to the current group.
+     * @param words the words of the Bloom filter.
+     * @param value the value.
+     */
+    void logPut(long[] words, E value) {
+        append(PUT, words, serde.serialize(value));
+    }
+
+    /**
+     * Appends a remove to the current group.
+     * @param words the words of the Bloom filter.
+     * @param value the value.
+     */
+    void logRemove(long[] words, E value) {
+        append(REMOVE, words, serde.serialize(value));
+    }
+
+    private void append(byte op, long[] words, byte[] value) {
+        try {
+            record.reset();
+            writeEntry(recordData, words, value);
+            recordData.flush();
+            crc.reset();
+            crc.update(op);
+            crc.update(record.toByteArray());
+            pending.write(op);
+            record.writeTo(pending);
+            new DataOutputStream(pending).writeLong(crc.getValue());
+        } catch (IOException e) {
+            // byte array streams do not throw.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the current group to the log, forcing it to disk if {@code syncBatch}
+     * records have been written since the last force.
+     * @param records the number of records in the group.
+     * @throws UncheckedIOException on IO error.
+     */
+    void commit(int records) {
+        try {
+            channel.write(ByteBuffer.wrap(pending.toByteArray()));
+            pending.reset();
+            unsynced += records;
+            if (unsynced >= syncBatch) {
+                sync();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces the written records to disk.
+     * @throws IOException on IO error.
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+        unsynced = 0;
+    }
+
+    /**
+     * Replays the snapshot and the log into a container with hashers of the logged
+     * filter words.
+     * <p>
+     * The container should be empty and should not log to this write ahead log
+     * while it is replayed.
+     * </p>
+     * @param container the container to replay into.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is for a different shape.
+     */
+    public void replay(Container<E> container) throws IOException {
+        replay(container, null);
+    }
+
+    /**
+     * Replays the snapshot and the log into a container.
+     * <p>
+     * The container should be empty and should not log to this write ahead log
+     * while it is replayed.  If a hasher function is given each value is put with the
+     * hasher it creates, which must produce the logged filter, so that gates of other
+     * shapes can merge it.
+     * </p>
+     * @param container the container to replay into.
+     * @param hasherFunction creates the hasher that a value was put with, or {@code null}
+     * to use hashers of the logged filter words.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is for a different shape or the
+     * hasher function does not produce the logged filter.
+     */
+    public void replay(Container<E> container, Function<E, Hasher> hasherFunction) throws IOException {
+        readEntries((op, entry) -> {
+            E value = serde.deserialize(entry.value);
+            Hasher hasher;
+            if (hasherFunction == null) {
+                hasher = Snapshot.toHasher(entry.words, shape);
+            } else {
+                hasher = hasherFunction.apply(value);
+                BitSet bits = new BitSet(shape.getNumberOfBits());
+                hasher.getBits(shape).forEachRemaining((IntConsumer) bits::set);
+                if (!Arrays.equals(bits.toLongArray(), entry.words)) {
+                    throw new IllegalArgumentException("The hasher function does not produce the logged filter");
+                }
+            }
+            if (op == PUT) {
+                container.put(hasher, value);
+            } else {
+                container.remove(hasher, value);
+            }
+        });
+    }
+
+    /**
+     * Folds the log into the snapshot and empties the log.
+     * <p>
+     * The new snapshot is written to a temporary file and moved over the old one
+     * so a crash leaves either the old snapshot and log or the new snapshot.  The new
+     * snapshot records the generation of the log so that, if a crash prevents the log
+     * from being emptied, the log is not replayed again.
+     * </p>
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     */
+    public void checkpoint() throws IOException {
+        sync();
+        Map<Entry, Integer> live = new LinkedHashMap<Entry, Integer>();
+        readEntries((op, entry) -> {
+            if (op == PUT) {
+                live.merge(entry, 1, Integer::sum);
+            } else {
+                live.computeIfPresent(entry, (k, v) -> v == 1 ? null : v - 1);
+            }
+        });
+        Path tmp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Snapshot.Writer writer = new Snapshot.Writer(Channels.newOutputStream(out), TYPE, shape);
+            DataOutput data = writer.getOutput();
+            data.writeLong(generation);
+            data.writeInt(live.size());
+            for (Map.Entry<Entry, Integer> entry : live.entrySet()) {
+                writeEntry(data, entry.getKey().words, entry.getKey().value);
+                data.writeInt(entry.getValue());
+            }
+            writer.finish();
+            out.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the rename must be on disk before the log is emptied.
+        try (FileChannel directory = FileChannel.open(snapshotFile.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+        generation++;
+        writeHeader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private static void writeEntry(DataOutput data, long[] words, byte[] value) throws IOException {
+        data.writeInt(words.length);
+        for (long word : words) {
+            data.writeLong(word);
+        }
+        data.writeInt(value.length);
+        data.write(value);
+    }
+
+    /**
+     * Reads an entry.
+     * @param data the input to read from.
+     * @param limit the number of bytes left in the input.
+     * @return the entry or {@code null} if the lengths in the entry are not valid.
+     * @throws IOException on IO error.
+     */
+    private Entry readEntry(DataInput data, long limit) throws IOException {
+        int length = data.readInt();
+        if (length < 0 || length > (shape.getNumberOfBits() + Long.SIZE - 1) / Long.SIZE) {
+            return null;
+        }
+        long[] words = new long[length];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = data.readLong();
+        }
+        length = data.readInt();
+        // a torn record may have any length, do not allocate more than the input holds.
+        if (length < 0 || length > limit - Integer.BYTES * 2 - (long) words.length * Long.BYTES) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        data.readFully(value);
+        return new Entry(words, value);
+    }
+
+    /**
+     * Reads the snapshot and the log as entries.
+     * @param consumer the consumer of the operations and entries.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     */
+    private void readEntries(EntryConsumer consumer) throws IOException {
+        long snapshotGeneration = -1;
+        if (Files.exists(snapshotFile)) {
+            try (InputStream in = Files.newInputStream(snapshotFile)) {
+                Snapshot.Reader reader = new Snapshot.Reader(in, TYPE, shape);
+                DataInput data = reader.getInput();
+                snapshotGeneration = data.readLong();
+                int count = data.readInt();
+                for (int i = 0; i < count; i++) {
+                    Entry entry = readEntry(data, Files.size(snapshotFile));
+                    if (entry == null) {
+                        throw new IOException("Snapshot entry is not valid");
+                    }
+                    for (int n = data.readInt(); n > 0; n--) {
+                        consumer.accept(PUT, entry);
+                    }
+                }
+                reader.finish();
+            }
+        }
+        // a log at or below the snapshot generation is already in the snapshot.
+        read(generation > snapshotGeneration ? consumer : null);
+    }
+
+    /**
+     * Reads the generation of the log folded into the snapshot.
+     * @return the snapshot generation or -1 if there is no snapshot.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     */
+    private long readSnapshotGeneration() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return -1;
+        }
+        try (InputStream in = Files.newInputStream(snapshotFile)) {
+            return new Snapshot.Reader(in, TYPE, shape).getInput().readLong();
+        }
+    }
+
+    /**
+     * Reads the complete records of the log.
+     * @param consumer the consumer of the records, may be {@code null}.
+     * @return the position after the last complete record.
+     * @throws IOException on IO error.
+     * @throws IllegalArgumentException if the log is for a different shape.
+     */
+    private long read(EntryConsumer consumer) throws IOException {
+        InputStream raw = new BufferedInputStream(Channels.newInputStream(channel.position(0)));
+        CheckedInputStream checked = new CheckedInputStream(raw, new CRC32());
+        DataInputStream data = new DataInputStream(checked);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a write ahead log");
+        }
+        int bits = data.readInt();
+        int hashFunctions = data.readInt();
+        generation = data.readLong();
+        if (bits != shape.getNumberOfBits() || hashFunctions != shape.getNumberOfHashFunctions()) {
+            throw new IllegalArgumentException(String.format(
+                    "Log shape of %s bits and %s hash functions does not match %s", bits, hashFunctions, shape));
+        }
+        HashFunctionIdentity identity = new HashFunctionIdentityImpl(data.readUTF(), data.readUTF(),
+                HashFunctionIdentity.Signedness.valueOf(data.readUTF()),
+                HashFunctionIdentity.ProcessType.valueOf(data.readUTF()), data.readLong());
+        HashFunctionValidator.checkAreEqual(shape.getHashFunctionIdentity(), identity);
+        if (identity.getSignature() != shape.getHashFunctionIdentity().getSignature()) {
+            throw new IllegalArgumentException("Log hash function signature does not match " + shape);
+        }
+        DataInputStream trailer = new DataInputStream(raw);
+        long position = headerLength;
+        try {
+            while (true) {
+                checked.getChecksum().reset();
+                byte op = data.readByte();
+                Entry entry = readEntry(data, channel.size() - position - 1);
+                if (entry == null || (op != PUT && op != REMOVE)
+                        || trailer.readLong() != checked.getChecksum().getValue()) {
+                    break;
+                }
+                position += 1 + Integer.BYTES * 2 + entry.words.length * Long.BYTES + entry.value.length
+                        + Long.BYTES;
+                if (consumer != null) {
+                    consumer.accept(op, entry);
+                }
+            }
+        } catch (EOFException e) {
+            // a torn record at the end of the log.
+        }
+        channel.position(channel.size());
+        return position;
+    }
+
+    /**
+     * Consumes logged operations.
+     */
+    @FunctionalInterface
+    private interface EntryConsumer {
+        void accept(byte op, Entry entry) throws IOException;
+    }
+
+    /**
+     * A logged filter and serialized value.
+     */
+    private static final class Entry {
+        /**
+         * The words of the Bloom filter.
+         */
+        private final long[] words;
+        /**
+         * The serialized value.
+         */
+        private final byte[] value;
+
+        Entry(long[] words, byte[] value) {
+            this.words = words;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Entry) {
+                Entry other = (Entry) o;
+                return Arrays.equals(words, other.words) && Arrays.equals(value, other.value);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(words) * 31 + Arrays.hashCode(value);
+        }
+    }
+}
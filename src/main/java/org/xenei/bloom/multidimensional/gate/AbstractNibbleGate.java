@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.gate;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionValidator;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A gate of 4 bit counters packed sixteen to a {@code long}.
+ * <p>
+ * Counters saturate at 15.  A saturated counter is never decremented so it can
+ * only cause false positives.
+ * </p>
+ */
+public abstract class AbstractNibbleGate implements Gate {
+    /**
+     * The number of bits in a counter.
+     */
+    private static final int COUNTER_BITS = 4;
+    /**
+     * The number of counters in a word.
+     */
+    protected static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+    /**
+     * The maximum value of a counter.
+     */
+    protected static final int MAX_COUNT = (1 << COUNTER_BITS) - 1;
+
+    /**
+     * The shape of the gate.
+     */
+    protected final Shape shape;
+    /**
+     * The packed counters.
+     */
+    private final long[] counters;
+    /**
+     * The number of counters.
+     */
+    private final int counterCount;
+    /**
+     * The number of counters that are not zero.
+     */
+    private int nonZero;
+
+    /**
+     * Constructs the gate.
+     * @param shape the shape of the gate.
+     * @param counterCount the number of counters in the gate.
+     */
+    protected AbstractNibbleGate(Shape shape, int counterCount) {
+        this.shape = shape;
+        this.counters = new long[(counterCount + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD];
+        this.counterCount = counterCount;
+        this.nonZero = 0;
+    }
+
+    /**
+     * Gets the distinct counter indexes for a filter.
+     * @param hasher the hasher for the filter.
+     * @return the distinct counter indexes.
+     */
+    protected abstract int[] getCounters(Hasher hasher);
+
+    /**
+     * Gets the distinct values from an iterator.
+     * @param iter the iterator of values, which may contain duplicates.
+     * @return the ordered distinct values.
+     */
+    protected static int[] distinct(PrimitiveIterator.OfInt iter) {
+        int[] values = new int[8];
+        int count = 0;
+        while (iter.hasNext()) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = iter.nextInt();
+        }
+        Arrays.sort(values, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || values[unique - 1] != values[i]) {
+                values[unique++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, unique);
+    }
+
+    /**
+     * Gets the value of a counter.
+     * @param idx the index of the counter.
+     * @return the value of the counter.
+     */
+    final int getCount(int idx) {
+        return (int) (counters[idx / COUNTERS_PER_WORD] >>> shift(idx)) & MAX_COUNT;
+    }
+
+    private void setCount(int idx, int value) {
+        int old = getCount(idx);
+        if (old == 0 && value != 0) {
+            nonZero++;
+        } else if (old != 0 && value == 0) {
+            nonZero--;
+        }
+        int shift = shift(idx);
+        int word = idx / COUNTERS_PER_WORD;
+        counters[word] = (counters[word] & ~((long) MAX_COUNT << shift)) | ((long) value << shift);
+    }
+
+    private static int shift(int idx) {
+        return (idx % COUNTERS_PER_WORD) * COUNTER_BITS;
+    }
+
+    @Override
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Gets the fraction of the counters that are not zero.
+     * @return the fill ratio of the gate.
+     */
+    public double getFillRatio() {
+        return nonZero / (double) counterCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The rate is estimated as the fill ratio raised to the number of hash functions.
+     * </p>
+     */
+    @Override
+    public double getFalsePositiveRate() {
+        return Math.pow(getFillRatio(), shape.getNumberOfHashFunctions());
+    }
+
+    @Override
+    public void merge(Hasher hasher, int count) {
+        verifyHasher(hasher);
+        for (int idx : getCounters(hasher)) {
+            int value = getCount(idx);
+            if (value != MAX_COUNT) {
+                setCount(idx, (int) Math.min(MAX_COUNT, (long) value + count));
+            }
+        }
+    }
+
+    @Override
+    public void remove(Hasher hasher, int count) {
+        verifyHasher(hasher);
+        for (int idx : getCounters(hasher)) {
+            int value = getCount(idx);
+            if (value != MAX_COUNT && value != 0) {
+                setCount(idx, Math.max(0, value - count));
+            }
+        }
+    }
+
+    @Override
+    public boolean mayContain(Hasher hasher) {
+        verifyHasher(hasher);
+        for (int idx : getCounters(hasher)) {
+            if (getCount(idx) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifies that the hasher has the same hash function as the shape.
+     * @param hasher the Hasher to check
+     */
+    protected final void verifyHasher(Hasher hasher) {
+        HashFunctionValidator.checkAreEqual(shape.getHashFunctionIdentity(), hasher.getHashFunctionIdentity());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.gate;
+
+import java.util.Arrays;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A gate that places all the counters for a filter in a single block of 128
+ * counters, the size of a 64 byte cache line.
+ * <p>
+ * The block is selected by hashing all of the filter bits so checking a filter
+ * reads one block rather than one word per bit.  Because the block depends on
+ * the entire filter a filter that is contained in a recorded filter will
+ * generally select a different block, so this gate can only gate exact
+ * matches.  {@code mayMatch()} always returns true.
+ * </p>
+ */
+public class BlockedNibbleGate extends AbstractNibbleGate {
+    /**
+     * The number of counters in a block.
+     */
+    private static final int BLOCK_COUNTERS = 128;
+
+    /**
+     * The number of blocks.
+     */
+    private final int blocks;
+
+    /**
+     * Constructs the gate.
+     * @param shape the shape of the gate.
+     */
+    public BlockedNibbleGate(Shape shape) {
+        this(shape, Math.max(1, (shape.getNumberOfBits() + BLOCK_COUNTERS - 1) / BLOCK_COUNTERS));
+    }
+
+    private BlockedNibbleGate(Shape shape, int blocks) {
+        super(shape, blocks * BLOCK_COUNTERS);
+        this.blocks = blocks;
+    }
+
+    @Override
+    protected int[] getCounters(Hasher hasher) {
+        int[] bits = distinct(hasher.getBits(shape));
+        long hash = bits.length;
+        for (int bit : bits) {
+            hash = mix(hash * 31 + bit);
+        }
+        int base = (int) Long.remainderUnsigned(hash, blocks) * BLOCK_COUNTERS;
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = base + (bits[i] % BLOCK_COUNTERS);
+        }
+        return distinct(Arrays.stream(bits).iterator());
+    }
+
+    /**
+     * The 64 bit finalization mix from MurmurHash3.
+     * @param k the value to mix.
+     * @return the mixed value.
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public boolean mayMatch(Hasher hasher) {
+        verifyHasher(hasher);
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.gate;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A counting filter that gates a container.
+ * <p>
+ * The gate records every filter put into the container so that operations on
+ * filters that were never put can be rejected without consulting the index.
+ * A gate may report false positives but never false negatives.
+ * </p>
+ */
+public interface Gate {
+
+    /**
+     * Gets the shape of the gate.
+     * @return the shape used to create the gate bits from a hasher.
+     */
+    Shape getShape();
+
+    /**
+     * Records a filter in the gate.
+     * @param hasher the hasher for the filter.
+     */
+    default void merge(Hasher hasher) {
+        merge(hasher, 1);
+    }
+
+    /**
+     * Records a filter in the gate several times.
+     * @param hasher the hasher for the filter.
+     * @param count the number of times to record the filter.
+     */
+    void merge(Hasher hasher, int count);
+
+    /**
+     * Removes a filter from the gate.
+     * @param hasher the hasher for the filter.
+     */
+    default void remove(Hasher hasher) {
+        remove(hasher, 1);
+    }
+
+    /**
+     * Removes a filter from the gate several times.
+     * @param hasher the hasher for the filter.
+     * @param count the number of times to remove the filter.
+     */
+    void remove(Hasher hasher, int count);
+
+    /**
+     * Determines if the filter may have been recorded in the gate.
+     * Used before exact match operations such as get and remove.
+     * @param hasher the hasher for the filter.
+     * @return false if the filter has definitely not been recorded.
+     */
+    boolean mayContain(Hasher hasher);
+
+    /**
+     * Determines if the filter may be contained in a recorded filter.
+     * Used before search operations.
+     * @param hasher the hasher for the filter.
+     * @return false if no recorded filter can contain the filter.
+     */
+    boolean mayMatch(Hasher hasher);
+
+    /**
+     * Gets the estimated probability that {@code mayContain()} returns true for a
+     * filter that has not been recorded.
+     * @return the current estimated false positive rate.
+     */
+    double getFalsePositiveRate();
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.gate;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A gate with a 4 bit counter for each bit of the shape.
+ * <p>
+ * The gate is the counting union of all the recorded filters so it can gate
+ * both exact matches and searches.
+ * </p>
+ */
+public class NibbleGate extends AbstractNibbleGate {
+
+    /**
+     * Constructs the gate.
+     * @param shape the shape of the gate.
+     */
+    public NibbleGate(Shape shape) {
+        super(shape, shape.getNumberOfBits());
+    }
+
+    @Override
+    protected int[] getCounters(Hasher hasher) {
+        return distinct(hasher.getBits(shape));
+    }
+
+    @Override
+    public boolean mayMatch(Hasher hasher) {
+        return mayContain(hasher);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.gate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionValidator;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A gate that grows as filters are added, after the scalable Bloom filters of
+ * Almeida et al.
+ * <p>
+ * The gate is a list of NibbleGate layers. Filters are recorded in the newest
+ * layer and when its fill ratio reaches the point at which it would exceed its
+ * false positive rate a new layer is added.  Each layer holds {@code growth}
+ * times as many filters as the one before it and has {@code tightening} times its
+ * false positive rate, so the combined false positive rate stays below that of
+ * the initial shape.
+ * </p>
+ * <p>
+ * A filter is only removed when exactly one layer may contain it.  Otherwise
+ * the layer that recorded it is unknown and the counts are left in place, which
+ * can only cause false positives.
+ * </p>
+ */
+public class ScalableGate implements Gate {
+    /**
+     * The default growth of the capacity of each layer.
+     */
+    public static final int DEFAULT_GROWTH = 2;
+    /**
+     * The default tightening of the false positive rate of each layer.
+     */
+    public static final double DEFAULT_TIGHTENING = 0.5;
+
+    /**
+     * The shape requested for the gate.
+     */
+    private final Shape shape;
+    /**
+     * The growth of the capacity of each layer.
+     */
+    private final int growth;
+    /**
+     * The tightening of the false positive rate of each layer.
+     */
+    private final double tightening;
+    /**
+     * The layers, oldest first.
+     */
+    private final List<NibbleGate> layers;
+    /**
+     * The fill ratio at which the newest layer is full.
+     */
+    private double maxFill;
+
+    /**
+     * Constructs the gate with the default growth and tightening.
+     * @param shape the shape of the gate.  The number of items and probability are
+     * used for the first layer.
+     */
+    public ScalableGate(Shape shape) {
+        this(shape, DEFAULT_GROWTH, DEFAULT_TIGHTENING);
+    }
+
+    /**
+     * Constructs the gate.
+     * @param shape the shape of the gate.  The number of items and probability are
+     * used for the first layer.
+     * @param growth the factor by which the capacity of each layer grows.
+     * @param tightening the factor by which the false positive rate of each layer shrinks.
+     */
+    public ScalableGate(Shape shape, int growth, double tightening) {
+        if (growth < 1) {
+            throw new IllegalArgumentException("Growth must be at least 1");
+        }
+        if (tightening <= 0.0 || tightening >= 1.0) {
+            throw new IllegalArgumentException("Tightening must be between 0 and 1 exclusive");
+        }
+        this.shape = shape;
+        this.growth = growth;
+        this.tightening = tightening;
+        this.layers = new ArrayList<NibbleGate>();
+        addLayer();
+    }
+
+    /**
+     * Adds a new layer to the gate.
+     */
+    private void addLayer() {
+        int layer = layers.size();
+        long items = shape.getNumberOfItems() * (long) Math.pow(growth, layer);
+        double probability = shape.getProbability() * (1.0 - tightening) * Math.pow(tightening, layer);
+        Shape layerShape = new Shape(shape.getHashFunctionIdentity(), (int) Math.min(Integer.MAX_VALUE, items),
+                probability);
+        layers.add(new NibbleGate(layerShape));
+        maxFill = Math.pow(probability, 1.0 / layerShape.getNumberOfHashFunctions());
+    }
+
+    /**
+     * Gets the number of layers in the gate.
+     * @return the number of layers.
+     */
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    @Override
+    public Shape getShape() {
+        return shape;
+    }
+
+    @Override
+    public void merge(Hasher hasher, int count) {
+        verifyHasher(hasher);
+        // record a filter that is already present in the layer that holds it.
+        for (NibbleGate layer : layers) {
+            if (layer.mayContain(hasher)) {
+                layer.merge(hasher, count);
+                return;
+            }
+        }
+        NibbleGate newest = layers.get(layers.size() - 1);
+        newest.merge(hasher, count);
+        if (newest.getFillRatio() >= maxFill) {
+            addLayer();
+        }
+    }
+
+    @Override
+    public void remove(Hasher hasher, int count) {
+        verifyHasher(hasher);
+        NibbleGate found = null;
+        for (NibbleGate layer : layers) {
+            if (layer.mayContain(hasher)) {
+                if (found != null) {
+                    return;
+                }
+                found = layer;
+            }
+        }
+        if (found != null) {
+            found.remove(hasher, count);
+        }
+    }
+
+    @Override
+    public boolean mayContain(Hasher hasher) {
+        verifyHasher(hasher);
+        return layers.stream().anyMatch(layer -> layer.mayContain(hasher));
+    }
+
+    @Override
+    public boolean mayMatch(Hasher hasher) {
+        verifyHasher(hasher);
+        return layers.stream().anyMatch(layer -> layer.mayMatch(hasher));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A filter is a false positive if any layer reports it so the rate is
+     * {@code 1 - (1 - p1) * (1 - p2) ...} for the layer rates.
+     * </p>
+     */
+    @Override
+    public double getFalsePositiveRate() {
+        double negative = 1.0;
+        for (NibbleGate layer : layers) {
+            negative *= 1.0 - layer.getFalsePositiveRate();
+        }
+        return 1.0 - negative;
+    }
+
+    /**
+     * Verifies that the hasher has the same hash function as the shape.
+     * @param hasher the Hasher to check
+     */
+    private void verifyHasher(Hasher hasher) {
+        HashFunctionValidator.checkAreEqual(shape.getHashFunctionIdentity(), hasher.getHashFunctionIdentity());
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+import org.apache.commons.collections4.bloomfilter.BloomFilter;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.query.Plan;
+
+/**
+ * An index that picks its implementation from the workload.
+ * <p>
+ * The index tracks the population, the fill ratio of the filters and the mix of
+ * gets, searches and puts.  Every {@link #EVALUATION_INTERVAL} operations it
+ * chooses the implementation for the workload since the last evaluation:
+ * </p>
+ * <ul>
+ * <li>{@link Linear} while the population is smaller than {@link #SMALL_POPULATION}.</li>
+ * <li>{@link Trie8} when exact lookups outnumber searches.</li>
+ * <li>{@link FlatBloofi} when the filters are dense.</li>
+ * <li>{@link RangePacked} when the shape has at most {@link #LOW_K} hash functions.</li>
+ * <li>{@link FlatBloofi} otherwise.</li>
+ * </ul>
+ * <p>
+ * To keep a workload near a threshold from migrating back and forth, the index only
+ * migrates when the same implementation is chosen on {@link #STABLE_EVALUATIONS}
+ * consecutive evaluations and at least {@link #MIN_MIGRATION_INTERVAL} operations
+ * have passed since the last migration started.
+ * </p>
+ * <p>
+ * When the choice changes the new implementation is bulk loaded on the executor
+ * while the current one continues to answer requests.  Changes made during the
+ * migration are replayed on the new implementation before it replaces the current one.
+ * The words of every filter are kept so that any implementation can be loaded,
+ * which costs {@code numberOfBits/8} bytes per filter.
+ * </p>
+ * <p>
+ * All methods are synchronized.  A snapshot saved by this index is a snapshot of the
+ * current implementation and is loaded by that implementation.
+ * </p>
+ * @param <I> The index type
+ */
+public class AdaptiveIndex<I> implements Index<I> {
+
+    /**
+     * The implementations the index may use.
+     */
+    public enum Kind {
+        LINEAR, FLAT_BLOOFI, RANGE_PACKED, TRIE
+    }
+
+    /**
+     * The population below which the Linear implementation is used.
+     */
+    public static final int SMALL_POPULATION = 1000;
+    /**
+     * The number of hash functions at or below which the RangePacked implementation is used.
+     */
+    public static final int LOW_K = 4;
+    /**
+     * The fraction of enabled bits at or above which the filters are dense.
+     */
+    public static final double DENSE_FILL = 0.25;
+    /**
+     * The number of operations between evaluations of the workload.
+     */
+    public static final int EVALUATION_INTERVAL = 1024;
+    /**
+     * The number of consecutive evaluations that must choose an implementation before
+     * the index migrates to it.
+     */
+    public static final int STABLE_EVALUATIONS = 2;
+    /**
+     * The minimum number of operations between the start of one migration and the next.
+     */
+    public static final int MIN_MIGRATION_INTERVAL = 2 * EVALUATION_INTERVAL;
+
+    /**
+     * Function to convert BloomFilter to index.
+     */
+    private final Function<BloomFilter, I> func;
+    /**
+     * The shape of the bloom filters.
+     */
+    private final Shape shape;
+    /**
+     * The executor that migrations run on.
+     */
+    private final Executor executor;
+    /**
+     * The words of the filter for each index.
+     */
+    private final Map<I, long[]> filters;
+    /**
+     * The total number of enabled bits in the filters.
+     */
+    private long enabledBits;
+    /**
+     * The implementation answering requests.
+     */
+    private Index<I> current;
+    /**
+     * The kind of the current implementation.
+     */
+    private Kind kind;
+    /**
+     * The changes made during a migration, {@code null} if there is no migration.
+     */
+    private List<Consumer<Index<I>>> pendingChanges;
+    /**
+     * The number of completed migrations.
+     */
+    private int migrations;
+    /**
+     * The kind chosen by the last evaluation when it differs from the current kind,
+     * {@code null} otherwise.
+     */
+    private Kind candidate;
+    /**
+     * The number of consecutive evaluations that chose the candidate.
+     */
+    private int candidateEvaluations;
+    /**
+     * The number of operations since the last migration started.
+     */
+    private long sinceMigration = MIN_MIGRATION_INTERVAL;
+    /**
+     * The number of operations since the last evaluation.
+     */
+    private int operations;
+    /**
+     * The number of gets since the last evaluation.
+     */
+    private long gets;
+    /**
+     * The number of searches since the last evaluation.
+     */
+    private long searches;
+    /**
+     * The number of puts since the last evaluation.
+     */
+    private long puts;
+
+    /**
+     * Constructs an AdaptiveIndex that migrates on the common fork join pool.
+     * @param func The function to convert bloom filter to index object.
+     * @param shape the shape of the bloom filters.
+     */
+    public AdaptiveIndex(Function<BloomFilter, I> func, Shape shape) {
+        this(func, shape, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs an AdaptiveIndex.
+     * @param func The function to convert bloom filter to index object.
+     * @param shape the shape of the bloom filters.
+     * @param executor the executor to run migrations on.
+     */
+    public AdaptiveIndex(Function<BloomFilter, I> func, Shape shape, Executor executor) {
+        this.func = func;
+        this.shape = shape;
+        this.executor = executor;
+        this.filters = new HashMap<I, long[]>();
+        this.kind = Kind.LINEAR;
+        this.current = newIndex(kind, 0);
+    }
+
+    /**
+     * Creates an empty implementation.
+     * @param kind the kind of implementation to create.
+     * @param population the expected number of filters.
+     * @return the implementation.
+     */
+    private Index<I> newIndex(Kind kind, int population) {
+        switch (kind) {
+        case LINEAR:
+            return new Linear<I>(func, Integer.max(16, population), shape);
+        case FLAT_BLOOFI:
+            return new FlatBloofi<I>(func, shape);
+        case RANGE_PACKED:
+            return new RangePacked<I>(func, shape);
+        case TRIE:
+            return new Trie8<I>(func, population, shape);
+        default:
+            throw new IllegalArgumentException("Unknown kind " + kind);
+        }
+    }
+
+    /**
+     * Chooses the implementation for the workload.
+     * @param population the number of filters in the index.
+     * @param fillRatio the fraction of the filter bits that are enabled.
+     * @param gets the number of gets since the last evaluation.
+     * @param searches the number of searches since the last evaluation.
+     * @param puts the number of puts and removes since the last evaluation.
+     * @return the kind of implementation to use.
+     */
+    protected Kind choose(int population, double fillRatio, long gets, long searches, long puts) {
+        if (population < SMALL_POPULATION) {
+            return Kind.LINEAR;
+        }
+        if (gets > searches) {
+            return Kind.TRIE;
+        }
+        if (fillRatio >= DENSE_FILL) {
+            return Kind.FLAT_BLOOFI;
+        }
+        if (shape.getNumberOfHashFunctions() <= LOW_K) {
+            return Kind.RANGE_PACKED;
+        }
+        return Kind.FLAT_BLOOFI;
+    }
+
+    /**
+     * Counts an operation and evaluates the workload when the interval is reached.
+     */
+    private void tick() {
+        sinceMigration++;
+        if (++operations < EVALUATION_INTERVAL) {
+            return;
+        }
+        Kind target = choose(filters.size(), getFillRatio(), gets, searches, puts);
+        operations = 0;
+        gets = 0;
+        searches = 0;
+        puts = 0;
+        if (target == kind) {
+            candidate = null;
+            candidateEvaluations = 0;
+            return;
+        }
+        if (target == candidate) {
+            candidateEvaluations++;
+        } else {
+            candidate = target;
+            candidateEvaluations = 1;
+        }
+        if (pendingChanges == null && candidateEvaluations >= STABLE_EVALUATIONS
+                && sinceMigration >= MIN_MIGRATION_INTERVAL) {
+            migrate(target);
+        }
+    }
+
+    /**
+     * Starts a migration to a new implementation.
+     * @param target the kind of implementation to migrate to.
+     */
+    private void migrate(Kind target) {
+        Map<I, long[]> copy = new HashMap<I, long[]>(filters);
+        candidate = null;
+        candidateEvaluations = 0;
+        sinceMigration = 0;
+        pendingChanges = new ArrayList<Consumer<Index<I>>>();
+        executor.execute(() -> {
+            try {
+                Index<I> index = newIndex(target, copy.size());
+                Map<I, Hasher> entries = new HashMap<I, Hasher>(copy.size());
+                copy.forEach((idx, words) -> entries.put(idx, Snapshot.toHasher(words, shape)));
+                index.putAll(entries);
+                synchronized (this) {
+                    pendingChanges.forEach(change -> change.accept(index));
+                    current = index;
+                    kind = target;
+                    migrations++;
+                    pendingChanges = null;
+                }
+            } catch (RuntimeException e) {
+                // abandon the migration, the current implementation is still complete.
+                synchronized (this) {
+                    pendingChanges = null;
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Records a change to replay on the implementation being migrated to.
+     * @param change the change.
+     */
+    private void record(Consumer<Index<I>> change) {
+        if (pendingChanges != null) {
+            pendingChanges.add(change);
+        }
+    }
+
+    /**
+     * Gets the words of the filter for a hasher.
+     * @param hasher the hasher.
+     * @return the filter words.
+     */
+    private long[] getFilterWords(Hasher hasher) {
+        BitSet bits = new BitSet(shape.getNumberOfBits());
+        hasher.getBits(shape).forEachRemaining((IntConsumer) bits::set);
+        return bits.toLongArray();
+    }
+
+    /**
+     * Adds the words of a filter to the filters.
+     * @param idx the index of the filter.
+     * @param words the filter words.
+     */
+    private void addFilter(I idx, long[] words) {
+        long[] old = filters.put(idx, words);
+        if (old != null) {
+            enabledBits -= cardinality(old);
+        }
+        enabledBits += cardinality(words);
+    }
+
+    /**
+     * Removes the words of a filter from the filters.
+     * @param idx the index of the filter.
+     */
+    private void removeFilter(I idx) {
+        long[] old = filters.remove(idx);
+        if (old != null) {
+            enabledBits -= cardinality(old);
+        }
+    }
+
+    private static int cardinality(long[] words) {
+        int result = 0;
+        for (long word : words) {
+            result += Long.bitCount(word);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the kind of the current implementation.
+     * @return the kind of the current implementation.
+     */
+    public synchronized Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Determines if a migration is running.
+     * @return true if a migration is running.
+     */
+    public synchronized boolean isMigrating() {
+        return pendingChanges != null;
+    }
+
+    /**
+     * Gets the number of completed migrations.
+     * @return the migration count.
+     */
+    public synchronized int getMigrationCount() {
+        return migrations;
+    }
+
+    /**
+     * Gets the fraction of the filter bits that are enabled.
+     * @return the fill ratio, 0 if the index is empty.
+     */
+    public synchronized double getFillRatio() {
+        return filters.isEmpty() ? 0.0 : enabledBits / ((double) filters.size() * shape.getNumberOfBits());
+    }
+
+    @Override
+    public Shape getShape() {
+        return shape;
+    }
+
+    @Override
+    public synchronized Optional<I> get(Hasher hasher) {
+        gets++;
+        tick();
+        return current.get(hasher);
+    }
+
+    @Override
+    public synchronized void put(I idx, Hasher hasher) {
+        addFilter(idx, getFilterWords(hasher));
+        current.put(idx, hasher);
+        record(index -> index.put(idx, hasher));
+        puts++;
+        tick();
+    }
+
+    @Override
+    public synchronized void remove(I idx) {
+        removeFilter(idx);
+        current.remove(idx);
+        record(index -> index.remove(idx));
+        puts++;
+        tick();
+    }
+
+    @Override
+    public synchronized void putAll(Map<I, Hasher> entries) {
+        entries.forEach((idx, hasher) -> addFilter(idx, getFilterWords(hasher)));
+        current.putAll(entries);
+        Map<I, Hasher> copy = new HashMap<I, Hasher>(entries);
+        record(index -> index.putAll(copy));
+        puts += entries.size();
+        tick();
+    }
+
+    @Override
+    public synchronized void removeAll(Collection<I> indexes) {
+        indexes.forEach(this::removeFilter);
+        current.removeAll(indexes);
+        List<I> copy = new ArrayList<I>(indexes);
+        record(index -> index.removeAll(copy));
+        puts += indexes.size();
+        tick();
+    }
+
+    @Override
+    public synchronized Set<I> search(Hasher hasher) {
+        searches++;
+        tick();
+        return current.search(hasher);
+    }
+
+    @Override
+    public synchronized Set<I> search(Plan plan) {
+        searches++;
+        tick();
+        return current.search(plan);
+    }
+
+    @Override
+    public synchronized List<Set<I>> searchAll(List<Hasher> hashers) {
+        searches += hashers.size();
+        tick();
+        return current.searchAll(hashers);
+    }
+
+    @Override
+    public synchronized int count(Hasher hasher) {
+        searches++;
+        tick();
+        return current.count(hasher);
+    }
+
+    @Override
+    public synchronized boolean exists(Hasher hasher) {
+        searches++;
+        tick();
+        return current.exists(hasher);
+    }
+
+    @Override
+    public synchronized Cursor<I> cursor(Hasher hasher, long position) {
+        searches++;
+        tick();
+        return current.cursor(hasher, position);
+    }
+
+    @Override
+    public synchronized Spliterator<I> spliterator(Hasher hasher) {
+        searches++;
+        tick();
+        return current.spliterator(hasher);
+    }
+
+    @Override
+    public synchronized void save(OutputStream out) throws IOException {
+        current.save(out);
+    }
+
+    @Override
+    public synchronized Set<I> getAll() {
+        return new HashSet<I>(filters.keySet());
+    }
+
+    @Override
+    public synchronized int getFilterCount() {
+        return filters.size();
+    }
+
+    @Override
+    public synchronized I create(Hasher hasher) {
+        return current.create(hasher);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AdaptiveIndex[kind=%s population=%s fill=%.3f migrations=%s migrating=%s]", kind,
+                filters.size(), getFillRatio(), migrations, pendingChanges != null);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+/**
+ * The storage for the blocks of a FlatBloofi.
+ * <p>
+ * Each block holds 64 filters as one word for each bit of the shape, the word
+ * having a bit enabled for each filter that has that shape bit enabled.  Each
+ * block also has a busy word that indicates which of its 64 filters are in use.
+ * Blocks are only ever added, never removed.
+ * </p>
+ */
+public interface BlockStore {
+
+    /**
+     * Gets the number of bits in the shape of the stored filters.
+     * @return the number of words in a block, excluding the busy word.
+     */
+    int getNumberOfBits();
+
+    /**
+     * Gets the number of blocks.
+     * @return the number of blocks.
+     */
+    int getBlockCount();
+
+    /**
+     * Adds a block with all its words zero.
+     */
+    void addBlock();
+
+    /**
+     * Gets a word of a block.
+     * @param block the block number.
+     * @param bit the shape bit of the word.
+     * @return the word.
+     */
+    long getWord(int block, int bit);
+
+    /**
+     * Sets a word of a block.
+     * @param block the block number.
+     * @param bit the shape bit of the word.
+     * @param word the word.
+     */
+    void setWord(int block, int bit, long word);
+
+    /**
+     * Gets the busy word of a block.
+     * @param block the block number.
+     * @return the busy word.
+     */
+    long getBusy(int block);
+
+    /**
+     * Sets the busy word of a block.
+     * @param block the block number.
+     * @param word the busy word.
+     */
+    void setBusy(int block, long word);
+}
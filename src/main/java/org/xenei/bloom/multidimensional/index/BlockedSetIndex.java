@@ -17,6 +17,9 @@
  */
 package org.xenei.bloom.multidimensional.index;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -28,11 +31,11 @@ import java.util.Set;
 import java.util.function.Function;
 
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
-import org.apache.commons.collections4.bloomfilter.HasherBloomFilter;
 import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
 import org.xenei.bloom.filter.EWAHBloomFilter;
 import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.IdFunction;
 import com.googlecode.javaewah.datastructure.BitSet;
 
 
@@ -137,8 +140,7 @@ public class BlockedSetIndex<I> implements Index<I> {
 
     @Override
     public Optional<I> get(Hasher hasher) {
-        EWAHBloomFilter filter = new EWAHBloomFilter( hasher, shape );
-        I result = func.apply(filter);
+        I result = create( hasher );
         return valueToIdx.containsKey( result ) ? Optional.of(result) : Optional.empty();
     }
 
@@ -239,8 +241,12 @@ public class BlockedSetIndex<I> implements Index<I> {
         }
     }
 
-    @Override
-    public Set<I> search(Hasher hasher) {
+    /**
+     * Creates the bitset of internal indexes for the filters that match the hasher.
+     * @param hasher the hasher to match.
+     * @return the bitset of matching internal indexes or {@code null} if there are no matches.
+     */
+    private BitSet match(Hasher hasher) {
         EWAHBloomFilter filter = new EWAHBloomFilter( hasher, shape );
         long[] bits = filter.getBits();
         BitSet answer = null;
@@ -255,10 +261,14 @@ public class BlockedSetIndex<I> implements Index<I> {
                 if (bitScan != 0)
                 {
                     BitSet union = null;
+                    BitSet[] block = list[listIdx];
+                    if (block == null)
+                    {
+                        return null;
+                    }
 
                     for (int bitIdx : byteTable[bitScan])
                     {
-                        BitSet[] block = list[listIdx];
                         BitSet bitSet = block[bitIdx-1];
                         if (bitSet != null)
                         {
@@ -270,7 +280,7 @@ public class BlockedSetIndex<I> implements Index<I> {
                     }
                     if (union == null)
                     {
-                        return Collections.emptySet();
+                        return null;
                     }
                     if (answer == null)
                     {
@@ -280,17 +290,62 @@ public class BlockedSetIndex<I> implements Index<I> {
                         answer.and( union );
                         if (answer.empty())
                         {
-                            return Collections.emptySet();
+                            return null;
                         }
                     }
                 }
             }
         }
+        if (answer == null)
+        {
+            // the empty filter matches every entry.
+            answer = new BitSet( values.size() );
+            answer.set( 0, values.size() );
+            answer.andNot( empty );
+        }
+        return answer;
+    }
+
+    @Override
+    public Set<I> search(Hasher hasher) {
+        BitSet answer = match(hasher);
+        if (answer == null)
+        {
+            return Collections.emptySet();
+        }
         Set<I> result = new HashSet<I>();
         answer.iterator().forEachRemaining( i -> result.add( values.get(i)) );
         return result;
     }
 
+    @Override
+    public int count(Hasher hasher) {
+        BitSet answer = match(hasher);
+        return answer == null ? 0 : answer.cardinality();
+    }
+
+    @Override
+    public boolean exists(Hasher hasher) {
+        BitSet answer = match(hasher);
+        return answer != null && !answer.empty();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The position is the internal filter position.
+     * </p>
+     */
+    @Override
+    public Cursor<I> cursor(Hasher hasher, long position) {
+        BitSet answer = match(hasher);
+        if (answer == null)
+        {
+            return new WordCursor<I>(i -> 0L, values::get, 0, 0);
+        }
+        return new WordCursor<I>(answer::getWord, values::get, answer.getNumberOfWords(), Long.max(0, position));
+    }
+
     @Override
     public int getFilterCount() {
         return valueToIdx.size();
@@ -298,7 +353,53 @@ public class BlockedSetIndex<I> implements Index<I> {
 
     @Override
     public I create(Hasher hasher) {
-        return func.apply(new HasherBloomFilter( hasher, shape ));
+        return IdFunction.create( func, hasher, shape );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The body is the list of filters, rebuilt from the byte blocks.
+     * </p>
+     */
+    @Override
+    public void save(OutputStream out) throws IOException {
+        Map<Integer,long[]> filters = new HashMap<Integer,long[]>();
+        int length = (shape.getNumberOfBytes() + Long.BYTES - 1) / Long.BYTES;
+        valueToIdx.values().forEach(idx -> filters.put(idx, new long[length]));
+        for (int blockIdx = 0; blockIdx < list.length; blockIdx++) {
+            BitSet[] block = list[blockIdx];
+            if (block != null) {
+                for (int bitIdx = 0; bitIdx < BLOCK_SIZE; bitIdx++) {
+                    BitSet bitSet = block[bitIdx];
+                    if (bitSet != null) {
+                        long value = ((long) bitIdx + 1) << ((blockIdx % Long.BYTES) * Byte.SIZE);
+                        for (int idx = bitSet.nextSetBit(0); idx >= 0; idx = bitSet.nextSetBit(idx + 1)) {
+                            long[] words = filters.get(idx);
+                            if (words != null) {
+                                words[blockIdx / Long.BYTES] |= value;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        Snapshot.saveFilters(out, BlockedSetIndex.class.getSimpleName(), shape, filters.values());
+    }
+
+    /**
+     * Loads a BlockedSetIndex from a snapshot.
+     * @param <I> The index type
+     * @param func the function to convert Bloom filter to index object.
+     * @param shape the shape of the contained Bloom filters.
+     * @param in the stream to read the snapshot from.
+     * @return the BlockedSetIndex.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is not a BlockedSetIndex of the shape.
+     */
+    public static <I> BlockedSetIndex<I> load(Function<BloomFilter,I> func, Shape shape, InputStream in)
+            throws IOException {
+        return Snapshot.loadFilters(in, BlockedSetIndex.class.getSimpleName(), new BlockedSetIndex<I>(func, shape));
     }
 
     @Override
@@ -308,7 +409,7 @@ public class BlockedSetIndex<I> implements Index<I> {
 
     @Override
     public Set<I> getAll() {
-        return new HashSet<I>( values );
+        return new HashSet<I>( valueToIdx.keySet() );
     }
 
 }
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A BlockStore outside of the heap, either in direct buffers or in a memory
+ * mapped file.
+ * <p>
+ * Blocks are allocated in fixed size segments so the store grows without
+ * copying.  A file store may be reopened, the blocks are used in place and are
+ * not rebuilt.
+ * </p>
+ * <p>
+ * The file starts with a 64 byte header containing a magic number, the number
+ * of bits in the shape, the number of blocks in a segment and the number of
+ * blocks. The segments follow the header.  All values are little endian.
+ * </p>
+ */
+public final class BufferBlockStore implements BlockStore, Closeable {
+    /**
+     * The default number of blocks in a segment.
+     */
+    public static final int DEFAULT_BLOCKS_PER_SEGMENT = 64;
+    /**
+     * The magic number at the start of a file.
+     */
+    private static final long MAGIC = 0x314946424c464d42L;
+    /**
+     * The number of bytes in the file header.
+     */
+    private static final int HEADER_BYTES = 64;
+    private static final int BITS_OFFSET = 8;
+    private static final int SEGMENT_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+
+    /**
+     * The number of bits in the shape.
+     */
+    private final int numberOfBits;
+    /**
+     * The number of words in a block, including the busy word.
+     */
+    private final int blockWords;
+    /**
+     * The number of blocks in a segment.
+     */
+    private final int blocksPerSegment;
+    /**
+     * The file channel, null for direct buffers.
+     */
+    private final FileChannel channel;
+    /**
+     * The file header, null for direct buffers.
+     */
+    private final MappedByteBuffer header;
+    /**
+     * The segment buffers.
+     */
+    private final List<ByteBuffer> segments;
+    /**
+     * The segment buffers as longs.
+     */
+    private final List<LongBuffer> words;
+    /**
+     * The number of blocks.
+     */
+    private int blockCount;
+
+    private BufferBlockStore(int numberOfBits, int blocksPerSegment, FileChannel channel, MappedByteBuffer header) {
+        if ((long) blocksPerSegment * (numberOfBits + 1) * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size exceeds 2GB, reduce the blocks per segment");
+        }
+        this.numberOfBits = numberOfBits;
+        this.blockWords = numberOfBits + 1;
+        this.blocksPerSegment = blocksPerSegment;
+        this.channel = channel;
+        this.header = header;
+        this.segments = new ArrayList<ByteBuffer>();
+        this.words = new ArrayList<LongBuffer>();
+        this.blockCount = 0;
+    }
+
+    /**
+     * Creates a store in direct buffers with the default segment size.
+     * @param shape the shape of the stored filters.
+     * @return the store.
+     */
+    public static BufferBlockStore direct(Shape shape) {
+        return direct(shape, DEFAULT_BLOCKS_PER_SEGMENT);
+    }
+
+    /**
+     * Creates a store in direct buffers.
+     * @param shape the shape of the stored filters.
+     * @param blocksPerSegment the number of 64 filter blocks to allocate at a time.
+     * @return the store.
+     */
+    public static BufferBlockStore direct(Shape shape, int blocksPerSegment) {
+        return new BufferBlockStore(shape.getNumberOfBits(), blocksPerSegment, null, null);
+    }
+
+    /**
+     * Opens or creates a store in a memory mapped file with the default segment size.
+     * @param file the file to map.
+     * @param shape the shape of the stored filters.
+     * @return the store.
+     * @throws IOException on IO error or if the file is not a block store.
+     * @throws IllegalArgumentException if the file was created for a different number of bits.
+     */
+    public static BufferBlockStore open(Path file, Shape shape) throws IOException {
+        return open(file, shape, DEFAULT_BLOCKS_PER_SEGMENT);
+    }
+
+    /**
+     * Opens or creates a store in a memory mapped file.
+     * @param file the file to map.
+     * @param shape the shape of the stored filters.
+     * @param blocksPerSegment the number of 64 filter blocks to map at a time.  Ignored
+     * if the file exists.
+     * @return the store.
+     * @throws IOException on IO error or if the file is not a block store.
+     * @throws IllegalArgumentException if the file was created for a different number of bits.
+     */
+    public static BufferBlockStore open(Path file, Shape shape, int blocksPerSegment) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            boolean exists = channel.size() > 0;
+            if (exists && channel.size() < HEADER_BYTES) {
+                throw new IOException(String.format("%s is not a block store", file));
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (exists) {
+                if (header.getLong(0) != MAGIC) {
+                    throw new IOException(String.format("%s is not a block store", file));
+                }
+                if (header.getInt(BITS_OFFSET) != shape.getNumberOfBits()) {
+                    throw new IllegalArgumentException(String.format("%s has %s bits, shape has %s", file,
+                            header.getInt(BITS_OFFSET), shape.getNumberOfBits()));
+                }
+                BufferBlockStore store = new BufferBlockStore(shape.getNumberOfBits(),
+                        header.getInt(SEGMENT_OFFSET), channel, header);
+                int count = header.getInt(COUNT_OFFSET);
+                while (store.blockCount < count) {
+                    store.allocate();
+                }
+                return store;
+            }
+            header.putLong(0, MAGIC);
+            header.putInt(BITS_OFFSET, shape.getNumberOfBits());
+            header.putInt(SEGMENT_OFFSET, blocksPerSegment);
+            header.putInt(COUNT_OFFSET, 0);
+            return new BufferBlockStore(shape.getNumberOfBits(), blocksPerSegment, channel, header);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Allocates the next block, adding a segment if necessary.
+     */
+    private void allocate() {
+        if (blockCount == segments.size() * blocksPerSegment) {
+            int segmentBytes = blocksPerSegment * blockWords * Long.BYTES;
+            ByteBuffer segment;
+            if (channel == null) {
+                segment = ByteBuffer.allocateDirect(segmentBytes);
+            } else {
+                try {
+                    segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                            HEADER_BYTES + (long) segments.size() * segmentBytes, segmentBytes);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to extend block store", e);
+                }
+            }
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.add(segment);
+            words.add(segment.asLongBuffer());
+        }
+        blockCount++;
+    }
+
+    /**
+     * Gets the position of a word in its segment.
+     * @param block the block number.
+     * @param word the word within the block.
+     * @return the position of the word.
+     */
+    private int position(int block, int word) {
+        return (block % blocksPerSegment) * blockWords + word;
+    }
+
+    @Override
+    public int getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public void addBlock() {
+        allocate();
+        if (header != null) {
+            header.putInt(COUNT_OFFSET, blockCount);
+        }
+    }
+
+    @Override
+    public long getWord(int block, int bit) {
+        return words.get(block / blocksPerSegment).get(position(block, bit + 1));
+    }
+
+    @Override
+    public void setWord(int block, int bit, long word) {
+        words.get(block / blocksPerSegment).put(position(block, bit + 1), word);
+    }
+
+    @Override
+    public long getBusy(int block) {
+        return words.get(block / blocksPerSegment).get(position(block, 0));
+    }
+
+    @Override
+    public void setBusy(int block, long word) {
+        words.get(block / blocksPerSegment).put(position(block, 0), word);
+    }
+
+    /**
+     * Writes any changes to a mapped file to the storage device.
+     */
+    public void force() {
+        if (header != null) {
+            segments.forEach(segment -> ((MappedByteBuffer) segment).force());
+            header.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            force();
+            channel.close();
+        }
+    }
+}
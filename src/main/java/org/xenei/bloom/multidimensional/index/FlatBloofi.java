@@ -17,23 +17,30 @@
  */
 package org.xenei.bloom.multidimensional.index;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.PrimitiveIterator;
-import java.util.function.Consumer;
+import java.util.Spliterator;
 import java.util.function.Function;
 import java.util.function.IntConsumer;
-import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
-import org.apache.commons.collections4.bloomfilter.HasherBloomFilter;
 import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
-import org.xenei.bloom.filter.EWAHBloomFilter;
+import org.apache.commons.collections4.bloomfilter.hasher.StaticHasher;
 import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.IdFunction;
+import org.xenei.bloom.multidimensional.query.Plan;
 import com.googlecode.javaewah.datastructure.BitSet;
 
 /**
@@ -43,6 +50,12 @@ import com.googlecode.javaewah.datastructure.BitSet;
  * Originally from
  * https://github.com/lemire/bloofi/blob/master/src/mvm/provenance/FlatBloomFilterIndex.java
  *
+ * <p>
+ * The blocks of transposed filters are kept in a BlockStore.  By default this is
+ * on the heap, a BufferBlockStore keeps them in direct buffers or a memory mapped
+ * file.
+ * </p>
+ *
  * @param <I> The index type
  */
 public final class FlatBloofi<I> implements Index<I> {
@@ -53,11 +66,11 @@ public final class FlatBloofi<I> implements Index<I> {
     private final Shape shape;
 
     /**
-     * A list of buffers.
-     * Each entry in the buffer is 64 filters.
-     * Each long in the long[] is a bit in the bloom filter.
+     * The blocks of filters.
+     * Each block is 64 filters.
+     * Each word in the block is a bit in the bloom filter.
      */
-    private ArrayList<long[]> buffer;
+    private final BlockStore store;
 
     /**
      * A bitset that indicates which entries are in use. entry/64 = buffer index.
@@ -69,6 +82,11 @@ public final class FlatBloofi<I> implements Index<I> {
      */
     private final List<I> values;
 
+    /**
+     * A map of values to their entry in the busy bit set.
+     */
+    private final Map<I,Integer> valueToIdx;
+
     /**
      * Function to convert Hasher to index.
      */
@@ -81,11 +99,71 @@ public final class FlatBloofi<I> implements Index<I> {
      * @param shape the Shape of the contained Bloom filters.
      */
     public FlatBloofi(Function<BloomFilter,I> func, Shape shape) {
+        this(func, shape, new HeapBlockStore(shape.getNumberOfBits()));
+    }
+
+    /**
+     * Constructs a flat bloofi in a block store.
+     * <p>
+     * If the store already contains blocks, for example a reopened BufferBlockStore,
+     * the blocks are used as they are.  Only the index objects are recalculated,
+     * from the filters in the blocks.
+     * </p>
+     * @param func the function to convert Bloom filter to index object.
+     * @param shape the Shape of the contained Bloom filters.
+     * @param store the store for the blocks of filters.
+     * @throws IllegalArgumentException if the store is for a different number of bits.
+     */
+    public FlatBloofi(Function<BloomFilter,I> func, Shape shape, BlockStore store) {
+        if (store.getNumberOfBits() != shape.getNumberOfBits()) {
+            throw new IllegalArgumentException(String.format("Store has %s bits, shape has %s",
+                    store.getNumberOfBits(), shape.getNumberOfBits()));
+        }
         this.func = func;
         this.shape = shape;
-        this.buffer = new ArrayList<long[]>();
+        this.store = store;
         this.busy = new BitSet(0);
         this.values = new ArrayList<I>();
+        this.valueToIdx = new HashMap<I,Integer>();
+        load();
+    }
+
+    /**
+     * Loads the busy entries and index objects from the blocks in the store.
+     * Each block is transposed to recover its filters.
+     */
+    private void load() {
+        int blocks = store.getBlockCount();
+        if (blocks == 0) {
+            return;
+        }
+        busy.resize(blocks * Long.SIZE);
+        for (int block = 0; block < blocks; block++) {
+            long inUse = store.getBusy(block);
+            if (inUse == 0) {
+                continue;
+            }
+            java.util.BitSet[] filters = new java.util.BitSet[Long.SIZE];
+            for (int bit = 0; bit < shape.getNumberOfBits(); bit++) {
+                long w = store.getWord(block, bit) & inUse;
+                while (w != 0) {
+                    int slot = Long.numberOfTrailingZeros(w);
+                    if (filters[slot] == null) {
+                        filters[slot] = new java.util.BitSet(shape.getNumberOfBits());
+                    }
+                    filters[slot].set(bit);
+                    w &= w - 1;
+                }
+            }
+            for (long w = inUse; w != 0; w &= w - 1) {
+                int slot = Long.numberOfTrailingZeros(w);
+                java.util.BitSet filter = filters[slot] == null ? new java.util.BitSet() : filters[slot];
+                Hasher hasher = new StaticHasher(filter.stream().boxed().iterator(), shape);
+                int idx = block * Long.SIZE + slot;
+                busy.set(idx);
+                register(idx, create(hasher));
+            }
+        }
     }
 
     /**
@@ -93,10 +171,10 @@ public final class FlatBloofi<I> implements Index<I> {
      * @param idx the index of the bloom filter in the busy bit set.
      */
     private void clearBloomAt(int idx) {
-        final long[] mybuffer = buffer.get(idx / 64);
+        final int block = idx / 64;
         final long mask = ~(1l << idx);
-        for (int k = 0; k < mybuffer.length; ++k) {
-            mybuffer[k] &= mask;
+        for (int k = 0; k < shape.getNumberOfBits(); ++k) {
+            store.setWord(block, k, store.getWord(block, k) & mask);
         }
     }
 
@@ -105,113 +183,273 @@ public final class FlatBloofi<I> implements Index<I> {
      * @param idx the index of the bloom filter in the busy set.
      * @param hasher the hasher to generate the bits to turn on.
      */
-    private void setBloomAt(int idx, BloomFilter filter) {
-        final long[] mybuffer = buffer.get(idx / 64);
+    private void setBloomAt(int idx, Hasher hasher) {
+        final int block = idx / 64;
         final long mask = (1l << idx);
-        filter.getHasher().getBits(shape).forEachRemaining((IntConsumer) i -> mybuffer[i] |= mask);
+        hasher.getBits(shape).forEachRemaining(
+                (IntConsumer) i -> store.setWord(block, i, store.getWord(block, i) | mask));
     }
 
     @Override
     public Optional<I> get(Hasher hasher) {
-        BitSet answer = new BitSet(busy.size());
-        answer.or(busy);
-        Set<Integer> indexes = new HashSet<Integer>();
-        hasher.getBits(shape).forEachRemaining((Consumer<Integer>) indexes::add);
-
-        for (int bufferNumber = 0; bufferNumber < buffer.size(); ++bufferNumber) {
-            if (answer.cardinality() == 0) {
-                return Optional.empty();
-            }
-            long[] buf = buffer.get(bufferNumber);
-            for (int bitIdx = 0; bitIdx < buf.length; bitIdx++) {
-                long l = buf[bitIdx];
-                if (indexes.contains(bitIdx)) {
-                    l &= 0xffffffffffffffffL;
-                } else {
-                    l ^= 0xffffffffffffffffL;
-                }
-                for (int bitNumber = 0; bitNumber < Long.SIZE; bitNumber++) {
-                    int answIdx = bitNumber + (bufferNumber * Long.SIZE);
-                    if (answer.get(answIdx)) {
-                        answer.set(answIdx, (l & (1L << bitNumber)) > 0);
-                    }
-                }
-            }
-        }
-        if (answer.cardinality() > 1) {
-            throw new IllegalStateException();
-        }
-        int result = answer.nextSetBit(0);
-        if (result == -1)
-        {
-            return Optional.empty();
-        }
-        return Optional.of( values.get( result ) );
+        I result = create(hasher);
+        return valueToIdx.containsKey( result ) ? Optional.of(result) : Optional.empty();
     }
 
     @Override
     public void put(I result, Hasher hasher) {
-        if (get( hasher ).isEmpty())
+        if (!valueToIdx.containsKey(result))
         {
-            int idx = busy.nextUnsetBit(0);
-            if (idx < 0) {
-                // extend the busy
-                idx = busy.size();
-                busy.resize(idx + 64);
-                // int longCount = Double.valueOf(Math.ceil(shape.getNumberOfBits() / (double)
-                // Long.SIZE)).intValue();
-                buffer.add(new long[shape.getNumberOfBits()]);
-            }
-            BloomFilter filter = new EWAHBloomFilter( hasher, shape);
-            setBloomAt(idx, filter);
-            busy.set(idx);
-            while (values.size() < idx+1)
-            {
-                values.add( null );
+            putAt(busy.nextUnsetBit(0), result, hasher);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The search for free entries continues from the last entry filled rather
+     * than restarting at the beginning of the index for each filter.
+     * </p>
+     */
+    @Override
+    public void putAll(Map<I, Hasher> entries) {
+        int idx = 0;
+        for (Map.Entry<I, Hasher> entry : entries.entrySet()) {
+            if (!valueToIdx.containsKey(entry.getKey())) {
+                idx = putAt(busy.nextUnsetBit(idx), entry.getKey(), entry.getValue());
             }
-            values.set(idx, result);
         }
     }
 
+    /**
+     * Puts the filter at a free entry, extending the buffers if there is none.
+     * @param idx the free entry in the busy set or -1 if there is none.
+     * @param result the index value.
+     * @param hasher the hasher to generate the bits to turn on.
+     * @return the entry the filter was put at.
+     */
+    private int putAt(int idx, I result, Hasher hasher) {
+        if (idx < 0) {
+            // extend the busy
+            idx = busy.size();
+            busy.resize(idx + 64);
+            store.addBlock();
+        }
+        setBloomAt(idx, hasher);
+        busy.set(idx);
+        store.setBusy(idx / 64, busy.getWord(idx / 64));
+        register(idx, result);
+        return idx;
+    }
+
+    /**
+     * Records the index object for an entry.
+     * @param idx the entry in the busy set.
+     * @param result the index object.
+     */
+    private void register(int idx, I result) {
+        while (values.size() < idx+1)
+        {
+            values.add( null );
+        }
+        values.set(idx, result);
+        valueToIdx.put(result, idx);
+    }
+
     @Override
     public void remove(I index) {
-        int idx = values.indexOf( index );
-        if (idx > -1)
+        Integer idx = valueToIdx.remove( index );
+        if (idx != null)
         {
             busy.unset(idx);
+            store.setBusy(idx / 64, busy.getWord(idx / 64));
             clearBloomAt(idx);
             values.set( idx,  null );
         }
     }
 
+    /**
+     * Matches the bit indexes against a single buffer.
+     * @param bufferNumber the buffer to match against.
+     * @param bits the bit indexes that must be enabled.
+     * @return the word with a bit enabled for each matching filter in the buffer.
+     */
+    private long match(int bufferNumber, int[] bits) {
+        long w = busy.getWord(bufferNumber);
+        for (int i = 0; i < bits.length && w != 0; i++) {
+            w &= store.getWord(bufferNumber, bits[i]);
+        }
+        return w;
+    }
+
     @Override
     public Set<I> search(Hasher hasher) {
-        Set<Integer> answer = new HashSet<Integer>();
-        for (int i = 0; i < buffer.size(); ++i) {
-            long w = ~0l;
-            PrimitiveIterator.OfInt iter = hasher.getBits(shape);
+        int[] bits = WordSearch.getBits(hasher, shape);
+        Set<I> answer = new HashSet<I>();
+        for (int i = 0; i < store.getBlockCount(); ++i) {
+            WordSearch.collect(answer, values, i, match(i, bits));
+        }
+        return answer;
+    }
 
-            while (iter.hasNext()) {
-                w &= buffer.get(i)[iter.nextInt()];
-            }
-            while (w != 0) {
-                long t = w & -w;
-                answer.add(i * Long.SIZE + Long.bitCount(t - 1));
-                w ^= t;
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each 64 filter buffer is visited once and all the queries are tested against
+     * it while it is in the cache. Identical queries are only evaluated once.
+     * </p>
+     */
+    @Override
+    public List<Set<I>> searchAll(List<Hasher> hashers) {
+        Map<java.util.BitSet, Set<I>> queries = new LinkedHashMap<java.util.BitSet, Set<I>>();
+        List<java.util.BitSet> keys = new ArrayList<java.util.BitSet>(hashers.size());
+        for (Hasher hasher : hashers) {
+            java.util.BitSet key = WordSearch.getFilter(hasher, shape);
+            queries.computeIfAbsent(key, k -> new HashSet<I>());
+            keys.add(key);
+        }
+        int[][] bits = queries.keySet().stream().map(bs -> bs.stream().toArray()).toArray(int[][]::new);
+        List<Set<I>> answers = new ArrayList<Set<I>>(queries.values());
+        for (int i = 0; i < store.getBlockCount(); ++i) {
+            for (int q = 0; q < bits.length; q++) {
+                WordSearch.collect(answers.get(q), values, i, match(i, bits[q]));
             }
+        }
+        return WordSearch.distribute(keys, queries);
+    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The plan is evaluated with word by word bitmap operations over the index.
+     * </p>
+     */
+    @Override
+    public Set<I> search(Plan plan) {
+        long[] answer = plan.evaluate(new WordAlgebra(store.getBlockCount(), this::match));
+        Set<I> result = new HashSet<I>();
+        for (int i = 0; i < answer.length; i++) {
+            WordSearch.collect(result, values, i, answer[i]);
         }
-        return answer.stream().map( i -> values.get(i) ).collect( Collectors.toSet() );
+        return result;
+    }
+
+    @Override
+    public int count(Hasher hasher) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        int count = 0;
+        for (int i = 0; i < store.getBlockCount(); ++i) {
+            count += Long.bitCount(match(i, bits));
+        }
+        return count;
+    }
+
+    @Override
+    public boolean exists(Hasher hasher) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        for (int i = 0; i < store.getBlockCount(); ++i) {
+            if (match(i, bits) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The position is the internal filter position. Matches are calculated one
+     * 64 filter buffer at a time as the cursor advances.
+     * </p>
+     */
+    @Override
+    public Cursor<I> cursor(Hasher hasher, long position) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        return new WordCursor<I>(i -> match(i, bits), values::get, store.getBlockCount(), Long.max(0, position));
+    }
+
+    @Override
+    public Spliterator<I> spliterator(Hasher hasher) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        return new WordCursor<I>(i -> match(i, bits), values::get, store.getBlockCount(), 0);
     }
 
     @Override
     public int getFilterCount() {
-        return values.size();
+        return busy.cardinality();
     }
 
     @Override
     public I create(Hasher hasher) {
-        return func.apply(new HasherBloomFilter( hasher, shape ));
+        return IdFunction.create( func, hasher, shape );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The body is the number of blocks followed by the busy word and bit words of
+     * each block.
+     * </p>
+     */
+    @Override
+    public void save(OutputStream out) throws IOException {
+        Snapshot.Writer writer = new Snapshot.Writer(out, FlatBloofi.class.getSimpleName(), shape);
+        DataOutput data = writer.getOutput();
+        data.writeInt(store.getBlockCount());
+        for (int block = 0; block < store.getBlockCount(); block++) {
+            data.writeLong(store.getBusy(block));
+            for (int bit = 0; bit < shape.getNumberOfBits(); bit++) {
+                data.writeLong(store.getWord(block, bit));
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Loads a FlatBloofi from a snapshot into a heap block store.
+     * @param <I> The index type
+     * @param func the function to convert Bloom filter to index object.
+     * @param shape the Shape of the contained Bloom filters.
+     * @param in the stream to read the snapshot from.
+     * @return the FlatBloofi.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is not a FlatBloofi of the shape.
+     */
+    public static <I> FlatBloofi<I> load(Function<BloomFilter,I> func, Shape shape, InputStream in)
+            throws IOException {
+        return load(func, shape, in, new HeapBlockStore(shape.getNumberOfBits()));
+    }
+
+    /**
+     * Loads a FlatBloofi from a snapshot into an empty block store.
+     * The blocks are copied into the store word for word.
+     * @param <I> The index type
+     * @param func the function to convert Bloom filter to index object.
+     * @param shape the Shape of the contained Bloom filters.
+     * @param in the stream to read the snapshot from.
+     * @param store the empty store to load the blocks into.
+     * @return the FlatBloofi.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is not a FlatBloofi of the shape
+     * or the store is not empty.
+     */
+    public static <I> FlatBloofi<I> load(Function<BloomFilter,I> func, Shape shape, InputStream in,
+            BlockStore store) throws IOException {
+        if (store.getBlockCount() != 0) {
+            throw new IllegalArgumentException("Store must be empty");
+        }
+        Snapshot.Reader reader = new Snapshot.Reader(in, FlatBloofi.class.getSimpleName(), shape);
+        DataInput data = reader.getInput();
+        int blocks = data.readInt();
+        for (int block = 0; block < blocks; block++) {
+            store.addBlock();
+            store.setBusy(block, data.readLong());
+            for (int bit = 0; bit < shape.getNumberOfBits(); bit++) {
+                store.setWord(block, bit, data.readLong());
+            }
+        }
+        reader.finish();
+        return new FlatBloofi<I>(func, shape, store);
     }
 
     @Override
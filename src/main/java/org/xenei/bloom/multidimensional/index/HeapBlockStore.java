@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A BlockStore of {@code long[]} on the heap.
+ * The busy word is stored after the words for the shape bits.
+ */
+final class HeapBlockStore implements BlockStore {
+    /**
+     * The number of bits in the shape.
+     */
+    private final int numberOfBits;
+    /**
+     * The blocks.
+     */
+    private final List<long[]> blocks;
+
+    /**
+     * Constructs the store.
+     * @param numberOfBits the number of bits in the shape.
+     */
+    HeapBlockStore(int numberOfBits) {
+        this.numberOfBits = numberOfBits;
+        this.blocks = new ArrayList<long[]>();
+    }
+
+    @Override
+    public int getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    @Override
+    public void addBlock() {
+        blocks.add(new long[numberOfBits + 1]);
+    }
+
+    @Override
+    public long getWord(int block, int bit) {
+        return blocks.get(block)[bit];
+    }
+
+    @Override
+    public void setWord(int block, int bit, long word) {
+        blocks.get(block)[bit] = word;
+    }
+
+    @Override
+    public long getBusy(int block) {
+        return blocks.get(block)[numberOfBits];
+    }
+
+    @Override
+    public void setBusy(int block, long word) {
+        blocks.get(block)[numberOfBits] = word;
+    }
+}
@@ -17,6 +17,9 @@
  */
 package org.xenei.bloom.multidimensional.index;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,11 +30,11 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
-import org.apache.commons.collections4.bloomfilter.HasherBloomFilter;
 import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
 import org.xenei.bloom.filter.EWAHBloomFilter;
 import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.IdFunction;
 
 /**
  * A linear implementation of an index.
@@ -139,6 +142,18 @@ public class Linear<I> implements Index<I> {
                 .map( Map.Entry::getKey ).collect( Collectors.toSet() );
     }
 
+    @Override
+    public int count(Hasher hasher) {
+        BloomFilter bf = new EWAHBloomFilter(hasher, shape);
+        return (int) data.values().stream().filter( filter -> filter.contains(bf) ).count();
+    }
+
+    @Override
+    public boolean exists(Hasher hasher) {
+        BloomFilter bf = new EWAHBloomFilter(hasher, shape);
+        return data.values().stream().anyMatch( filter -> filter.contains(bf) );
+    }
+
 
     @Override
     public int getFilterCount() {
@@ -147,7 +162,33 @@ public class Linear<I> implements Index<I> {
 
     @Override
     public I create(Hasher hasher) {
-        return func.apply(new HasherBloomFilter( hasher, shape ));
+        return IdFunction.create( func, hasher, shape );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The body is the list of filters.
+     * </p>
+     */
+    @Override
+    public void save(OutputStream out) throws IOException {
+        Snapshot.saveFilters(out, Linear.class.getSimpleName(), shape,
+                data.values().stream().map(BloomFilter::getBits).collect(Collectors.toList()));
+    }
+
+    /**
+     * Loads a Linear index from a snapshot.
+     * @param <I> The index type
+     * @param func The function to convert bloom filter to index object.
+     * @param shape the shape of the bloom filters.
+     * @param in the stream to read the snapshot from.
+     * @return the Linear index.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is not a Linear index of the shape.
+     */
+    public static <I> Linear<I> load(Function<BloomFilter,I> func, Shape shape, InputStream in) throws IOException {
+        return Snapshot.loadFilters(in, Linear.class.getSimpleName(), new Linear<I>(func, shape));
     }
 
     @Override
@@ -17,24 +17,30 @@
  */
 package org.xenei.bloom.multidimensional.index;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.PrimitiveIterator;
+import java.util.Spliterator;
 import java.util.function.Function;
 import java.util.function.IntConsumer;
 
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
-import org.apache.commons.collections4.bloomfilter.HasherBloomFilter;
 import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
 import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.IdFunction;
+import org.xenei.bloom.multidimensional.query.Plan;
 
 import com.googlecode.javaewah.datastructure.BitSet;
 
@@ -49,6 +55,12 @@ import com.googlecode.javaewah.datastructure.BitSet;
  */
 public final class RangePacked<I> implements Index<I> {
 
+    /**
+     * The number of buffer words evaluated for every query before moving on in a
+     * multiple query search. 512 words of the busy set and each buffer is 4K of memory.
+     */
+    private static final int STRIPE_WORDS = 512;
+
     /**
      * The shape of the bloom filters.
      */
@@ -131,24 +143,50 @@ public final class RangePacked<I> implements Index<I> {
     @Override
     public Optional<I> get(Hasher hasher) {
         I result = create(hasher);
-        return values.indexOf(result) == -1 ? Optional.empty() : Optional.of(result);
+        return valueToIdx.containsKey(result) ? Optional.of(result) : Optional.empty();
     }
 
     @Override
     public void put(I idx, Hasher hasher) {
-        Integer i = valueToIdx.get(idx);
-        if (i == null)
+        if (!valueToIdx.containsKey(idx))
         {
-            int index = busy.nextUnsetBit(0);
-            if (index < 0) {
-                // extend the busy
-                index = busy.size();
-                busy.resize(index + Long.SIZE);
+            putAt(busy.nextUnsetBit(0), idx, hasher);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The search for free entries continues from the last entry filled rather
+     * than restarting at the beginning of the index for each filter.
+     * </p>
+     */
+    @Override
+    public void putAll(Map<I, Hasher> entries) {
+        int index = 0;
+        for (Map.Entry<I, Hasher> entry : entries.entrySet()) {
+            if (!valueToIdx.containsKey(entry.getKey())) {
+                index = putAt(busy.nextUnsetBit(index), entry.getKey(), entry.getValue());
             }
-            setBloomAt(index, hasher);
-            register( idx, index );
         }
+    }
 
+    /**
+     * Puts the filter at a free entry, extending the busy set if there is none.
+     * @param index the free entry in the busy set or -1 if there is none.
+     * @param idx the index value.
+     * @param hasher the hasher to generate the bits to turn on.
+     * @return the entry the filter was put at.
+     */
+    private int putAt(int index, I idx, Hasher hasher) {
+        if (index < 0) {
+            // extend the busy
+            index = busy.size();
+            busy.resize(index + Long.SIZE);
+        }
+        setBloomAt(index, hasher);
+        register( idx, index );
+        return index;
     }
 
     private void register(I value, int idx )
@@ -164,34 +202,129 @@ public final class RangePacked<I> implements Index<I> {
 
     @Override
     public void remove(I index) {
-        int idx = values.indexOf(index);
-        if (idx > -1)
+        Integer idx = valueToIdx.remove( index );
+        if (idx != null)
         {
             clearBloomAt(idx);
             values.set(idx,  null);
         }
-        valueToIdx.remove( index );
+    }
+
+    /**
+     * Matches the bit indexes against a single word of the buffers.
+     * Buffers that are shorter than the busy set are treated as having no bits
+     * enabled in the missing words.
+     * @param wordIdx the index of the word to match.
+     * @param bits the bit indexes that must be enabled.
+     * @return the word with a bit enabled for each matching filter.
+     */
+    private long match(int wordIdx, int[] bits) {
+        long w = busy.getWord(wordIdx);
+        for (int i = 0; i < bits.length && w != 0; i++) {
+            BitSet bitSet = buffer[bits[i]];
+            w &= (bitSet == null || wordIdx >= bitSet.getNumberOfWords()) ? 0L : bitSet.getWord(wordIdx);
+        }
+        return w;
     }
 
     @Override
     public Set<I> search(Hasher hasher) {
-        BitSet answer = new BitSet(busy.size());
-        answer.or(busy);
-        PrimitiveIterator.OfInt iter = hasher.getBits(shape);
-        while (iter.hasNext())
-        {
-            int buffIdx = iter.next();
-            if (buffer[buffIdx] == null)
-            {
-                return Collections.emptySet();
+        int[] bits = WordSearch.getBits(hasher, shape);
+        Set<I> result = new HashSet<I>();
+        for (int wordIdx = 0; wordIdx < busy.getNumberOfWords(); wordIdx++) {
+            WordSearch.collect(result, values, wordIdx, match(wordIdx, bits));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The buffers are processed in stripes of {@code STRIPE_WORDS} words.  All the
+     * queries are evaluated against a stripe before moving to the next, so the words of
+     * a buffer that several queries share are read from memory once and served from the
+     * cache thereafter.  Identical queries are only evaluated once.
+     * </p>
+     */
+    @Override
+    public List<Set<I>> searchAll(List<Hasher> hashers) {
+        Map<java.util.BitSet, Set<I>> queries = new LinkedHashMap<java.util.BitSet, Set<I>>();
+        List<java.util.BitSet> keys = new ArrayList<java.util.BitSet>(hashers.size());
+        for (Hasher hasher : hashers) {
+            java.util.BitSet key = WordSearch.getFilter(hasher, shape);
+            queries.computeIfAbsent(key, k -> new HashSet<I>());
+            keys.add(key);
+        }
+        int[][] bits = queries.keySet().stream().map(bs -> bs.stream().toArray()).toArray(int[][]::new);
+        List<Set<I>> answers = new ArrayList<Set<I>>(queries.values());
+        int words = busy.getNumberOfWords();
+        for (int stripe = 0; stripe < words; stripe += STRIPE_WORDS) {
+            int limit = Integer.min(stripe + STRIPE_WORDS, words);
+            for (int q = 0; q < bits.length; q++) {
+                for (int wordIdx = stripe; wordIdx < limit; wordIdx++) {
+                    WordSearch.collect(answers.get(q), values, wordIdx, match(wordIdx, bits[q]));
+                }
             }
-            answer.and( buffer[buffIdx]);
         }
+        return WordSearch.distribute(keys, queries);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The plan is evaluated with word by word bitmap operations over the index.
+     * </p>
+     */
+    @Override
+    public Set<I> search(Plan plan) {
+        long[] answer = plan.evaluate(new WordAlgebra(busy.getNumberOfWords(), this::match));
         Set<I> result = new HashSet<I>();
-        answer.iterator().forEachRemaining( i -> result.add( values.get(i) ));
+        for (int i = 0; i < answer.length; i++) {
+            WordSearch.collect(result, values, i, answer[i]);
+        }
         return result;
     }
 
+    @Override
+    public int count(Hasher hasher) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        int count = 0;
+        for (int wordIdx = 0; wordIdx < busy.getNumberOfWords(); wordIdx++) {
+            count += Long.bitCount(match(wordIdx, bits));
+        }
+        return count;
+    }
+
+    @Override
+    public boolean exists(Hasher hasher) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        for (int wordIdx = 0; wordIdx < busy.getNumberOfWords(); wordIdx++) {
+            if (match(wordIdx, bits) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The position is the internal filter position. Matches are calculated one
+     * word of the buffers at a time as the cursor advances.
+     * </p>
+     */
+    @Override
+    public Cursor<I> cursor(Hasher hasher, long position) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        return new WordCursor<I>(i -> match(i, bits), values::get, busy.getNumberOfWords(), Long.max(0, position));
+    }
+
+    @Override
+    public Spliterator<I> spliterator(Hasher hasher) {
+        int[] bits = WordSearch.getBits(hasher, shape);
+        return new WordCursor<I>(i -> match(i, bits), values::get, busy.getNumberOfWords(), 0);
+    }
+
     @Override
     public int getFilterCount() {
         return busy.cardinality();
@@ -199,7 +332,74 @@ public final class RangePacked<I> implements Index<I> {
 
     @Override
     public I create(Hasher hasher) {
-        return func.apply(new HasherBloomFilter( hasher, shape ));
+        return IdFunction.create( func, hasher, shape );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The body is the busy bitset followed by each column bitset as raw words.
+     * </p>
+     */
+    @Override
+    public void save(OutputStream out) throws IOException {
+        Snapshot.Writer writer = new Snapshot.Writer(out, RangePacked.class.getSimpleName(), shape);
+        DataOutput data = writer.getOutput();
+        busy.serialize(data);
+        for (BitSet column : buffer) {
+            data.writeBoolean(column != null);
+            if (column != null) {
+                column.serialize(data);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Loads a RangePacked from a snapshot.
+     * The columns are read as raw words and the index objects are recalculated
+     * from the filters they contain.
+     * @param <I> The index type
+     * @param func the function to convert Bloom filter to index object.
+     * @param shape the Shape of the contained Bloom filters.
+     * @param in the stream to read the snapshot from.
+     * @return the RangePacked.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is not a RangePacked of the shape.
+     */
+    public static <I> RangePacked<I> load(Function<BloomFilter,I> func, Shape shape, InputStream in)
+            throws IOException {
+        RangePacked<I> index = new RangePacked<I>(func, shape);
+        Snapshot.Reader reader = new Snapshot.Reader(in, RangePacked.class.getSimpleName(), shape);
+        DataInput data = reader.getInput();
+        index.busy.deserialize(data);
+        for (int bit = 0; bit < index.buffer.length; bit++) {
+            if (data.readBoolean()) {
+                index.buffer[bit] = new BitSet();
+                index.buffer[bit].deserialize(data);
+            }
+        }
+        reader.finish();
+
+        // transpose the columns to recover the filters.
+        Map<Integer,java.util.BitSet> filters = new HashMap<Integer,java.util.BitSet>();
+        for (int idx = index.busy.nextSetBit(0); idx >= 0; idx = index.busy.nextSetBit(idx + 1)) {
+            filters.put(idx, new java.util.BitSet(shape.getNumberOfBits()));
+        }
+        for (int bit = 0; bit < index.buffer.length; bit++) {
+            BitSet column = index.buffer[bit];
+            if (column != null) {
+                for (int idx = column.nextSetBit(0); idx >= 0; idx = column.nextSetBit(idx + 1)) {
+                    java.util.BitSet filter = filters.get(idx);
+                    if (filter != null) {
+                        filter.set(bit);
+                    }
+                }
+            }
+        }
+        filters.forEach((idx, filter) -> index.register(
+                index.create(Snapshot.toHasher(filter.toLongArray(), shape)), idx));
+        return index;
     }
 
     @Override
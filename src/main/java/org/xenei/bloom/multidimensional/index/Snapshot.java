@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentity;
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentityImpl;
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionValidator;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.apache.commons.collections4.bloomfilter.hasher.StaticHasher;
+import org.xenei.bloom.multidimensional.Container.Index;
+
+/**
+ * The snapshot format for indexes.
+ * <p>
+ * A snapshot is a header, an index specific body and a CRC32 checksum of the
+ * header and body.  The header contains a magic number, the format version, the
+ * index type and the shape: the hash function identity, the number of bits and
+ * the number of hash functions.  A snapshot is rejected if any of these differ
+ * from the index being loaded or if the checksum does not match.
+ * </p>
+ * <p>
+ * Index values are not written, they are recalculated from the filters by the
+ * index function when the snapshot is loaded.
+ * </p>
+ */
+public final class Snapshot {
+    /**
+     * The magic number at the start of a snapshot.
+     */
+    private static final int MAGIC = 0x4d424c53;
+    /**
+     * The version of the snapshot format.
+     */
+    private static final int VERSION = 1;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Creates a hasher for the words of a filter.
+     * @param words the words of the filter.
+     * @param shape the shape of the filter.
+     * @return a hasher that produces the enabled bits of the filter.
+     */
+    public static Hasher toHasher(long[] words, Shape shape) {
+        return new StaticHasher(BitSet.valueOf(words).stream().boxed().iterator(), shape);
+    }
+
+    /**
+     * Writes a snapshot whose body is a list of filters.
+     * Used by indexes that are loaded by putting each filter.
+     * @param out the stream to write to.
+     * @param type the index type.
+     * @param shape the shape of the index.
+     * @param filters the words of the filters.
+     * @throws IOException on IO error.
+     */
+    public static void saveFilters(OutputStream out, String type, Shape shape, Collection<long[]> filters)
+            throws IOException {
+        Writer writer = new Writer(out, type, shape);
+        DataOutput data = writer.getOutput();
+        data.writeInt(filters.size());
+        for (long[] words : filters) {
+            data.writeInt(words.length);
+            for (long word : words) {
+                data.writeLong(word);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Loads a snapshot written by {@code saveFilters()} by putting each filter into
+     * an empty index.  The filters are read and the checksum verified before any
+     * filter is put, so a corrupt snapshot leaves the index empty.
+     * @param <I> The index type.
+     * @param <X> The type of the Index.
+     * @param in the stream to read from.
+     * @param type the index type.
+     * @param index the empty index to load.
+     * @return the loaded index.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is for a different index type or shape.
+     */
+    public static <I, X extends Index<I>> X loadFilters(InputStream in, String type, X index) throws IOException {
+        Shape shape = index.getShape();
+        Reader reader = new Reader(in, type, shape);
+        DataInput data = reader.getInput();
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("Snapshot filter count is not valid");
+        }
+        int maxWords = (shape.getNumberOfBits() + Long.SIZE - 1) / Long.SIZE;
+        List<long[]> filters = new ArrayList<long[]>();
+        for (int i = 0; i < count; i++) {
+            int length = data.readInt();
+            if (length < 0 || length > maxWords) {
+                throw new IOException("Snapshot filter length is not valid");
+            }
+            long[] words = new long[length];
+            for (int w = 0; w < words.length; w++) {
+                words[w] = data.readLong();
+            }
+            filters.add(words);
+        }
+        reader.finish();
+        for (long[] words : filters) {
+            Hasher hasher = toHasher(words, shape);
+            index.put(index.create(hasher), hasher);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the header and checksum of a snapshot around an index specific body.
+     */
+    public static final class Writer {
+        /**
+         * The checksummed stream.
+         */
+        private final CheckedOutputStream checked;
+        /**
+         * The data output for the body.
+         */
+        private final DataOutputStream data;
+
+        /**
+         * Constructs the writer and writes the header.
+         * @param out the stream to write to.
+         * @param type the index type.
+         * @param shape the shape of the index.
+         * @throws IOException on IO error.
+         */
+        public Writer(OutputStream out, String type, Shape shape) throws IOException {
+            this.checked = new CheckedOutputStream(new BufferedOutputStream(out), new CRC32());
+            this.data = new DataOutputStream(checked);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeUTF(type);
+            HashFunctionIdentity identity = shape.getHashFunctionIdentity();
+            data.writeUTF(identity.getProvider());
+            data.writeUTF(identity.getName());
+            data.writeUTF(identity.getSignedness().name());
+            data.writeUTF(identity.getProcessType().name());
+            data.writeLong(identity.getSignature());
+            data.writeInt(shape.getNumberOfBits());
+            data.writeInt(shape.getNumberOfHashFunctions());
+        }
+
+        /**
+         * Gets the output for the body.
+         * @return the output for the body.
+         */
+        public DataOutput getOutput() {
+            return data;
+        }
+
+        /**
+         * Writes the checksum and flushes the stream.  The stream is not closed.
+         * @throws IOException on IO error.
+         */
+        public void finish() throws IOException {
+            data.flush();
+            data.writeLong(checked.getChecksum().getValue());
+            data.flush();
+        }
+    }
+
+    /**
+     * Verifies the header and checksum of a snapshot around an index specific body.
+     * <p>
+     * The reader buffers the stream so it may read past the end of the snapshot.
+     * </p>
+     */
+    public static final class Reader {
+        /**
+         * The checksummed stream.
+         */
+        private final CheckedInputStream checked;
+        /**
+         * The data input for the body.
+         */
+        private final DataInputStream data;
+
+        /**
+         * Constructs the reader and verifies the header.
+         * @param in the stream to read from.
+         * @param type the expected index type.
+         * @param shape the expected shape.
+         * @throws IOException on IO error or if the stream is not a snapshot.
+         * @throws IllegalArgumentException if the snapshot is for a different index type or shape.
+         */
+        public Reader(InputStream in, String type, Shape shape) throws IOException {
+            this.checked = new CheckedInputStream(new BufferedInputStream(in), new CRC32());
+            this.data = new DataInputStream(checked);
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not an index snapshot");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported snapshot version %s", version));
+            }
+            String snapshotType = data.readUTF();
+            if (!type.equals(snapshotType)) {
+                throw new IllegalArgumentException(
+                        String.format("Snapshot of %s can not be loaded into %s", snapshotType, type));
+            }
+            HashFunctionIdentity identity = new HashFunctionIdentityImpl(data.readUTF(), data.readUTF(),
+                    HashFunctionIdentity.Signedness.valueOf(data.readUTF()),
+                    HashFunctionIdentity.ProcessType.valueOf(data.readUTF()), data.readLong());
+            HashFunctionValidator.checkAreEqual(shape.getHashFunctionIdentity(), identity);
+            int bits = data.readInt();
+            int hashFunctions = data.readInt();
+            if (bits != shape.getNumberOfBits() || hashFunctions != shape.getNumberOfHashFunctions()) {
+                throw new IllegalArgumentException(String.format(
+                        "Snapshot shape of %s bits and %s hash functions does not match %s", bits, hashFunctions,
+                        shape));
+            }
+        }
+
+        /**
+         * Gets the input for the body.
+         * @return the input for the body.
+         */
+        public DataInput getInput() {
+            return data;
+        }
+
+        /**
+         * Reads and verifies the checksum.
+         * @throws IOException on IO error or if the checksum does not match.
+         */
+        public void finish() throws IOException {
+            long expected = checked.getChecksum().getValue();
+            if (data.readLong() != expected) {
+                throw new IOException("Snapshot checksum does not match");
+            }
+        }
+    }
+}
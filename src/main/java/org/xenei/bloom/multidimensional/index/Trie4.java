@@ -17,6 +17,8 @@
  */
 package org.xenei.bloom.multidimensional.index;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.function.Function;
 
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
@@ -47,6 +49,11 @@ public class Trie4<I> extends Trie<I> {
      */
     private static final long MASK = 0x0fL;
 
+    /**
+     * The type of the snapshots.
+     */
+    private static final String SNAPSHOT_TYPE = "Trie4";
+
     /**
      * A list of nibbles to matching nibbles in the bloom filter.
      */
@@ -75,6 +82,25 @@ public class Trie4<I> extends Trie<I> {
         super(func, estimatedPopulation, shape, CHUNK_SIZE, MASK);
     }
 
+    @Override
+    protected final String getSnapshotType() {
+        return SNAPSHOT_TYPE;
+    }
+
+    /**
+     * Loads a Trie4 from a snapshot.
+     * @param <I> The index type
+     * @param func the function to convert Bloom filter to index object.
+     * @param shape the shape of the contained Bloom filters.
+     * @param in the stream to read the snapshot from.
+     * @return the Trie4.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is not a Trie4 of the shape.
+     */
+    public static <I> Trie4<I> load(Function<BloomFilter,I> func, Shape shape, InputStream in) throws IOException {
+        return Snapshot.loadFilters(in, SNAPSHOT_TYPE, new Trie4<I>(func, shape));
+    }
+
     @Override
     public int[] getNodeIndexes(int chunk) {
         return nibbleTable[chunk];
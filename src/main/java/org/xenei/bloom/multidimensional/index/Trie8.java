@@ -17,6 +17,8 @@
  */
 package org.xenei.bloom.multidimensional.index;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
@@ -48,6 +50,11 @@ public class Trie8<I> extends Trie<I> {
      */
     public static final long MASK = 0xFFL;
 
+    /**
+     * The type of the snapshots.
+     */
+    private static final String SNAPSHOT_TYPE = "Trie8";
+
     /**
      * A list of bytes to matching bytes in the bloom filter.
      */
@@ -93,6 +100,25 @@ public class Trie8<I> extends Trie<I> {
     }
 
 
+    @Override
+    protected final String getSnapshotType() {
+        return SNAPSHOT_TYPE;
+    }
+
+    /**
+     * Loads a Trie8 from a snapshot.
+     * @param <I> The index type
+     * @param func the function to convert Bloom filter to index object.
+     * @param shape the shape of the contained Bloom filters.
+     * @param in the stream to read the snapshot from.
+     * @return the Trie8.
+     * @throws IOException on IO error or if the snapshot is corrupt.
+     * @throws IllegalArgumentException if the snapshot is not a Trie8 of the shape.
+     */
+    public static <I> Trie8<I> load(Function<BloomFilter,I> func, Shape shape, InputStream in) throws IOException {
+        return Snapshot.loadFilters(in, SNAPSHOT_TYPE, new Trie8<I>(func, shape));
+    }
+
     @Override
     public int[] getNodeIndexes(int chunk) {
         return byteTable[chunk];
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import org.xenei.bloom.multidimensional.query.BitmapAlgebra;
+
+/**
+ * Bitmap operations for indexes that match filters as words of 64 bits, one bit
+ * per internal filter position.
+ * <p>
+ * The bitmap is a {@code long[]} with one entry per word of the index.
+ * </p>
+ */
+final class WordAlgebra implements BitmapAlgebra<long[]> {
+
+    /**
+     * Matches the bits against a single word of an index.
+     */
+    interface Matcher {
+        /**
+         * Matches the bit indexes against a word of the index.
+         * An empty set of bit indexes must match every filter in use.
+         * @param wordIdx the index of the word to match.
+         * @param bits the bit indexes that must be enabled.
+         * @return the word with a bit enabled for each matching filter.
+         */
+        long match(int wordIdx, int[] bits);
+    }
+
+    /**
+     * The number of words in the index.
+     */
+    private final int words;
+    /**
+     * The matcher for the index.
+     */
+    private final Matcher matcher;
+
+    /**
+     * Constructs the word algebra.
+     * @param words the number of words in the index.
+     * @param matcher the matcher for the index.
+     */
+    WordAlgebra(int words, Matcher matcher) {
+        this.words = words;
+        this.matcher = matcher;
+    }
+
+    @Override
+    public long[] all() {
+        return match(new int[0]);
+    }
+
+    @Override
+    public long[] match(int[] bits) {
+        long[] result = new long[words];
+        for (int i = 0; i < words; i++) {
+            result[i] = matcher.match(i, bits);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] and(long[] left, long[] right) {
+        long[] result = new long[words];
+        for (int i = 0; i < words; i++) {
+            result[i] = left[i] & right[i];
+        }
+        return result;
+    }
+
+    @Override
+    public long[] or(long[] left, long[] right) {
+        long[] result = new long[words];
+        for (int i = 0; i < words; i++) {
+            result[i] = left[i] | right[i];
+        }
+        return result;
+    }
+
+    @Override
+    public long[] andNot(long[] left, long[] right) {
+        long[] result = new long[words];
+        for (int i = 0; i < words; i++) {
+            result[i] = left[i] & ~right[i];
+        }
+        return result;
+    }
+}
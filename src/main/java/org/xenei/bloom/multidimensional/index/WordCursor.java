@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntToLongFunction;
+
+import org.xenei.bloom.multidimensional.Container.Index;
+
+/**
+ * A cursor over the results of an index that produces its matches as words of
+ * 64 bits, one bit per internal filter position.
+ * <p>
+ * Words are only calculated as the cursor reaches them so a search that is
+ * abandoned early does not pay for the remainder of the index. The position
+ * reported by the cursor is the internal filter position. The cursor is also a
+ * Spliterator that splits on word boundaries.
+ * </p>
+ *
+ * @param <I> the index type.
+ */
+final class WordCursor<I> implements Index.Cursor<I>, Spliterator<I> {
+
+    /**
+     * Function to calculate the matching word.
+     */
+    private final IntToLongFunction wordFunc;
+    /**
+     * Function to convert an internal position into an index value.
+     */
+    private final IntFunction<I> valueFunc;
+    /**
+     * The next word to calculate.
+     */
+    private int wordIdx;
+    /**
+     * One past the last word to calculate.
+     */
+    private int fence;
+    /**
+     * The mask to apply to the first word calculated.
+     */
+    private long startMask;
+    /**
+     * The unconsumed bits of the current word.
+     */
+    private long word;
+    /**
+     * The internal position of bit 0 of the current word.
+     */
+    private long base;
+    /**
+     * The position of the last returned value.
+     */
+    private long position;
+
+    /**
+     * Constructs a word cursor.
+     * @param wordFunc the function to calculate the matching bits for a word index.
+     * @param valueFunc the function to convert an internal position into an index value.
+     * @param words the number of words in the index.
+     * @param start the internal position to start at.
+     */
+    WordCursor(IntToLongFunction wordFunc, IntFunction<I> valueFunc, int words, long start) {
+        this(wordFunc, valueFunc, (int) (start / Long.SIZE), words);
+        this.startMask = ~0L << (start % Long.SIZE);
+    }
+
+    private WordCursor(IntToLongFunction wordFunc, IntFunction<I> valueFunc, int from, int fence) {
+        this.wordFunc = wordFunc;
+        this.valueFunc = valueFunc;
+        this.wordIdx = from;
+        this.fence = fence;
+        this.startMask = ~0L;
+        this.word = 0;
+        this.position = -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (word == 0 && wordIdx < fence) {
+            base = (long) wordIdx * Long.SIZE;
+            word = wordFunc.applyAsLong(wordIdx++) & startMask;
+            startMask = ~0L;
+        }
+        return word != 0;
+    }
+
+    @Override
+    public I next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        long t = word & -word;
+        word ^= t;
+        position = base + Long.bitCount(t - 1);
+        return valueFunc.apply((int) position);
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super I> action) {
+        if (hasNext()) {
+            action.accept(next());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super I> action) {
+        while (hasNext()) {
+            action.accept(next());
+        }
+    }
+
+    @Override
+    public Spliterator<I> trySplit() {
+        int remaining = fence - wordIdx;
+        if (remaining < 2) {
+            return null;
+        }
+        int mid = wordIdx + (remaining >>> 1);
+        WordCursor<I> result = new WordCursor<I>(wordFunc, valueFunc, mid, fence);
+        fence = mid;
+        return result;
+    }
+
+    @Override
+    public long estimateSize() {
+        return (long) (fence - wordIdx) * Long.SIZE + Long.bitCount(word);
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.DISTINCT | Spliterator.NONNULL;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * Search helpers for indexes that match filters as words of 64 bits, one bit per
+ * position in the list of index values.
+ */
+final class WordSearch {
+
+    private WordSearch() {
+    }
+
+    /**
+     * Gets the distinct bit indexes the hasher enables for the shape.
+     * @param hasher the hasher to extract the bit indexes from.
+     * @param shape the shape of the filters.
+     * @return the ordered array of enabled bit indexes.
+     */
+    static int[] getBits(Hasher hasher, Shape shape) {
+        return getFilter(hasher, shape).stream().toArray();
+    }
+
+    /**
+     * Gets the bits the hasher enables for the shape.
+     * @param hasher the hasher to extract the bits from.
+     * @param shape the shape of the filters.
+     * @return the bitset with the enabled bits set.
+     */
+    static BitSet getFilter(Hasher hasher, Shape shape) {
+        BitSet bits = new BitSet(shape.getNumberOfBits());
+        hasher.getBits(shape).forEachRemaining((IntConsumer) bits::set);
+        return bits;
+    }
+
+    /**
+     * Adds the index values for the enabled bits in a matched word to a set.
+     * @param <I> the index type.
+     * @param result the set to add the index values to.
+     * @param values the index values by position.
+     * @param wordIdx the index of the matched word.
+     * @param w the matched word.
+     */
+    static <I> void collect(Set<I> result, List<I> values, int wordIdx, long w) {
+        while (w != 0) {
+            long t = w & -w;
+            result.add(values.get(wordIdx * Long.SIZE + Long.bitCount(t - 1)));
+            w ^= t;
+        }
+    }
+
+    /**
+     * Creates the result list for a multiple query search.
+     * Each query receives its own copy of the result.
+     * @param <I> the index type.
+     * @param keys the query keys in request order.
+     * @param queries the map of query keys to results.
+     * @return the list of results in request order.
+     */
+    static <I> List<Set<I>> distribute(List<BitSet> keys, Map<BitSet, Set<I>> queries) {
+        List<Set<I>> result = new ArrayList<Set<I>>(keys.size());
+        Set<BitSet> seen = new HashSet<BitSet>();
+        for (BitSet key : keys) {
+            Set<I> answer = queries.get(key);
+            result.add(seen.add(key) ? answer : new HashSet<I>(answer));
+        }
+        return result;
+    }
+}
@@ -69,6 +69,14 @@ public class InnerNode<I> implements Node<I> {
         return level + 1 == trie.getMaxDepth();
     }
 
+    /**
+     * Gets the level at which this node sits in the trie.
+     * @return the zero based level of this node.
+     */
+    public int getLevel() {
+        return level;
+    }
+
     /**
      * Get the nodes below this one.
      * The array may contain null values.
@@ -132,6 +140,22 @@ public class InnerNode<I> implements Node<I> {
         }
     }
 
+    /**
+     * Determines if there is a leaf node below this inner node that matches the filter.
+     * The search stops at the first matching leaf.
+     * @param filter the filter we are looking for.
+     * @return true if a matching leaf node exists.
+     */
+    public boolean exists(BloomFilter filter) {
+        int[] nodeIdxs = trie.getNodeIndexes(trie.getChunk(filter, level));
+        for (int i : nodeIdxs) {
+            if (nodes[i] != null && (isBaseNode() || ((InnerNode<I>) nodes[i]).exists(filter))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public String toString() {
         return String.format("InnerNode d:%s", level);
@@ -17,13 +17,18 @@
  */
 package org.xenei.bloom.multidimensional.index.tri;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
@@ -31,10 +36,11 @@ import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.bloomfilter.BitSetBloomFilter;
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
-import org.apache.commons.collections4.bloomfilter.HasherBloomFilter;
 import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
 import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.IdFunction;
+import org.xenei.bloom.multidimensional.index.Snapshot;
 
 /**
  * An abstract Trie implementation.
@@ -105,6 +111,16 @@ public abstract class Trie<I> implements Index<I> {
      */
     protected abstract int[] getNodeIndexes(int chunk);
 
+    /**
+     * Gets the type written in the snapshot header by {@code save()}.
+     * <p>
+     * The type must be fixed for the concrete class so that a snapshot is only loaded by
+     * the {@code load} method of the class that saved it.
+     * </p>
+     * @return the snapshot type.
+     */
+    protected abstract String getSnapshotType();
+
     /**
      * Get the chunk size for this Trie.
      * @return the chunk size for this trie.
@@ -122,7 +138,7 @@ public abstract class Trie<I> implements Index<I> {
 
     @Override
     public final void remove(I index) {
-        LeafNode<I> leaf = data.get(index);
+        LeafNode<I> leaf = data.remove(index);
         if (leaf != null)
         {
             leaf.delete();
@@ -137,21 +153,36 @@ public abstract class Trie<I> implements Index<I> {
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The position is the number of matching leaves that precede the match in a
+     * depth first walk of the Trie. Subtrees are only explored as the cursor reaches them.
+     * </p>
+     */
+    @Override
+    public final Cursor<I> cursor(Hasher hasher, long position) {
+        SearchCursor cursor = new SearchCursor(new BitSetBloomFilter(hasher, shape));
+        cursor.skip(position);
+        return cursor;
+    }
+
+    @Override
+    public final boolean exists(Hasher hasher) {
+        BloomFilter filter = new BitSetBloomFilter(hasher, shape);
+        return root.exists(filter);
+    }
+
     @Override
     public Optional<I> get(Hasher hasher) {
         BloomFilter filter = new BitSetBloomFilter(hasher, shape);
-        long[] filterLongs = filter.getBits();
+        // getBits() drops trailing zero words, the assembled leaf values do not.
+        int limit = Double.valueOf(Math.ceil(shape.getNumberOfBits() / (double) Long.SIZE)).intValue();
+        long[] filterLongs = Arrays.copyOf(filter.getBits(), limit);
         List<LeafNode<I>> candidates = search(hasher).stream().map(data::get).filter(l -> l != null).collect(Collectors.toList());
         I result = null;
         for (LeafNode<I> leaf : candidates) {
-            List<InnerNode<I>> lst = new ArrayList<InnerNode<I>>();
-            Node<I> n = leaf;
-            while (n.getParent() != null) {
-                lst.add(n.getParent());
-                n = n.getParent();
-            }
-            Collections.reverse(lst);
-            long[] values = assembleLongs(lst, leaf);
+            long[] values = assembleLongs(leaf);
             if (Arrays.equals(values, filterLongs)) {
                 if (result != null) {
                     throw new IllegalStateException("Too many results");
@@ -164,6 +195,34 @@ public abstract class Trie<I> implements Index<I> {
 
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The body is the list of filters, extracted from the Trie.
+     * </p>
+     */
+    @Override
+    public final void save(OutputStream out) throws IOException {
+        Snapshot.saveFilters(out, getSnapshotType(), shape,
+                data.values().stream().map(this::assembleLongs).collect(Collectors.toList()));
+    }
+
+    /**
+     * Get the array of long representation of the Bloom filter stored on the leaf node.
+     * @param leaf the leaf node.
+     * @return the long[] representation of the Bloom filter stored on the leaf.
+     */
+    private long[] assembleLongs(LeafNode<I> leaf) {
+        List<InnerNode<I>> lst = new ArrayList<InnerNode<I>>();
+        Node<I> n = leaf;
+        while (n.getParent() != null) {
+            lst.add(n.getParent());
+            n = n.getParent();
+        }
+        Collections.reverse(lst);
+        return assembleLongs(lst, leaf);
+    }
+
     /**
      * Get the array of long representation of the Bloom filter specified by the leaf node.
      * The Bloom filter is encoded into the Trie, this method extracts it.
@@ -200,7 +259,7 @@ public abstract class Trie<I> implements Index<I> {
     public final int getChunk(BloomFilter filter, int level) {
         long[] buffer = filter.getBits();
 
-        int idx = level / Long.BYTES;
+        int idx = (level * chunkSize) / Long.SIZE;
         if (idx >= buffer.length) {
             return 0x0;
         }
@@ -229,7 +288,107 @@ public abstract class Trie<I> implements Index<I> {
 
     @Override
     public I create(Hasher hasher) {
-        return func.apply(new HasherBloomFilter( hasher, shape ));
+        return IdFunction.create( func, hasher, shape );
+    }
+
+    /**
+     * A cursor that walks the Trie depth first, one subtree at a time.
+     */
+    private class SearchCursor implements Cursor<I> {
+        /**
+         * The filter we are looking for.
+         */
+        private final BloomFilter filter;
+        /**
+         * The inner nodes being walked.
+         */
+        private final Deque<InnerNode<I>> nodes;
+        /**
+         * The matching child indexes for each of the inner nodes being walked.
+         */
+        private final Deque<int[]> nodeIdxs;
+        /**
+         * The next entry in nodeIdxs to check for each of the inner nodes being walked.
+         */
+        private final Deque<Integer> offsets;
+        /**
+         * The next leaf to return.
+         */
+        private LeafNode<I> next;
+        /**
+         * The number of matching leaves returned or skipped.
+         */
+        private long count;
+        /**
+         * The position of the last returned leaf, -1 if none has been returned.
+         */
+        private long position;
+
+        SearchCursor(BloomFilter filter) {
+            this.filter = filter;
+            this.nodes = new ArrayDeque<InnerNode<I>>();
+            this.nodeIdxs = new ArrayDeque<int[]>();
+            this.offsets = new ArrayDeque<Integer>();
+            this.position = -1;
+            push(root);
+        }
+
+        /**
+         * Skips the matching leaves before a position without returning them.
+         * @param start the position of the first leaf to return.
+         */
+        void skip(long start) {
+            while (count < start && hasNext()) {
+                next = null;
+                count++;
+            }
+        }
+
+        private void push(InnerNode<I> node) {
+            nodes.push(node);
+            nodeIdxs.push(getNodeIndexes(getChunk(filter, node.getLevel())));
+            offsets.push(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !nodes.isEmpty()) {
+                InnerNode<I> node = nodes.peek();
+                int[] idxs = nodeIdxs.peek();
+                int offset = offsets.pop();
+                if (offset >= idxs.length) {
+                    nodes.pop();
+                    nodeIdxs.pop();
+                } else {
+                    offsets.push(offset + 1);
+                    Node<I> child = node.getChildNodes()[idxs[offset]];
+                    if (child != null) {
+                        if (node.isBaseNode()) {
+                            next = (LeafNode<I>) child;
+                        } else {
+                            push((InnerNode<I>) child);
+                        }
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public I next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            I result = next.getIdx();
+            next = null;
+            position = count++;
+            return result;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
     }
 
 }
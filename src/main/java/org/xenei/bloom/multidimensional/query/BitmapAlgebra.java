@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.query;
+
+/**
+ * The bitmap operations an index provides to evaluate a query Plan.
+ * <p>
+ * A bitmap represents a set of filters in the index. Results may be reused by
+ * several parts of a plan so implementations must not modify the arguments
+ * passed to them.
+ * </p>
+ *
+ * @param <B> the bitmap type.
+ */
+public interface BitmapAlgebra<B> {
+
+    /**
+     * Gets the bitmap of all the filters in the index.
+     * @return the bitmap of all the filters.
+     */
+    B all();
+
+    /**
+     * Gets the bitmap of the filters that have all of the bits enabled.
+     * @param bits the ordered, distinct bit indexes that must be enabled.
+     * @return the bitmap of the matching filters.
+     */
+    B match(int[] bits);
+
+    /**
+     * Gets the intersection of two bitmaps.
+     * @param left the first bitmap.
+     * @param right the second bitmap.
+     * @return a bitmap of the filters in both bitmaps.
+     */
+    B and(B left, B right);
+
+    /**
+     * Gets the union of two bitmaps.
+     * @param left the first bitmap.
+     * @param right the second bitmap.
+     * @return a bitmap of the filters in either bitmap.
+     */
+    B or(B left, B right);
+
+    /**
+     * Gets the difference of two bitmaps.
+     * @param left the first bitmap.
+     * @param right the bitmap to remove.
+     * @return a bitmap of the filters in the left bitmap but not the right one.
+     */
+    B andNot(B left, B right);
+}
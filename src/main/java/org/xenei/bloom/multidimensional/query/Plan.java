@@ -0,0 +1,318 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A compiled Query.
+ * <p>
+ * The plan is a graph of bitmap operations in which every distinct sub-expression
+ * appears once, so an expression that is used several times in a query is only
+ * evaluated once. While compiling:
+ * </p>
+ * <ul>
+ * <li>nested and/or operations are flattened and their operands ordered and deduplicated.</li>
+ * <li>matches combined by an and are merged into a single match of all their bits, since
+ * a filter that contains both A and B contains A|B.</li>
+ * <li>double negation is removed.</li>
+ * </ul>
+ * <p>
+ * When evaluated, a negated operand of an and is applied as an and not operation so the
+ * complement is not calculated.
+ * </p>
+ */
+public final class Plan {
+
+    /**
+     * The operations in a plan.
+     */
+    enum Op {
+        MATCH, AND, OR, NOT
+    }
+
+    /**
+     * The nodes of the plan.  Operands always precede the nodes that use them.
+     */
+    private final List<Node> nodes;
+    /**
+     * The id of the root node.
+     */
+    private final int root;
+
+    private Plan(List<Node> nodes, int root) {
+        this.nodes = nodes;
+        this.root = root;
+    }
+
+    /**
+     * Evaluates the plan.
+     * @param <B> the bitmap type.
+     * @param algebra the bitmap operations of the index.
+     * @return the bitmap of the matching filters.
+     */
+    public <B> B evaluate(BitmapAlgebra<B> algebra) {
+        return new Evaluation<B>(algebra).evaluate(root);
+    }
+
+    /**
+     * Gets the number of distinct operations in the plan.
+     * @return the number of distinct operations in the plan.
+     */
+    public int size() {
+        BitSet seen = new BitSet(nodes.size());
+        mark(root, seen);
+        return seen.cardinality();
+    }
+
+    private void mark(int id, BitSet seen) {
+        if (!seen.get(id)) {
+            seen.set(id);
+            Node node = nodes.get(id);
+            if (node.op != Op.MATCH) {
+                Arrays.stream(node.args).forEach(arg -> mark(arg, seen));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toString(root);
+    }
+
+    private String toString(int id) {
+        Node node = nodes.get(id);
+        if (node.op == Op.MATCH) {
+            return Arrays.toString(node.args);
+        }
+        StringBuilder sb = new StringBuilder(node.op.name()).append("(");
+        for (int i = 0; i < node.args.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(toString(node.args[i]));
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * A node in the plan.
+     */
+    private static class Node {
+        /**
+         * The operation.
+         */
+        private final Op op;
+        /**
+         * The bit indexes for a match, the ids of the operands otherwise.
+         */
+        private final int[] args;
+
+        Node(Op op, int[] args) {
+            this.op = op;
+            this.args = args;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Node) {
+                Node other = (Node) o;
+                return op == other.op && Arrays.equals(args, other.args);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return op.hashCode() * 31 + Arrays.hashCode(args);
+        }
+    }
+
+    /**
+     * The state of a single plan evaluation.
+     *
+     * @param <B> the bitmap type.
+     */
+    private class Evaluation<B> {
+        /**
+         * The bitmap operations.
+         */
+        private final BitmapAlgebra<B> algebra;
+        /**
+         * The evaluated nodes.
+         */
+        private final List<B> results;
+        /**
+         * The bitmap of all filters, if it has been requested.
+         */
+        private B all;
+
+        Evaluation(BitmapAlgebra<B> algebra) {
+            this.algebra = algebra;
+            this.results = new ArrayList<B>(nodes.size());
+            for (int i = 0; i < nodes.size(); i++) {
+                results.add(null);
+            }
+        }
+
+        private B all() {
+            if (all == null) {
+                all = algebra.all();
+            }
+            return all;
+        }
+
+        B evaluate(int id) {
+            B result = results.get(id);
+            if (result != null) {
+                return result;
+            }
+            Node node = nodes.get(id);
+            switch (node.op) {
+            case MATCH:
+                result = algebra.match(node.args);
+                break;
+            case NOT:
+                result = algebra.andNot(all(), evaluate(node.args[0]));
+                break;
+            case OR:
+                for (int arg : node.args) {
+                    result = result == null ? evaluate(arg) : algebra.or(result, evaluate(arg));
+                }
+                break;
+            case AND:
+                List<Integer> negated = new ArrayList<Integer>();
+                for (int arg : node.args) {
+                    Node operand = nodes.get(arg);
+                    if (operand.op == Op.NOT) {
+                        negated.add(operand.args[0]);
+                    } else {
+                        result = result == null ? evaluate(arg) : algebra.and(result, evaluate(arg));
+                    }
+                }
+                if (result == null) {
+                    result = all();
+                }
+                for (int arg : negated) {
+                    result = algebra.andNot(result, evaluate(arg));
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + node.op);
+            }
+            results.set(id, result);
+            return result;
+        }
+    }
+
+    /**
+     * Builds a plan from a query.
+     */
+    static class Builder {
+        /**
+         * The nodes in the plan.
+         */
+        private final List<Node> nodes = new ArrayList<Node>();
+        /**
+         * The ids of the nodes in the plan.
+         */
+        private final Map<Node, Integer> ids = new HashMap<Node, Integer>();
+
+        /**
+         * Gets the id for the node, adding it to the plan if necessary.
+         * @param node the node to add.
+         * @return the id of the node.
+         */
+        private int intern(Node node) {
+            return ids.computeIfAbsent(node, n -> {
+                nodes.add(n);
+                return nodes.size() - 1;
+            });
+        }
+
+        /**
+         * Adds a match to the plan.
+         * @param bits the bits to match.
+         * @return the id of the match.
+         */
+        int match(BitSet bits) {
+            return intern(new Node(Op.MATCH, bits.stream().toArray()));
+        }
+
+        /**
+         * Adds an operation to the plan.
+         * @param op the operation.
+         * @param operands the ids of the operands.
+         * @return the id of the operation.
+         */
+        int combine(Op op, int[] operands) {
+            if (op == Op.NOT) {
+                if (operands.length != 1) {
+                    throw new IllegalArgumentException("Not requires a single query");
+                }
+                Node operand = nodes.get(operands[0]);
+                return operand.op == Op.NOT ? operand.args[0] : intern(new Node(Op.NOT, operands));
+            }
+            TreeSet<Integer> args = new TreeSet<Integer>();
+            BitSet matchBits = null;
+            for (int operand : operands) {
+                Node node = nodes.get(operand);
+                if (node.op == op) {
+                    Arrays.stream(node.args).forEach(args::add);
+                } else if (op == Op.AND && node.op == Op.MATCH) {
+                    if (matchBits == null) {
+                        matchBits = new BitSet();
+                    }
+                    Arrays.stream(node.args).forEach(matchBits::set);
+                } else {
+                    args.add(operand);
+                }
+            }
+            if (matchBits != null) {
+                // the flattened operands of a nested and may contain another match.
+                for (Integer arg : new ArrayList<Integer>(args)) {
+                    Node node = nodes.get(arg);
+                    if (node.op == Op.MATCH) {
+                        args.remove(arg);
+                        Arrays.stream(node.args).forEach(matchBits::set);
+                    }
+                }
+                args.add(match(matchBits));
+            }
+            if (args.size() == 1) {
+                return args.first();
+            }
+            return intern(new Node(op, args.stream().mapToInt(Integer::intValue).toArray()));
+        }
+
+        /**
+         * Creates the plan.
+         * @param root the id of the root node.
+         * @return the plan.
+         */
+        Plan build(int root) {
+            return new Plan(nodes, root);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.query;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionValidator;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+
+/**
+ * A boolean combination of filter matches.
+ * <p>
+ * A match query selects the filters that contain the Bloom filter built from a
+ * hasher, just as {@code Container.search(Hasher)} does. Match queries may be combined
+ * with {@code and}, {@code or} and {@code not}, for example
+ * {@code Query.match(a).and(Query.match(b).or(Query.match(c))).andNot(Query.match(d))}.
+ * </p>
+ * <p>
+ * A query is compiled against a Shape into a Plan that the index evaluates with
+ * bitmap operations.
+ * </p>
+ */
+public abstract class Query {
+
+    /**
+     * Package private constructor so that only the defined query types exist.
+     */
+    Query() {
+    }
+
+    /**
+     * Creates a query that matches the filters containing the Bloom filter of the hasher.
+     * @param hasher the hasher to match.
+     * @return the match query.
+     */
+    public static Query match(Hasher hasher) {
+        return new Match(hasher);
+    }
+
+    /**
+     * Creates a query that matches the filters matched by all of the queries.
+     * @param queries the queries to combine.
+     * @return the and query.
+     */
+    public static Query and(Query... queries) {
+        return new Combination(Plan.Op.AND, queries);
+    }
+
+    /**
+     * Creates a query that matches the filters matched by any of the queries.
+     * @param queries the queries to combine.
+     * @return the or query.
+     */
+    public static Query or(Query... queries) {
+        return new Combination(Plan.Op.OR, queries);
+    }
+
+    /**
+     * Creates a query that matches the filters not matched by the query.
+     * @param query the query to negate.
+     * @return the not query.
+     */
+    public static Query not(Query query) {
+        return new Combination(Plan.Op.NOT, query);
+    }
+
+    /**
+     * Creates a query that matches the filters matched by this query and the other.
+     * @param other the other query.
+     * @return the and query.
+     */
+    public Query and(Query other) {
+        return and(this, other);
+    }
+
+    /**
+     * Creates a query that matches the filters matched by this query or the other.
+     * @param other the other query.
+     * @return the or query.
+     */
+    public Query or(Query other) {
+        return or(this, other);
+    }
+
+    /**
+     * Creates a query that matches the filters matched by this query but not the other.
+     * @param other the other query.
+     * @return the and not query.
+     */
+    public Query andNot(Query other) {
+        return and(this, not(other));
+    }
+
+    /**
+     * Compiles this query for the shape.
+     * @param shape the shape of the filters in the index.
+     * @return the Plan to evaluate.
+     * @throws IllegalArgumentException if a hasher does not match the hash function of the shape.
+     */
+    public Plan compile(Shape shape) {
+        Plan.Builder builder = new Plan.Builder();
+        return builder.build(compile(shape, builder));
+    }
+
+    /**
+     * Adds this query to the plan builder.
+     * @param shape the shape of the filters in the index.
+     * @param builder the plan builder.
+     * @return the id of the plan node for this query.
+     */
+    abstract int compile(Shape shape, Plan.Builder builder);
+
+    /**
+     * A query that matches a hasher.
+     */
+    private static class Match extends Query {
+        /**
+         * The hasher to match.
+         */
+        private final Hasher hasher;
+
+        Match(Hasher hasher) {
+            this.hasher = hasher;
+        }
+
+        @Override
+        int compile(Shape shape, Plan.Builder builder) {
+            HashFunctionValidator.checkAreEqual(shape.getHashFunctionIdentity(), hasher.getHashFunctionIdentity());
+            BitSet bits = new BitSet(shape.getNumberOfBits());
+            hasher.getBits(shape).forEachRemaining((IntConsumer) bits::set);
+            return builder.match(bits);
+        }
+    }
+
+    /**
+     * A query that combines other queries.
+     */
+    private static class Combination extends Query {
+        /**
+         * The combining operation.
+         */
+        private final Plan.Op op;
+        /**
+         * The queries to combine.
+         */
+        private final List<Query> queries;
+
+        Combination(Plan.Op op, Query... queries) {
+            if (queries.length == 0) {
+                throw new IllegalArgumentException("At least one query is required");
+            }
+            this.op = op;
+            this.queries = Arrays.asList(queries);
+        }
+
+        @Override
+        int compile(Shape shape, Plan.Builder builder) {
+            int[] children = queries.stream().mapToInt(q -> q.compile(shape, builder)).toArray();
+            return builder.combine(op, children);
+        }
+    }
+}
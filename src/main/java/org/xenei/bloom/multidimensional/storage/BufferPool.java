@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable ByteBuffers.
+ * <p>
+ * Buffers are pooled by capacity, which is always a power of two, and a limited
+ * number of buffers of each capacity are kept.  The pool is thread safe.
+ * </p>
+ */
+public final class BufferPool {
+    /**
+     * The smallest buffer capacity.
+     */
+    private static final int MIN_CAPACITY = 64;
+    /**
+     * The default number of buffers of each capacity to keep.
+     */
+    public static final int DEFAULT_MAX_POOLED = 16;
+
+    /**
+     * True if the buffers are direct.
+     */
+    private final boolean direct;
+    /**
+     * The pooled buffers, indexed by the log2 of their capacity.
+     */
+    private final ArrayBlockingQueue<ByteBuffer>[] pooled;
+    /**
+     * The number of buffers allocated.
+     */
+    private final AtomicLong allocations;
+
+    /**
+     * Constructs a pool of heap buffers.
+     */
+    public BufferPool() {
+        this(false, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * Constructs a pool.
+     * @param direct true for direct buffers, false for heap buffers.
+     * @param maxPooled the number of buffers of each capacity to keep.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean direct, int maxPooled) {
+        if (maxPooled < 1) {
+            throw new IllegalArgumentException("Pool size must be greater than 0");
+        }
+        this.direct = direct;
+        this.pooled = new ArrayBlockingQueue[Integer.SIZE];
+        for (int i = 0; i < pooled.length; i++) {
+            pooled[i] = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+        }
+        this.allocations = new AtomicLong();
+    }
+
+    /**
+     * Gets a cleared buffer.
+     * @param minCapacity the minimum capacity of the buffer.
+     * @return a buffer with at least the capacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(minCapacity - 1) << 1);
+        if (capacity < minCapacity) {
+            throw new IllegalArgumentException(String.format("Capacity %s is too large to pool", minCapacity));
+        }
+        ByteBuffer buffer = pooled[Integer.numberOfTrailingZeros(capacity)].poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.  The buffer must not be used after it is released.
+     * Buffers that were not acquired from a pool of the same kind are ignored.
+     * @param buffer the buffer to release.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() == direct && Integer.bitCount(capacity) == 1 && capacity >= MIN_CAPACITY
+                && !buffer.isReadOnly()) {
+            pooled[Integer.numberOfTrailingZeros(capacity)].offer(buffer);
+        }
+    }
+
+    /**
+     * Serializes a value into a pooled buffer, retrying with larger buffers until it fits.
+     * @param <E> The type of object being serialized.
+     * @param serde the serde to serialize with.
+     * @param value the value to serialize.
+     * @return a flipped buffer holding the serialized value, to be released when done.
+     */
+    public <E> ByteBuffer serialize(BufferSerde<E> serde, E value) {
+        int capacity = BufferSerde.INITIAL_CAPACITY;
+        while (true) {
+            ByteBuffer buffer = acquire(capacity);
+            try {
+                serde.serialize(value, buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                release(buffer);
+                capacity = buffer.capacity() * 2;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of buffers this pool has allocated.
+     * @return the number of buffers allocated.
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A Serde that writes to and reads from ByteBuffers.
+ * <p>
+ * Values are written at the position of a caller supplied buffer, which may be a
+ * direct or memory mapped buffer, so no intermediate array is created.  The byte[]
+ * methods of Serde are implemented on the buffer methods.
+ * </p>
+ *
+ * @param <E> The type of object being serialized.
+ */
+public interface BufferSerde<E> extends Serde<E> {
+
+    /**
+     * The initial capacity of the buffer used by {@code serialize(E)}.
+     */
+    int INITIAL_CAPACITY = 256;
+
+    /**
+     * Writes the value at the position of the buffer and advances the position past it.
+     * <p>
+     * If the value does not fit before the limit a BufferOverflowException is thrown and
+     * the content and position of the buffer are undefined.  Callers retry with a larger
+     * buffer.
+     * </p>
+     * @param data the value to write.
+     * @param buffer the buffer to write to.
+     * @throws BufferOverflowException if the value does not fit in the buffer.
+     */
+    void serialize(E data, ByteBuffer buffer);
+
+    /**
+     * Reads a value from the bytes between the position and the limit of the buffer.
+     * <p>
+     * The value must not keep a reference to the buffer, which may be reused.
+     * </p>
+     * @param buffer the buffer to read from.
+     * @return the value.
+     */
+    E deserialize(ByteBuffer buffer);
+
+    @Override
+    default byte[] serialize(E data) {
+        int capacity = INITIAL_CAPACITY;
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            try {
+                serialize(data, buffer);
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            } catch (BufferOverflowException e) {
+                capacity *= 2;
+            }
+        }
+    }
+
+    @Override
+    default E deserialize(byte[] data) {
+        return deserialize(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Gets a BufferSerde for a Serde.
+     * <p>
+     * A Serde that is not a BufferSerde is adapted: it still serializes to an array, which
+     * is copied into the buffer, and a buffer that is not exactly a heap array is copied
+     * to an array to be deserialized.
+     * </p>
+     * @param <E> The type of object being serialized.
+     * @param serde the serde.
+     * @return the serde if it is a BufferSerde, otherwise an adapter for it.
+     */
+    static <E> BufferSerde<E> of(Serde<E> serde) {
+        if (serde instanceof BufferSerde) {
+            return (BufferSerde<E>) serde;
+        }
+        return new BufferSerde<E>() {
+
+            @Override
+            public void serialize(E data, ByteBuffer buffer) {
+                buffer.put(serde.serialize(data));
+            }
+
+            @Override
+            public E deserialize(ByteBuffer buffer) {
+                if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0
+                        && buffer.remaining() == buffer.array().length) {
+                    return serde.deserialize(buffer.array());
+                }
+                byte[] data = new byte[buffer.remaining()];
+                buffer.duplicate().get(data);
+                return serde.deserialize(data);
+            }
+
+            @Override
+            public byte[] serialize(E data) {
+                return serde.serialize(data);
+            }
+
+            @Override
+            public E deserialize(byte[] data) {
+                return serde.deserialize(data);
+            }
+        };
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+/**
+ * A Storage that caches the values read from another Storage.
+ * <p>
+ * The cache is bounded by the total serialized size of the cached values and evicts
+ * in least recently used order.  Entries are held either as the deserialized objects,
+ * which are returned on a hit without any work, or as the serialized bytes, which are
+ * smaller but are deserialized on each hit.
+ * </p>
+ * <p>
+ * Puts and removes through this storage invalidate the cached values of the index
+ * once the underlying storage has been changed.  Values read from the underlying
+ * storage are not cached if the index was invalidated while they were read, so a read
+ * that races a change cannot cache stale values.  Changes made to the underlying
+ * storage by other clients are not seen until the entry is evicted.
+ * </p>
+ *
+ * @param <E> The type of object being stored.
+ * @param <I> The type of object used for the index.
+ */
+public class CachingStorage<E, I> implements Storage<E, I> {
+    /**
+     * The cost added to every cached entry for the map entry and its collection.
+     */
+    private static final long ENTRY_COST = 64;
+
+    /**
+     * The storage being cached.
+     */
+    private final Storage<E, I> delegate;
+    /**
+     * The serializer used to measure and, if bytes are held, hold values.
+     */
+    private final Serde<E> serde;
+    /**
+     * The maximum total cost of the cached entries.
+     */
+    private final long maxCost;
+    /**
+     * True if deserialized objects are held.
+     */
+    private final boolean holdObjects;
+    /**
+     * The cached entries in access order.
+     */
+    private final LinkedHashMap<I, Cached> cache;
+    /**
+     * The indexes being read from the storage.
+     */
+    private final Map<I, Fetch> fetching;
+    /**
+     * The total cost of the cached entries.
+     */
+    private long cost;
+    /**
+     * The number of gets answered from the cache.
+     */
+    private long hits;
+    /**
+     * The number of gets not answered from the cache.
+     */
+    private long misses;
+    /**
+     * The number of entries evicted because the cache was full.
+     */
+    private long evictions;
+
+    /**
+     * Constructs a caching storage.
+     * @param delegate the storage to cache.
+     * @param serde the serializer used to measure the values and to hold them if objects are not held.
+     * @param maxBytes the maximum total serialized size of the cached values.
+     * @param holdObjects true to hold the deserialized objects, false to hold the serialized bytes.
+     */
+    public CachingStorage(Storage<E, I> delegate, Serde<E> serde, long maxBytes, boolean holdObjects) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be greater than 0");
+        }
+        this.delegate = delegate;
+        this.serde = serde;
+        this.maxCost = maxBytes;
+        this.holdObjects = holdObjects;
+        this.cache = new LinkedHashMap<I, Cached>(16, 0.75f, true);
+        this.fetching = new HashMap<I, Fetch>();
+    }
+
+    @Override
+    public Collection<E> get(I idx) {
+        long invalidations;
+        synchronized (cache) {
+            Cached cached = cache.get(idx);
+            if (cached != null) {
+                hits++;
+                return cached.getValues();
+            }
+            misses++;
+            invalidations = startFetch(idx);
+        }
+        Collection<E> values;
+        try {
+            values = delegate.get(idx);
+        } catch (RuntimeException e) {
+            abandon(Collections.singleton(idx));
+            throw e;
+        }
+        cache(idx, values, invalidations);
+        return values;
+    }
+
+    @Override
+    public Map<I, Collection<E>> getAll(Collection<I> idxs) {
+        Map<I, Collection<E>> result = new HashMap<I, Collection<E>>();
+        Map<I, Long> missing = lookup(idxs, result);
+        if (!missing.isEmpty()) {
+            Map<I, Collection<E>> found;
+            try {
+                found = delegate.getAll(new ArrayList<I>(missing.keySet()));
+            } catch (RuntimeException e) {
+                abandon(missing.keySet());
+                throw e;
+            }
+            result.putAll(fetched(missing, found));
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Map<I, Collection<E>>> getAllAsync(Collection<I> idxs) {
+        Map<I, Collection<E>> result = new HashMap<I, Collection<E>>();
+        Map<I, Long> missing = lookup(idxs, result);
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+        CompletableFuture<Map<I, Collection<E>>> future;
+        try {
+            future = delegate.getAllAsync(new ArrayList<I>(missing.keySet()));
+        } catch (RuntimeException e) {
+            abandon(missing.keySet());
+            throw e;
+        }
+        return future.handle((found, e) -> {
+            if (e != null) {
+                abandon(missing.keySet());
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+            result.putAll(fetched(missing, found));
+            return result;
+        });
+    }
+
+    /**
+     * Adds the cached values of the indexes to the result and starts fetches for the
+     * indexes that are not cached.
+     * @param idxs the indexes to look up.
+     * @param result the map to add the cached values to.
+     * @return the indexes that are not cached and their invalidation counts.
+     */
+    private Map<I, Long> lookup(Collection<I> idxs, Map<I, Collection<E>> result) {
+        Map<I, Long> missing = new LinkedHashMap<I, Long>();
+        synchronized (cache) {
+            for (I idx : idxs) {
+                Cached cached = cache.get(idx);
+                if (cached == null) {
+                    misses++;
+                    if (!missing.containsKey(idx)) {
+                        missing.put(idx, startFetch(idx));
+                    }
+                } else {
+                    hits++;
+                    result.put(idx, cached.getValues());
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Caches the values fetched for the missing indexes, including the indexes
+     * that have no values.
+     * @param missing the indexes that were fetched and their invalidation counts.
+     * @param found the values that were found.
+     * @return the values that were found.
+     */
+    private Map<I, Collection<E>> fetched(Map<I, Long> missing, Map<I, Collection<E>> found) {
+        missing.forEach((idx, invalidations) -> cache(idx, found.getOrDefault(idx, Collections.emptyList()),
+                invalidations));
+        return found;
+    }
+
+    /**
+     * Starts a fetch of an index from the storage.  Must be called holding the cache lock.
+     * @param idx the index.
+     * @return the invalidation count of the index.
+     */
+    private long startFetch(I idx) {
+        Fetch fetch = fetching.computeIfAbsent(idx, k -> new Fetch());
+        fetch.readers++;
+        return fetch.invalidations;
+    }
+
+    /**
+     * Ends a fetch of an index.  Must be called holding the cache lock.
+     * @param idx the index.
+     * @param invalidations the invalidation count when the fetch started.
+     * @return true if the index was not invalidated during the fetch.
+     */
+    private boolean endFetch(I idx, long invalidations) {
+        Fetch fetch = fetching.get(idx);
+        if (--fetch.readers == 0) {
+            fetching.remove(idx);
+        }
+        return fetch.invalidations == invalidations;
+    }
+
+    /**
+     * Ends the fetches of indexes that failed.
+     * @param idxs the indexes.
+     */
+    private void abandon(Collection<I> idxs) {
+        synchronized (cache) {
+            idxs.forEach(idx -> endFetch(idx, 0));
+        }
+    }
+
+    /**
+     * Caches the values fetched for an index unless it was invalidated during the fetch.
+     * @param idx the index.
+     * @param values the values read from the storage.
+     * @param invalidations the invalidation count when the fetch started.
+     */
+    private void cache(I idx, Collection<E> values, long invalidations) {
+        List<byte[]> serialized = new ArrayList<byte[]>(values.size());
+        long entryCost = ENTRY_COST;
+        for (E value : values) {
+            byte[] bytes = serde.serialize(value);
+            serialized.add(bytes);
+            entryCost += bytes.length;
+        }
+        Cached cached = holdObjects ? new Cached(new ArrayList<E>(values), null, entryCost)
+                : new Cached(null, serialized, entryCost);
+        synchronized (cache) {
+            if (!endFetch(idx, invalidations) || entryCost > maxCost) {
+                return;
+            }
+            Cached old = cache.put(idx, cached);
+            if (old != null) {
+                cost -= old.cost;
+            }
+            cost += entryCost;
+            Iterator<Cached> iter = cache.values().iterator();
+            while (cost > maxCost) {
+                cost -= iter.next().cost;
+                iter.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes the cached values of an index and counts the invalidation for the fetches
+     * of the index that are running.
+     * @param idx the index.
+     */
+    private void invalidate(I idx) {
+        synchronized (cache) {
+            Cached old = cache.remove(idx);
+            if (old != null) {
+                cost -= old.cost;
+            }
+            Fetch fetch = fetching.get(idx);
+            if (fetch != null) {
+                fetch.invalidations++;
+            }
+        }
+    }
+
+    @Override
+    public void put(I idx, E value) {
+        try {
+            delegate.put(idx, value);
+        } finally {
+            invalidate(idx);
+        }
+    }
+
+    @Override
+    public void putAll(I idx, Collection<E> values) {
+        try {
+            delegate.putAll(idx, values);
+        } finally {
+            invalidate(idx);
+        }
+    }
+
+    @Override
+    public void putAll(Map<I, ? extends Collection<E>> values) {
+        try {
+            delegate.putAll(values);
+        } finally {
+            values.keySet().forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(Map<I, ? extends Collection<E>> values) {
+        try {
+            return delegate.putAllAsync(values).whenComplete((v, e) -> values.keySet().forEach(this::invalidate));
+        } catch (RuntimeException e) {
+            values.keySet().forEach(this::invalidate);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean[] remove(I idx, E value) {
+        try {
+            return delegate.remove(idx, value);
+        } finally {
+            invalidate(idx);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The list is read from the underlying storage and is not cached.
+     * </p>
+     */
+    @Override
+    public Iterator<Map.Entry<I, List<E>>> list() {
+        return delegate.list();
+    }
+
+    /**
+     * Removes all the cached values.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            cost = 0;
+        }
+    }
+
+    /**
+     * Gets the number of cached indexes.
+     * @return the number of cached indexes.
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Gets the total cost of the cached entries: the serialized size of the values
+     * plus a fixed cost per index.
+     * @return the total cost of the cached entries.
+     */
+    public long getCost() {
+        synchronized (cache) {
+            return cost;
+        }
+    }
+
+    /**
+     * Gets the number of gets answered from the cache.
+     * @return the hit count.
+     */
+    public long getHitCount() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    /**
+     * Gets the number of gets that were not answered from the cache.
+     * @return the miss count.
+     */
+    public long getMissCount() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    /**
+     * Gets the number of entries evicted because the cache was full.
+     * @return the eviction count.
+     */
+    public long getEvictionCount() {
+        synchronized (cache) {
+            return evictions;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (cache) {
+            return String.format("CachingStorage[size=%s cost=%s hits=%s misses=%s evictions=%s]", cache.size(), cost,
+                    hits, misses, evictions);
+        }
+    }
+
+    /**
+     * The state of the fetches of an index.
+     */
+    private static class Fetch {
+        /**
+         * The number of fetches running.
+         */
+        private int readers;
+        /**
+         * The number of times the index has been invalidated while it was fetched.
+         */
+        private long invalidations;
+    }
+
+    /**
+     * The cached values of an index.
+     */
+    private class Cached {
+        /**
+         * The values if objects are held.
+         */
+        private final List<E> objects;
+        /**
+         * The serialized values if objects are not held.
+         */
+        private final List<byte[]> serialized;
+        /**
+         * The cost of the entry.
+         */
+        private final long cost;
+
+        Cached(List<E> objects, List<byte[]> serialized, long cost) {
+            this.objects = objects == null ? null : Collections.unmodifiableList(objects);
+            this.serialized = serialized;
+            this.cost = cost;
+        }
+
+        Collection<E> getValues() {
+            if (objects != null) {
+                return objects;
+            }
+            List<E> values = new ArrayList<E>(serialized.size());
+            serialized.forEach(bytes -> values.add(serde.deserialize(bytes)));
+            return values;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+/**
+ * An in memory Storage that minimizes the heap used per index.
+ * <p>
+ * Most indexes hold a single value so a single value is stored directly in the map
+ * and only promoted to an array when a second value is added to the index.
+ * </p>
+ * <p>
+ * In arena mode the values are serialized by a Serde into large shared byte[] pages
+ * and the map holds the long address of the value (or an array of addresses) rather
+ * than the object.  Removed values leave holes in the pages, which are compacted once
+ * they exceed the live bytes.  A BufferSerde serializes directly into, and deserializes
+ * directly from, the pages.  In arena mode values are removed when their serialized
+ * forms are equal.
+ * </p>
+ *
+ * @param <E> The type of object being stored.
+ * @param <I> The type of object used for the index.
+ */
+public class CompactInMemory<E, I> implements Storage<E, I> {
+    /**
+     * The default size of an arena page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+    /**
+     * The stored values.  In object mode a value is either an E or a Many, in arena
+     * mode either a Long or a long[].
+     */
+    private final HashMap<I, Object> storage;
+    /**
+     * The serializer for arena mode, null in object mode.
+     */
+    private final BufferSerde<E> serde;
+    /**
+     * The arena, null in object mode.
+     */
+    private final Arena arena;
+    /**
+     * The buffers values are serialized into to be compared, null in object mode.
+     */
+    private final BufferPool pool;
+
+    /**
+     * Constructs a storage that holds the value objects.
+     */
+    public CompactInMemory() {
+        this.storage = new HashMap<I, Object>();
+        this.serde = null;
+        this.arena = null;
+        this.pool = null;
+    }
+
+    /**
+     * Constructs a storage that holds the serialized values in arena pages of the
+     * default size.
+     * @param serde the serializer for the values.
+     */
+    public CompactInMemory(Serde<E> serde) {
+        this(serde, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Constructs a storage that holds the serialized values in arena pages.
+     * @param serde the serializer for the values.
+     * @param pageSize the size of the arena pages.
+     */
+    public CompactInMemory(Serde<E> serde, int pageSize) {
+        if (pageSize <= Integer.BYTES) {
+            throw new IllegalArgumentException(String.format("Page size must be greater than %s", Integer.BYTES));
+        }
+        this.storage = new HashMap<I, Object>();
+        this.serde = BufferSerde.of(serde);
+        this.arena = new Arena(pageSize);
+        this.pool = new BufferPool();
+    }
+
+    /**
+     * Gets the number of bytes in the arena pages, including holes left by removed values.
+     * @return the size of the arena or 0 in object mode.
+     */
+    public long getArenaSize() {
+        return arena == null ? 0 : arena.size();
+    }
+
+    @Override
+    public Collection<E> get(I idx) {
+        Object stored = storage.get(idx);
+        return stored == null ? Collections.emptyList() : toList(stored);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<E> toList(Object stored) {
+        if (arena == null) {
+            if (stored instanceof Many) {
+                Many many = (Many) stored;
+                return (List<E>) Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(many.values, many.size)));
+            }
+            return Collections.singletonList((E) stored);
+        }
+        if (stored instanceof Long) {
+            return Collections.singletonList(serde.deserialize(arena.read((Long) stored)));
+        }
+        long[] addresses = (long[]) stored;
+        List<E> result = new ArrayList<E>(addresses.length);
+        for (long address : addresses) {
+            result.add(serde.deserialize(arena.read(address)));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public void put(I idx, E value) {
+        Object stored = storage.get(idx);
+        if (arena == null) {
+            if (stored == null) {
+                storage.put(idx, value);
+            } else if (stored instanceof Many) {
+                ((Many) stored).add(value);
+            } else {
+                storage.put(idx, new Many(stored, value));
+            }
+        } else {
+            long address = arena.write(serde, value);
+            if (stored == null) {
+                storage.put(idx, address);
+            } else if (stored instanceof Long) {
+                storage.put(idx, new long[] { (Long) stored, address });
+            } else {
+                long[] addresses = (long[]) stored;
+                addresses = Arrays.copyOf(addresses, addresses.length + 1);
+                addresses[addresses.length - 1] = address;
+                storage.put(idx, addresses);
+            }
+        }
+    }
+
+    @Override
+    public boolean[] remove(I idx, E value) {
+        boolean[] result = new boolean[2];
+        Object stored = storage.get(idx);
+        if (stored == null) {
+            result[EMPTY] = true;
+        } else if (arena == null) {
+            if (stored instanceof Many) {
+                Many many = (Many) stored;
+                result[REMOVED] = many.remove(value);
+                if (many.size == 1) {
+                    storage.put(idx, many.values[0]);
+                }
+            } else if (stored.equals(value)) {
+                storage.remove(idx);
+                result[REMOVED] = true;
+                result[EMPTY] = true;
+            }
+        } else {
+            ByteBuffer bytes = pool.serialize(serde, value);
+            try {
+                removeArena(idx, stored, bytes, result);
+            } finally {
+                pool.release(bytes);
+            }
+            if (arena.isFragmented()) {
+                compact();
+            }
+        }
+        return result;
+    }
+
+    private void removeArena(I idx, Object stored, ByteBuffer bytes, boolean[] result) {
+        if (stored instanceof Long) {
+            if (bytes.equals(arena.read((Long) stored))) {
+                arena.free((Long) stored);
+                storage.remove(idx);
+                result[REMOVED] = true;
+                result[EMPTY] = true;
+            }
+        } else {
+            long[] addresses = (long[]) stored;
+            for (int i = 0; i < addresses.length; i++) {
+                if (bytes.equals(arena.read(addresses[i]))) {
+                    arena.free(addresses[i]);
+                    if (addresses.length == 2) {
+                        storage.put(idx, addresses[1 - i]);
+                    } else {
+                        long[] remaining = new long[addresses.length - 1];
+                        System.arraycopy(addresses, 0, remaining, 0, i);
+                        System.arraycopy(addresses, i + 1, remaining, i, remaining.length - i);
+                        storage.put(idx, remaining);
+                    }
+                    result[REMOVED] = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the live values into new arena pages.
+     */
+    private void compact() {
+        Arena.Compaction compaction = arena.compact();
+        for (Map.Entry<I, Object> entry : storage.entrySet()) {
+            Object stored = entry.getValue();
+            if (stored instanceof Long) {
+                entry.setValue(compaction.move((Long) stored));
+            } else {
+                long[] addresses = (long[]) stored;
+                for (int i = 0; i < addresses.length; i++) {
+                    addresses[i] = compaction.move(addresses[i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Entry<I, List<E>>> list() {
+        Iterator<Map.Entry<I, Object>> iter = storage.entrySet().iterator();
+        return new Iterator<Entry<I, List<E>>>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public Entry<I, List<E>> next() {
+                Map.Entry<I, Object> entry = iter.next();
+                return new SimpleImmutableEntry<I, List<E>>(entry.getKey(), toList(entry.getValue()));
+            }
+        };
+    }
+
+    /**
+     * The values of an index that holds more than one value.
+     */
+    private static final class Many {
+        /**
+         * The values, only the first size are used.
+         */
+        private Object[] values;
+        /**
+         * The number of values.
+         */
+        private int size;
+
+        Many(Object first, Object second) {
+            values = new Object[] { first, second };
+            size = 2;
+        }
+
+        void add(Object value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1));
+            }
+            values[size++] = value;
+        }
+
+        boolean remove(Object value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i].equals(value)) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    values[--size] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Byte pages that hold length prefixed values.  A value is addressed by its page
+     * number in the high int and its offset in the page in the low int.
+     */
+    private static final class Arena {
+        /**
+         * The size of a page.
+         */
+        private final int pageSize;
+        /**
+         * The pages.
+         */
+        private final List<byte[]> pages;
+        /**
+         * The position after the last value in the last page.
+         */
+        private int position;
+        /**
+         * The number of bytes used by live values.
+         */
+        private long liveBytes;
+        /**
+         * The number of bytes used by removed values.
+         */
+        private long deadBytes;
+
+        Arena(int pageSize) {
+            this.pageSize = pageSize;
+            this.pages = new ArrayList<byte[]>();
+            this.position = pageSize;
+        }
+
+        long size() {
+            return liveBytes + deadBytes;
+        }
+
+        /**
+         * Serializes a value directly into the last page, starting a new page if it is full.
+         * @param <E> The type of object being serialized.
+         * @param serde the serializer.
+         * @param value the value.
+         * @return the address of the value.
+         */
+        <E> long write(BufferSerde<E> serde, E value) {
+            if (position + Integer.BYTES <= pageSize) {
+                long address = writeInPage(serde, value);
+                if (address >= 0) {
+                    return address;
+                }
+            }
+            pages.add(new byte[pageSize]);
+            position = 0;
+            long address = writeInPage(serde, value);
+            if (address >= 0) {
+                return address;
+            }
+            pages.remove(pages.size() - 1);
+            position = pageSize;
+            byte[] bytes = serde.serialize(value);
+            return write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Serializes a value at the position in the last page.
+         * @return the address of the value or -1 if it does not fit.
+         */
+        private <E> long writeInPage(BufferSerde<E> serde, E value) {
+            byte[] page = pages.get(pages.size() - 1);
+            int offset = position;
+            ByteBuffer view = ByteBuffer.wrap(page, offset + Integer.BYTES, pageSize - offset - Integer.BYTES);
+            try {
+                serde.serialize(value, view);
+            } catch (BufferOverflowException e) {
+                return -1;
+            }
+            int length = view.position() - offset;
+            putInt(page, offset, length - Integer.BYTES);
+            position += length;
+            liveBytes += length;
+            return ((long) (pages.size() - 1) << Integer.SIZE) | offset;
+        }
+
+        long write(byte[] value, int from, int valueLength) {
+            int length = Integer.BYTES + valueLength;
+            if (position + length > pageSize) {
+                // a value larger than a page gets a page of its own.
+                pages.add(new byte[Math.max(pageSize, length)]);
+                position = 0;
+            }
+            byte[] page = pages.get(pages.size() - 1);
+            int offset = position;
+            putInt(page, offset, valueLength);
+            System.arraycopy(value, from, page, offset + Integer.BYTES, valueLength);
+            position = length > pageSize ? pageSize : position + length;
+            liveBytes += length;
+            return ((long) (pages.size() - 1) << Integer.SIZE) | offset;
+        }
+
+        /**
+         * Gets a view of a value in its page.
+         * @param address the address of the value.
+         * @return a buffer positioned and limited to the value.
+         */
+        ByteBuffer read(long address) {
+            byte[] page = pages.get((int) (address >>> Integer.SIZE));
+            int offset = (int) address;
+            return ByteBuffer.wrap(page, offset + Integer.BYTES, getInt(page, offset));
+        }
+
+        void free(long address) {
+            byte[] page = pages.get((int) (address >>> Integer.SIZE));
+            int length = Integer.BYTES + getInt(page, (int) address);
+            liveBytes -= length;
+            deadBytes += length;
+        }
+
+        boolean isFragmented() {
+            return deadBytes > pageSize && deadBytes > liveBytes;
+        }
+
+        /**
+         * Starts a compaction: the current pages are detached and values are moved from them
+         * into new pages.
+         * @return the compaction.
+         */
+        Compaction compact() {
+            Compaction compaction = new Compaction(new ArrayList<byte[]>(pages));
+            pages.clear();
+            position = pageSize;
+            liveBytes = 0;
+            deadBytes = 0;
+            return compaction;
+        }
+
+        private static int getInt(byte[] page, int offset) {
+            return ((page[offset] & 0xff) << 24) | ((page[offset + 1] & 0xff) << 16)
+                    | ((page[offset + 2] & 0xff) << 8) | (page[offset + 3] & 0xff);
+        }
+
+        private static void putInt(byte[] page, int offset, int value) {
+            page[offset] = (byte) (value >>> 24);
+            page[offset + 1] = (byte) (value >>> 16);
+            page[offset + 2] = (byte) (value >>> 8);
+            page[offset + 3] = (byte) value;
+        }
+
+        /**
+         * Moves values from detached pages into the arena.
+         */
+        final class Compaction {
+            /**
+             * The detached pages.
+             */
+            private final List<byte[]> oldPages;
+
+            Compaction(List<byte[]> oldPages) {
+                this.oldPages = oldPages;
+            }
+
+            long move(long address) {
+                byte[] page = oldPages.get((int) (address >>> Integer.SIZE));
+                int offset = (int) address;
+                return write(page, offset + Integer.BYTES, getInt(page, offset));
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A Serde that compresses the bytes of another Serde with a preset Deflater dictionary.
+ * <p>
+ * Small values compress poorly on their own because deflate has nothing to refer back
+ * to.  A dictionary of byte sequences common to the values, trained from a sample with
+ * {@code train()}, gives it that history.  Each value is compressed on its own, so the
+ * serde may wrap the Serde of any Storage, for example the arena of a CompactInMemory
+ * or an IgniteStorage.  A value that does not get smaller is stored uncompressed.
+ * </p>
+ * <p>
+ * The dictionary must be the same when the values are read as when they were written.
+ * The serde keeps counts of the bytes before and after compression and of the time
+ * spent compressing and decompressing.  It is thread safe.
+ * </p>
+ *
+ * @param <E> The type of object being serialized.
+ */
+public class CompressingSerde<E> implements Serde<E> {
+    /**
+     * The default maximum size of a trained dictionary.
+     */
+    public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024;
+    /**
+     * The length of the byte sequences counted while training.
+     */
+    private static final int GRAM = 8;
+    /**
+     * The flag byte of a value stored uncompressed.
+     */
+    private static final byte STORED = 0;
+    /**
+     * The flag byte of a compressed value.
+     */
+    private static final byte DEFLATED = 1;
+
+    /**
+     * The serde for the values.
+     */
+    private final Serde<E> serde;
+    /**
+     * The preset dictionary.
+     */
+    private final byte[] dictionary;
+    /**
+     * The deflater for each thread.
+     */
+    private final ThreadLocal<Deflater> deflater;
+    /**
+     * The inflater for each thread.
+     */
+    private final ThreadLocal<Inflater> inflater;
+    /**
+     * The number of bytes serialized before compression.
+     */
+    private final AtomicLong rawBytes = new AtomicLong();
+    /**
+     * The number of bytes serialized after compression.
+     */
+    private final AtomicLong compressedBytes = new AtomicLong();
+    /**
+     * The time spent compressing in nanoseconds.
+     */
+    private final AtomicLong compressNanos = new AtomicLong();
+    /**
+     * The time spent decompressing in nanoseconds.
+     */
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    /**
+     * Constructs a compressing serde with the default compression level.
+     * @param serde the serde for the values.
+     * @param dictionary the preset dictionary, may be empty.
+     */
+    public CompressingSerde(Serde<E> serde, byte[] dictionary) {
+        this(serde, dictionary, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructs a compressing serde.
+     * @param serde the serde for the values.
+     * @param dictionary the preset dictionary, may be empty.
+     * @param level the Deflater compression level.
+     */
+    public CompressingSerde(Serde<E> serde, byte[] dictionary, int level) {
+        this.serde = serde;
+        this.dictionary = dictionary.clone();
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        this.inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    }
+
+    /**
+     * Trains a dictionary from a sample of values.
+     * <p>
+     * Byte sequences that occur in more than one value of the sample are collected
+     * and the sequences that cover the most bytes across the sample are placed in the
+     * dictionary, the most valuable last as deflate reaches nearer bytes more cheaply.
+     * </p>
+     * @param <E> The type of object being serialized.
+     * @param serde the serde for the values.
+     * @param sample the sample of values.
+     * @param maxSize the maximum size of the dictionary.
+     * @return the dictionary.
+     */
+    public static <E> byte[] train(Serde<E> serde, Collection<E> sample, int maxSize) {
+        List<byte[]> values = new ArrayList<byte[]>(sample.size());
+        sample.forEach(value -> values.add(serde.serialize(value)));
+
+        // the number of values each gram occurs in.
+        Map<String, Integer> gramCounts = new HashMap<String, Integer>();
+        for (byte[] value : values) {
+            Set<String> grams = new HashSet<String>();
+            for (int i = 0; i + GRAM <= value.length; i++) {
+                grams.add(new String(value, i, GRAM, StandardCharsets.ISO_8859_1));
+            }
+            grams.forEach(gram -> gramCounts.merge(gram, 1, Integer::sum));
+        }
+
+        // runs of common grams are merged into segments.
+        Map<String, Integer> segmentCounts = new HashMap<String, Integer>();
+        for (byte[] value : values) {
+            int start = -1;
+            int end = -1;
+            for (int i = 0; i + GRAM <= value.length; i++) {
+                if (gramCounts.get(new String(value, i, GRAM, StandardCharsets.ISO_8859_1)) > 1) {
+                    if (i > end) {
+                        addSegment(segmentCounts, value, start, end);
+                        start = i;
+                    }
+                    end = i + GRAM;
+                }
+            }
+            addSegment(segmentCounts, value, start, end);
+        }
+
+        List<Map.Entry<String, Integer>> segments = new ArrayList<Map.Entry<String, Integer>>(
+                segmentCounts.entrySet());
+        segments.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(),
+                (long) a.getValue() * a.getKey().length()));
+        List<String> selected = new ArrayList<String>();
+        StringBuilder included = new StringBuilder();
+        int size = 0;
+        for (Map.Entry<String, Integer> segment : segments) {
+            String bytes = segment.getKey();
+            if (size + bytes.length() <= maxSize && included.indexOf(bytes) < 0) {
+                selected.add(bytes);
+                included.append(bytes).append('\0');
+                size += bytes.length();
+            }
+        }
+        StringBuilder dictionary = new StringBuilder(size);
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            dictionary.append(selected.get(i));
+        }
+        return dictionary.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void addSegment(Map<String, Integer> segmentCounts, byte[] value, int start, int end) {
+        if (start >= 0) {
+            segmentCounts.merge(new String(value, start, end - start, StandardCharsets.ISO_8859_1), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Gets a copy of the dictionary.
+     * @return the dictionary.
+     */
+    public byte[] getDictionary() {
+        return dictionary.clone();
+    }
+
+    @Override
+    public byte[] serialize(E data) {
+        byte[] raw = serde.serialize(data);
+        long start = System.nanoTime();
+        Deflater def = deflater.get();
+        def.reset();
+        if (dictionary.length > 0) {
+            def.setDictionary(dictionary);
+        }
+        def.setInput(raw);
+        def.finish();
+        byte[] header = lengthHeader(DEFLATED, raw.length);
+        byte[] result = Arrays.copyOf(header, header.length + raw.length);
+        int length = header.length;
+        while (!def.finished() && length < result.length) {
+            length += def.deflate(result, length, result.length - length);
+        }
+        if (!def.finished()) {
+            // compression did not help, store the value.
+            result = new byte[raw.length + 1];
+            result[0] = STORED;
+            System.arraycopy(raw, 0, result, 1, raw.length);
+        } else {
+            result = Arrays.copyOf(result, length);
+        }
+        compressNanos.addAndGet(System.nanoTime() - start);
+        rawBytes.addAndGet(raw.length);
+        compressedBytes.addAndGet(result.length);
+        return result;
+    }
+
+    /**
+     * Creates the header of a compressed value: the flag and the uncompressed length
+     * as a variable length int.
+     */
+    private static byte[] lengthHeader(byte flag, int length) {
+        byte[] header = new byte[6];
+        header[0] = flag;
+        int pos = 1;
+        while ((length & ~0x7f) != 0) {
+            header[pos++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        header[pos++] = (byte) length;
+        return Arrays.copyOf(header, pos);
+    }
+
+    @Override
+    public E deserialize(byte[] data) {
+        if (data[0] == STORED) {
+            return serde.deserialize(Arrays.copyOfRange(data, 1, data.length));
+        }
+        long start = System.nanoTime();
+        int pos = 1;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos++];
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        Inflater inf = inflater.get();
+        inf.reset();
+        if (dictionary.length > 0) {
+            inf.setDictionary(dictionary);
+        }
+        inf.setInput(data, pos, data.length - pos);
+        byte[] raw = new byte[length];
+        try {
+            int read = 0;
+            while (read < length) {
+                int n = inf.inflate(raw, read, length - read);
+                if (n == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) {
+                    throw new IllegalArgumentException("Compressed value is truncated");
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Compressed value is corrupt", e);
+        }
+        decompressNanos.addAndGet(System.nanoTime() - start);
+        return serde.deserialize(raw);
+    }
+
+    /**
+     * Gets the ratio of the bytes before compression to the bytes after compression
+     * for the values serialized so far.
+     * @return the compression ratio, or 1 if nothing has been serialized.
+     */
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 1.0 : (double) rawBytes.get() / compressed;
+    }
+
+    /**
+     * Gets the number of bytes serialized before compression.
+     * @return the uncompressed byte count.
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes serialized after compression, including headers.
+     * @return the compressed byte count.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Gets the time spent compressing, not including the wrapped serde.
+     * @return the compression time in nanoseconds.
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    /**
+     * Gets the time spent decompressing, not including the wrapped serde.
+     * @return the decompression time in nanoseconds.
+     */
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompressingSerde[dictionary=%s ratio=%.2f compress=%sns decompress=%sns]",
+                dictionary.length, getCompressionRatio(), compressNanos.get(), decompressNanos.get());
+    }
+}
@@ -17,99 +17,487 @@
  */
 package org.xenei.bloom.multidimensional.storage;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.MutableEntry;
+
 import org.apache.commons.collections4.Transformer;
 import org.apache.commons.collections4.iterators.TransformIterator;
 import org.apache.ignite.cache.query.QueryCursor;
 import org.apache.ignite.cache.query.ScanQuery;
 import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.ClientConnectionException;
+import org.apache.ignite.client.ClientException;
 import org.apache.ignite.client.IgniteClient;
+import org.apache.ignite.configuration.CacheConfiguration;
 import org.xenei.bloom.multidimensional.Container.Storage;
 
+/**
+ * A Storage in an Ignite cache.
+ * <p>
+ * The values for an index are held as a map from the content hash of the serialized
+ * value to the serialized values with that hash.  Removing a value is a hash lookup
+ * and a content comparison within the bucket rather than a scan of all the serialized
+ * values.  Values are returned grouped by hash in the order each hash was first put.
+ * </p>
+ * <p>
+ * Values written by earlier versions, which kept a list of values for each index in a
+ * cache named {@value #LEGACY_CACHE_NAME}, are moved into the cache when the storage is
+ * opened and the earlier cache is destroyed.
+ * </p>
+ * <p>
+ * The whole cache may be read with {@code list()}, a single sequential scan, or with
+ * {@code scan()} and {@code scanIds()}, which scan the partitions in parallel for bulk
+ * loading an index.
+ * </p>
+ *
+ * @param <E> The type of object being stored.
+ */
 public class IgniteStorage<E> implements Storage<E,UUID> {
 
-    private static final String CACHE_NAME = "IgniteStorage";
+    /**
+     * The name of the cache.
+     */
+    static final String CACHE_NAME = "IgniteStorageValues";
+    /**
+     * The name of the cache written by earlier versions, which held a list of the
+     * serialized values for each index.  It is migrated when the storage is opened.
+     */
+    static final String LEGACY_CACHE_NAME = "IgniteStorage";
+    /**
+     * The default number of entries fetched in each page of a scan.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1024;
     private Serde<E> serde;
-    private ClientCache<UUID, List<byte[]>> cache;
+    private ClientCache<UUID, LinkedHashMap<Integer, List<byte[]>>> cache;
+    /**
+     * The number of partitions in the cache.
+     */
+    private final int partitions;
 
+    /**
+     * Constructs an IgniteStorage, detecting the number of partitions in the cache.
+     * @param igniteClient the client to connect with.
+     * @param serde the serializer for the values.
+     */
     public IgniteStorage(IgniteClient igniteClient, Serde<E> serde) {
         this.serde = serde;
         this.cache = igniteClient.getOrCreateCache(CACHE_NAME);
+        migrate( igniteClient );
+        this.partitions = detectPartitions();
+    }
+
+    /**
+     * Constructs an IgniteStorage on a cache with a known number of partitions.
+     * <p>
+     * The number is checked against the server so that a scan never silently misses
+     * partitions.
+     * </p>
+     * @param igniteClient the client to connect with.
+     * @param serde the serializer for the values.
+     * @param partitions the number of partitions in the cache.
+     * @throws IllegalArgumentException if the cache does not have that number of partitions.
+     */
+    public IgniteStorage(IgniteClient igniteClient, Serde<E> serde, int partitions) {
+        if (partitions < 1 || partitions > CacheConfiguration.MAX_PARTITIONS_COUNT) {
+            throw new IllegalArgumentException( String.format( "Partitions must be between 1 and %s",
+                    CacheConfiguration.MAX_PARTITIONS_COUNT ) );
+        }
+        this.serde = serde;
+        this.cache = igniteClient.getOrCreateCache(CACHE_NAME);
+        migrate( igniteClient );
+        if (!hasPartition( partitions - 1 ) || hasPartition( partitions )) {
+            throw new IllegalArgumentException( String.format( "Cache %s does not have %s partitions", CACHE_NAME, partitions ) );
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * Moves the values of the cache written by earlier versions into the cache and
+     * destroys the earlier cache.
+     * <p>
+     * Each index is appended to the cache and then removed from the earlier cache, so a
+     * migration interrupted by a crash resumes on the next open.  The values of the index
+     * being moved when the crash happened may be appended twice.  Only one client should
+     * open the storage while the migration runs.
+     * </p>
+     * @param igniteClient the client to connect with.
+     */
+    private void migrate(IgniteClient igniteClient) {
+        if (!igniteClient.cacheNames().contains( LEGACY_CACHE_NAME )) {
+            return;
+        }
+        ClientCache<UUID, List<byte[]>> legacy = igniteClient.cache( LEGACY_CACHE_NAME );
+        try (QueryCursor<javax.cache.Cache.Entry<UUID, List<byte[]>>> cursor = legacy.query( new ScanQuery<UUID, List<byte[]>>() )) {
+            for (javax.cache.Cache.Entry<UUID, List<byte[]>> entry : cursor) {
+                cache.invoke( entry.getKey(), new Append(), entry.getValue().toArray() );
+                legacy.remove( entry.getKey() );
+            }
+        }
+        igniteClient.destroyCache( LEGACY_CACHE_NAME );
+    }
+
+    /**
+     * Finds the number of partitions in the cache.
+     * <p>
+     * The thin client can not read the affinity of a cache so the partitions are probed
+     * with a binary search, the server rejects a scan of a partition that does not exist.
+     * </p>
+     * @return the number of partitions in the cache.
+     */
+    private int detectPartitions() {
+        int low = 1;
+        int high = CacheConfiguration.MAX_PARTITIONS_COUNT;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (hasPartition( mid - 1 )) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Determines if the server accepts a scan of a partition.
+     * @param partition the partition number.
+     * @return true if the partition exists.
+     * @throws ClientConnectionException if the server can not be reached.
+     */
+    private boolean hasPartition(int partition) {
+        ScanQuery<UUID, LinkedHashMap<Integer, List<byte[]>>> scan = new ScanQuery<UUID, LinkedHashMap<Integer, List<byte[]>>>()
+                .setPartition( partition );
+        scan.setPageSize( 1 );
+        try (QueryCursor<javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>>> cursor = cache.query( scan )) {
+            cursor.iterator().hasNext();
+            return true;
+        } catch (ClientConnectionException e) {
+            throw e;
+        } catch (ClientException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the number of partitions in the cache.
+     * @return the number of partitions scanned by {@code scan()} and {@code scanIds()}.
+     */
+    public int getPartitions() {
+        return partitions;
     }
 
     @Override
     public Collection<E> get(UUID idx) {
-        List<byte[]> cachedVal = cache.get(idx);
+        LinkedHashMap<Integer, List<byte[]>> cachedVal = cache.get(idx);
         if (cachedVal == null) {
             return Collections.emptyList();
         }
-        return cachedVal.stream().map( serde::deserialize ).collect( Collectors.toList() );
+        return deserialize( cachedVal );
+    }
+
+    private List<E> deserialize(Map<Integer, List<byte[]>> values) {
+        List<E> result = new ArrayList<E>();
+        values.values().forEach( bucket -> bucket.forEach( value -> result.add( serde.deserialize( value ) ) ) );
+        return result;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The value is appended on the server in a single round trip.
+     * </p>
+     */
     @Override
     public void put(UUID idx, E value) {
-        List<byte[]> cachedVal = cache.get(idx);
-        if (cachedVal == null)
-        {
-            cachedVal = new ArrayList<byte[]>();
+        cache.invoke( idx, new Append(), serde.serialize( value ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The values are appended on the server in a single round trip.
+     * </p>
+     */
+    @Override
+    public void putAll(UUID idx, Collection<E> values) {
+        byte[][] serialized = values.stream().map( serde::serialize ).toArray( byte[][]::new );
+        cache.invoke( idx, new Append(), (Object[]) serialized );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each index is sent only its own values.  The requests for all the indexes are sent
+     * before waiting for any reply.
+     * </p>
+     */
+    @Override
+    public void putAll(Map<UUID, ? extends Collection<E>> values) {
+        try {
+            putAllAsync( values ).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
-        cachedVal.add( serde.serialize( value ));
-        cache.getAndPut( idx,  cachedVal );
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each index is sent only its own values.  The requests for all the indexes are sent
+     * before waiting for any reply.
+     * </p>
+     */
+    @Override
+    public CompletableFuture<Void> putAllAsync(Map<UUID, ? extends Collection<E>> values) {
+        CompletableFuture<?>[] futures = values.entrySet().stream()
+                .map( entry -> cache.invokeAsync( entry.getKey(), new Append(),
+                        (Object[]) entry.getValue().stream().map( serde::serialize ).toArray( byte[][]::new ) ).toCompletableFuture() )
+                .toArray( CompletableFuture<?>[]::new );
+        return CompletableFuture.allOf( futures );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The values are fetched in a single round trip.
+     * </p>
+     */
+    @Override
+    public Map<UUID, Collection<E>> getAll(Collection<UUID> idxs) {
+        return deserializeAll( cache.getAll( new HashSet<UUID>( idxs ) ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The values are fetched in a single round trip.
+     * </p>
+     */
+    @Override
+    public CompletableFuture<Map<UUID, Collection<E>>> getAllAsync(Collection<UUID> idxs) {
+        return cache.getAllAsync( new HashSet<UUID>( idxs ) ).thenApply( this::deserializeAll ).toCompletableFuture();
+    }
+
+    private Map<UUID, Collection<E>> deserializeAll(Map<UUID, LinkedHashMap<Integer, List<byte[]>>> cached) {
+        Map<UUID, Collection<E>> result = new HashMap<UUID, Collection<E>>();
+        cached.forEach( (idx, values) -> result.put( idx, deserialize( values ) ) );
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The value is removed on the server in a single round trip.
+     * </p>
+     */
     @Override
     public boolean[] remove(UUID idx, E value) {
-        boolean[] result = new boolean[2];
-        result[REMOVED] = false;
-        result[EMPTY] = false;
-        List<byte[]> lst = cache.get(idx);
-        if (lst != null) {
-            result[REMOVED] = lst.remove( serde.serialize(value));
-            if (lst.isEmpty()) {
-                cache.remove(idx);
+        return cache.invoke( idx, new Remove(), serde.serialize( value ) );
+    }
+
+    /**
+     * Appends the serialized values passed as arguments to the values for an index.
+     * <p>
+     * Entry processors run on the server so this class must be on the classpath of the
+     * server nodes.
+     * </p>
+     */
+    static class Append implements EntryProcessor<UUID, LinkedHashMap<Integer, List<byte[]>>, Void>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Void process(MutableEntry<UUID, LinkedHashMap<Integer, List<byte[]>>> entry, Object... arguments) {
+            append( entry, Arrays.asList( arguments ) );
+            return null;
+        }
+
+        /**
+         * Appends serialized values to the values for an index.
+         * @param entry the entry for the index.
+         * @param serialized the serialized values.
+         */
+        static void append(MutableEntry<UUID, LinkedHashMap<Integer, List<byte[]>>> entry, List<?> serialized) {
+            LinkedHashMap<Integer, List<byte[]>> values = entry.exists() ? new LinkedHashMap<Integer, List<byte[]>>( entry.getValue() )
+                    : new LinkedHashMap<Integer, List<byte[]>>();
+            for (Object value : serialized) {
+                byte[] bytes = (byte[]) value;
+                // the buckets of the entry value are copied, not changed in place.
+                values.compute( Arrays.hashCode( bytes ), (k, bucket) -> {
+                    List<byte[]> result = bucket == null ? new ArrayList<byte[]>(1) : new ArrayList<byte[]>( bucket );
+                    result.add( bytes );
+                    return result;
+                });
+            }
+            entry.setValue( values );
+        }
+    }
+
+    /**
+     * Removes a serialized value from the values for an index, removing the index when
+     * there are no values left.
+     * <p>
+     * Entry processors run on the server so this class must be on the classpath of the
+     * server nodes.
+     * </p>
+     */
+    static class Remove implements EntryProcessor<UUID, LinkedHashMap<Integer, List<byte[]>>, boolean[]>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean[] process(MutableEntry<UUID, LinkedHashMap<Integer, List<byte[]>>> entry, Object... arguments) {
+            boolean[] result = new boolean[2];
+            if (!entry.exists()) {
                 result[EMPTY] = true;
-            } else {
-                result[EMPTY] = false;
+                return result;
+            }
+            LinkedHashMap<Integer, List<byte[]>> values = new LinkedHashMap<Integer, List<byte[]>>( entry.getValue() );
+            byte[] value = (byte[]) arguments[0];
+            int hash = Arrays.hashCode( value );
+            List<byte[]> bucket = values.get( hash );
+            if (bucket != null) {
+                // the bucket holds equal values and hash collisions so it is nearly always small.
+                for (int i = 0; i < bucket.size(); i++) {
+                    if (Arrays.equals( value, bucket.get(i) )) {
+                        result[REMOVED] = true;
+                        if (bucket.size() == 1) {
+                            values.remove( hash );
+                        } else {
+                            List<byte[]> remaining = new ArrayList<byte[]>( bucket );
+                            remaining.remove(i);
+                            values.put( hash, remaining );
+                        }
+                        break;
+                    }
+                }
+            }
+            if (values.isEmpty()) {
+                entry.remove();
+                result[EMPTY] = true;
+            } else if (result[REMOVED]) {
+                entry.setValue( values );
             }
-        } else {
-            result[EMPTY] = true;
+            return result;
         }
-        return result;
     }
 
     @Override
     public Iterator<Map.Entry<UUID, List<E>>> list() {
-        ScanQuery<UUID, List<byte[]>> scan = new ScanQuery<UUID, List<byte[]>>();
-        QueryCursor<javax.cache.Cache.Entry<UUID, List<byte[]>>> cursor = cache.query(scan);
-        return new TransformIterator<javax.cache.Cache.Entry<UUID, List<byte[]>>,Map.Entry<UUID, List<E>>>( cursor.iterator(), new Transformer
-                <javax.cache.Cache.Entry<UUID, List<byte[]>>,
+        ScanQuery<UUID, LinkedHashMap<Integer, List<byte[]>>> scan = new ScanQuery<UUID, LinkedHashMap<Integer, List<byte[]>>>();
+        QueryCursor<javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>>> cursor = cache.query(scan);
+        return new TransformIterator<javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>>,Map.Entry<UUID, List<E>>>( cursor.iterator(), new Transformer
+                <javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>>,
                 Map.Entry<UUID, List<E>>>(){
 
             @Override
             public Entry<UUID, List<E>> transform(
-                    javax.cache.Cache.Entry<UUID, List<byte[]>> input) {
+                    javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>> input) {
                 return new Converter(input);
             }});
     }
 
+    /**
+     * Scans the cache, one query per partition, and passes the values to the consumer
+     * in batches.
+     * <p>
+     * The partitions are scanned and the values deserialized on the executor, so the
+     * consumer is called from several threads at once.  The batches are suitable for
+     * building an index in bulk with {@code Index.putAll()}.
+     * </p>
+     * @param pageSize the number of entries fetched in each page and passed in each batch.
+     * @param executor the executor to scan the partitions on.
+     * @param consumer the consumer of the batches of storage index to values.
+     */
+    public void scan(int pageSize, Executor executor, Consumer<Map<UUID, List<E>>> consumer) {
+        scanPartitions( pageSize, executor, batch -> {
+            Map<UUID, List<E>> result = new HashMap<UUID, List<E>>();
+            batch.forEach( entry -> result.put( entry.getKey(), deserialize( entry.getValue() ) ) );
+            consumer.accept( result );
+        });
+    }
+
+    /**
+     * Scans the cache, one query per partition, and passes the storage indexes to the
+     * consumer in batches.
+     * <p>
+     * The values are still sent by the server but they are not deserialized.  The
+     * consumer is called from several threads at once.
+     * </p>
+     * @param pageSize the number of entries fetched in each page and passed in each batch.
+     * @param executor the executor to scan the partitions on.
+     * @param consumer the consumer of the batches of storage indexes.
+     */
+    public void scanIds(int pageSize, Executor executor, Consumer<List<UUID>> consumer) {
+        scanPartitions( pageSize, executor,
+                batch -> consumer.accept( batch.stream().map( javax.cache.Cache.Entry::getKey ).collect( Collectors.toList() ) ) );
+    }
+
+    private void scanPartitions(int pageSize, Executor executor,
+            Consumer<List<javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>>>> consumer) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException( "Page size must be greater than 0" );
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[partitions];
+        for (int i = 0; i < partitions; i++) {
+            ScanQuery<UUID, LinkedHashMap<Integer, List<byte[]>>> scan = new ScanQuery<UUID, LinkedHashMap<Integer, List<byte[]>>>()
+                    .setPartition( i );
+            scan.setPageSize( pageSize );
+            futures[i] = CompletableFuture.runAsync( () -> {
+                try (QueryCursor<javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>>> cursor = cache.query( scan )) {
+                    List<javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>>> batch = new ArrayList<>( pageSize );
+                    for (javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>> entry : cursor) {
+                        batch.add( entry );
+                        if (batch.size() == pageSize) {
+                            consumer.accept( batch );
+                            batch = new ArrayList<>( pageSize );
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        consumer.accept( batch );
+                    }
+                }
+            }, executor );
+        }
+        try {
+            CompletableFuture.allOf( futures ).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
 
     /**
-     * Converts a javax.cache.Cache.Entry<UUID, List<byte[]>> to a Map.Entry<UUID, List<E>>.
+     * Converts a javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>> to a Map.Entry<UUID, List<E>>.
      *
      */
     class Converter implements Map.Entry<UUID, List<E>> {
 
-        private javax.cache.Cache.Entry<UUID, List<byte[]>> ce;
+        private javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>> ce;
 
-        Converter( javax.cache.Cache.Entry<UUID, List<byte[]>> ce ) {
+        Converter( javax.cache.Cache.Entry<UUID, LinkedHashMap<Integer, List<byte[]>>> ce ) {
             this.ce = ce;
         }
 
@@ -120,7 +508,7 @@ public class IgniteStorage<E> implements Storage<E,UUID> {
 
         @Override
         public List<E> getValue() {
-            return ce.getValue().stream().map( serde::deserialize ).collect( Collectors.toList() );
+            return deserialize( ce.getValue() );
         }
 
         @Override
@@ -46,6 +46,11 @@ public class InMemory<E,I> implements Storage<E,I> {
         lst.add(value);
     }
 
+    @Override
+    public void putAll(I idx, Collection<E> values) {
+        storage.computeIfAbsent(idx, k -> new ArrayList<E>(values.size())).addAll(values);
+    }
+
     @Override
     public boolean[] remove(I idx, E value) {
         boolean[] result = new boolean[2];
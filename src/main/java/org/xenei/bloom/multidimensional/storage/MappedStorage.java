@@ -0,0 +1,885 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+/**
+ * A Storage that appends serialized values to memory mapped segment files.
+ * <p>
+ * Values are serialized by a Serde and appended, with their serialized index, to
+ * the active segment.  A BufferSerde writes directly into, and reads directly from,
+ * the mapped segment so no intermediate arrays are created.  When the active segment is full a new one is started.  Only
+ * the offsets of the records are kept on the heap, so the storage may hold far more
+ * data than the heap.
+ * </p>
+ * <p>
+ * A removed record is marked dead in place.  Once half of a full segment is dead the
+ * segment is compacted: its live records are appended to the active segment and the
+ * segment file is deleted.  Compaction runs on the executor, or when {@code compact()}
+ * is called.
+ * </p>
+ * <p>
+ * The copies are written between a begin and a commit marker for the compacted segment,
+ * and are forced to disk before the commit marker, which is forced before the segment
+ * file is deleted.  Once the delete is on disk the markers are marked dead.  When the
+ * storage is opened the copies of a compaction without a commit marker are marked dead,
+ * and a compacted segment file that was not deleted is deleted, so a crash during
+ * compaction neither duplicates nor loses records.  Only records that match the live
+ * records of the compacted segment, in order, are taken to be copies.  A failure of a
+ * background compaction is thrown by the next call or by {@code close()}.
+ * </p>
+ * <p>
+ * Values are removed when their serialized forms are equal.  All methods are
+ * synchronized so that compaction may run in the background.  Changes are forced to
+ * disk by {@code sync()} and {@code close()}; use a WriteAheadLog for durability.
+ * </p>
+ *
+ * @param <E> The type of object being stored.
+ * @param <I> The type of object used for the index.
+ */
+public class MappedStorage<E, I> implements Storage<E, I>, Closeable {
+    /**
+     * The default size of a segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /**
+     * The fraction of a full segment that must be dead for it to be compacted.
+     */
+    private static final double COMPACT_RATIO = 0.5;
+    /**
+     * The record state after the last record of a segment.
+     */
+    private static final byte END = 0;
+    /**
+     * The record state of a live record.
+     */
+    private static final byte LIVE = 1;
+    /**
+     * The record state of a removed record.
+     */
+    private static final byte DEAD = 2;
+    /**
+     * The record state of the marker before the copies of a compacted segment.
+     */
+    private static final byte COMPACT_BEGIN = 3;
+    /**
+     * The record state of the marker after the copies of a compacted segment.
+     */
+    private static final byte COMPACT_COMMIT = 4;
+    /**
+     * The length of the record header: the state, the index length and the value length.
+     */
+    private static final int HEADER = 1 + 2 * Integer.BYTES;
+    /**
+     * The prefix of the segment file names.
+     */
+    private static final String PREFIX = "segment-";
+    /**
+     * The suffix of the segment file names.
+     */
+    private static final String SUFFIX = ".dat";
+
+    /**
+     * The directory for the segment files.
+     */
+    private final Path directory;
+    /**
+     * The serializer for the indexes.
+     */
+    private final BufferSerde<I> idSerde;
+    /**
+     * The serializer for the values.
+     */
+    private final BufferSerde<E> serde;
+    /**
+     * The buffers values are serialized into to be compared.
+     */
+    private final BufferPool pool;
+    /**
+     * The size of the segment files.
+     */
+    private final int segmentSize;
+    /**
+     * The executor for compaction, may be null.
+     */
+    private final Executor executor;
+    /**
+     * The executor created by this storage, shut down on close.
+     */
+    private final ExecutorService ownedExecutor;
+    /**
+     * The offsets of the records for each index.
+     */
+    private final Map<I, long[]> offsets;
+    /**
+     * The segments by number.
+     */
+    private final TreeMap<Integer, Segment> segments;
+    /**
+     * The segment records are appended to.
+     */
+    private Segment active;
+    /**
+     * True if a compaction has been submitted to the executor but has not run.
+     */
+    private boolean compactionPending;
+    /**
+     * The failure of a background compaction that has not been thrown.
+     */
+    private RuntimeException compactionFailure;
+
+    /**
+     * Opens a storage with the default segment size that compacts on a background thread.
+     * @param directory the directory for the segment files.
+     * @param idSerde the serializer for the indexes.
+     * @param serde the serializer for the values.
+     * @throws IOException on IO error.
+     */
+    public MappedStorage(Path directory, Serde<I> idSerde, Serde<E> serde) throws IOException {
+        this(directory, idSerde, serde, DEFAULT_SEGMENT_SIZE, null, Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MappedStorage compaction");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Opens a storage.
+     * <p>
+     * Existing segment files in the directory are scanned to rebuild the offsets.
+     * </p>
+     * @param directory the directory for the segment files.
+     * @param idSerde the serializer for the indexes.
+     * @param serde the serializer for the values.
+     * @param segmentSize the size of the segment files.
+     * @param executor the executor to compact on, or {@code null} to only compact when
+     * {@code compact()} is called.
+     * @throws IOException on IO error.
+     */
+    public MappedStorage(Path directory, Serde<I> idSerde, Serde<E> serde, int segmentSize, Executor executor)
+            throws IOException {
+        this(directory, idSerde, serde, segmentSize, executor, null);
+    }
+
+    private MappedStorage(Path directory, Serde<I> idSerde, Serde<E> serde, int segmentSize, Executor executor,
+            ExecutorService ownedExecutor) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException(String.format("Segment size must be greater than %s", HEADER));
+        }
+        this.directory = directory;
+        this.idSerde = BufferSerde.of(idSerde);
+        this.serde = BufferSerde.of(serde);
+        this.pool = new BufferPool();
+        this.segmentSize = segmentSize;
+        this.ownedExecutor = ownedExecutor;
+        this.executor = ownedExecutor == null ? executor : ownedExecutor;
+        this.offsets = new HashMap<I, long[]>();
+        this.segments = new TreeMap<Integer, Segment>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int number = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                segments.put(number, new Segment(number, file));
+            }
+        }
+        recover();
+        active = segments.isEmpty() ? newSegment() : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Rebuilds the offsets from the segments, resolving interrupted compactions.
+     * @throws IOException on IO error.
+     */
+    private void recover() throws IOException {
+        // the begin marker offset, commit marker offset (-1 if not written) and source of each compaction.
+        List<long[]> compactions = new ArrayList<long[]>();
+        long[] open = null;
+        for (Segment segment : segments.values()) {
+            for (int position = 0; segment.hasRecord(position); position += segment.getLength(position)) {
+                if (segment.getState(position) == COMPACT_BEGIN) {
+                    open = new long[] { offset(segment, position), -1, segment.getSource(position) };
+                    compactions.add(open);
+                } else if (segment.getState(position) == COMPACT_COMMIT && open != null
+                        && segment.getSource(position) == open[2]) {
+                    open[1] = offset(segment, position);
+                    open = null;
+                }
+            }
+        }
+        if (!compactions.isEmpty()) {
+            for (long[] compaction : compactions) {
+                Segment source = segments.get((int) compaction[2]);
+                if (source == null || segment(compaction[0]) == null) {
+                    // the source was deleted so the compaction committed, its commit marker may
+                    // have been compacted away since.
+                    continue;
+                }
+                if (compaction[1] == -1) {
+                    discardCopies(compaction[0], source);
+                } else {
+                    segments.remove(source.number);
+                    source.close();
+                    Files.delete(source.file);
+                }
+            }
+            segments.values().forEach(segment -> segment.buffer.force());
+            syncDirectory();
+            for (long[] compaction : compactions) {
+                for (int i = 0; i < 2; i++) {
+                    Segment segment = compaction[i] == -1 ? null : segment(compaction[i]);
+                    if (segment != null) {
+                        segment.buffer.put(position(compaction[i]), DEAD);
+                    }
+                }
+            }
+            segments.values().forEach(segment -> segment.buffer.force());
+        }
+        for (Segment segment : segments.values()) {
+            segment.load();
+        }
+    }
+
+    /**
+     * Marks dead the copies written by a compaction that did not commit.
+     * <p>
+     * The copies follow the begin marker in the order of the live records of the source
+     * segment, the first record that is not the next copy ends them.
+     * </p>
+     * @param begin the offset of the begin marker.
+     * @param source the segment being compacted.
+     */
+    private void discardCopies(long begin, Segment source) {
+        Segment segment = segment(begin);
+        int position = position(begin) + segment.getLength(position(begin));
+        Iterator<Segment> following = segments.tailMap(segment.number, false).values().iterator();
+        int sourcePosition = source.nextLive(0);
+        while (source.hasRecord(sourcePosition)) {
+            if (!segment.hasRecord(position)) {
+                if (!following.hasNext()) {
+                    return;
+                }
+                segment = following.next();
+                position = 0;
+            } else if (segment.getState(position) == LIVE
+                    && segment.idView(position).equals(source.idView(sourcePosition))
+                    && segment.valueView(position).equals(source.valueView(sourcePosition))) {
+                segment.buffer.put(position, DEAD);
+                position += segment.getLength(position);
+                sourcePosition = source.nextLive(sourcePosition + source.getLength(sourcePosition));
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forces the directory so that the creation and deletion of segment files are on disk.
+     * @throws IOException on IO error.
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = new Segment(number, directory.resolve(String.format("%s%08d%s", PREFIX, number, SUFFIX)));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private long offset(Segment segment, int position) {
+        return ((long) segment.number << Integer.SIZE) | position;
+    }
+
+    private Segment segment(long offset) {
+        return segments.get((int) (offset >>> Integer.SIZE));
+    }
+
+    private static int position(long offset) {
+        return (int) offset;
+    }
+
+    /**
+     * Gets the number of segment files.
+     * @return the number of segment files.
+     */
+    public synchronized int getSegmentCount() {
+        checkCompaction();
+        return segments.size();
+    }
+
+    @Override
+    public synchronized Collection<E> get(I idx) {
+        checkCompaction();
+        long[] recordOffsets = offsets.get(idx);
+        return recordOffsets == null ? Collections.emptyList() : read(recordOffsets);
+    }
+
+    private List<E> read(long[] recordOffsets) {
+        List<E> result = new ArrayList<E>(recordOffsets.length);
+        for (long offset : recordOffsets) {
+            result.add(serde.deserialize(segment(offset).valueView(position(offset))));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void put(I idx, E value) {
+        checkCompaction();
+        long offset = append(idx, value);
+        long[] recordOffsets = offsets.get(idx);
+        if (recordOffsets == null) {
+            offsets.put(idx, new long[] { offset });
+        } else {
+            recordOffsets = Arrays.copyOf(recordOffsets, recordOffsets.length + 1);
+            recordOffsets[recordOffsets.length - 1] = offset;
+            offsets.put(idx, recordOffsets);
+        }
+    }
+
+    /**
+     * Serializes a record into the active segment, starting a new segment if it is full.
+     * @param idx the index.
+     * @param value the value.
+     * @return the offset of the record.
+     */
+    private long append(I idx, E value) {
+        try {
+            int recordPosition = active.append(idx, value);
+            if (recordPosition < 0 && active.position > 0) {
+                active = newSegment();
+                recordPosition = active.append(idx, value);
+            }
+            if (recordPosition < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Record does not fit in a segment of %s bytes", segmentSize));
+            }
+            return offset(active, recordPosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends a serialized record to the active segment, starting a new segment if it is full.
+     * @param state the record state.
+     * @param id the serialized index.
+     * @param value the serialized value.
+     * @return the offset of the record.
+     */
+    private long append(byte state, ByteBuffer id, ByteBuffer value) {
+        int length = HEADER + id.remaining() + value.remaining();
+        if (length > segmentSize) {
+            throw new IllegalArgumentException(
+                    String.format("Record of %s bytes does not fit in a segment of %s bytes", length, segmentSize));
+        }
+        try {
+            if (active.position + length > segmentSize) {
+                active = newSegment();
+            }
+            return offset(active, active.append(state, id, value));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean[] remove(I idx, E value) {
+        checkCompaction();
+        boolean[] result = new boolean[2];
+        long[] recordOffsets = offsets.get(idx);
+        if (recordOffsets == null) {
+            result[EMPTY] = true;
+            return result;
+        }
+        ByteBuffer bytes = pool.serialize(serde, value);
+        try {
+            return remove(idx, recordOffsets, bytes, result);
+        } finally {
+            pool.release(bytes);
+        }
+    }
+
+    private boolean[] remove(I idx, long[] recordOffsets, ByteBuffer bytes, boolean[] result) {
+        for (int i = 0; i < recordOffsets.length; i++) {
+            Segment segment = segment(recordOffsets[i]);
+            if (bytes.equals(segment.valueView(position(recordOffsets[i])))) {
+                segment.kill(position(recordOffsets[i]));
+                result[REMOVED] = true;
+                if (recordOffsets.length == 1) {
+                    offsets.remove(idx);
+                    result[EMPTY] = true;
+                } else {
+                    long[] remaining = new long[recordOffsets.length - 1];
+                    System.arraycopy(recordOffsets, 0, remaining, 0, i);
+                    System.arraycopy(recordOffsets, i + 1, remaining, i, remaining.length - i);
+                    offsets.put(idx, remaining);
+                }
+                if (segment != active && segment.isCompactable() && executor != null && !compactionPending) {
+                    compactionPending = true;
+                    executor.execute(this::compactInBackground);
+                }
+                return result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compacts the full segments that are at least half dead.
+     * <p>
+     * The live records are appended to the active segment and the segment files are deleted.
+     * </p>
+     * @throws UncheckedIOException on IO error.
+     */
+    public synchronized void compact() {
+        checkCompaction();
+        compactionPending = false;
+        List<Segment> compactable = new ArrayList<Segment>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.isCompactable()) {
+                compactable.add(segment);
+            }
+        }
+        try {
+            for (Segment segment : compactable) {
+                compact(segment);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies the live records of a segment to the active segment and deletes the segment.
+     * <p>
+     * If the copy fails the copies and markers are marked dead and the offsets are
+     * restored, so the segment still holds the live records.
+     * </p>
+     * @param segment the segment to compact.
+     * @throws IOException on IO error.
+     */
+    private void compact(Segment segment) throws IOException {
+        long begin = mark(COMPACT_BEGIN, segment);
+        int first = segment(begin).number;
+        long commit = -1;
+        List<I> movedIds = new ArrayList<I>();
+        List<long[]> moves = new ArrayList<long[]>();
+        try {
+            force(first);
+            for (int position = 0; segment.hasRecord(position); position += segment.getLength(position)) {
+                if (segment.getState(position) == LIVE) {
+                    I idx = idSerde.deserialize(segment.idView(position));
+                    long oldOffset = offset(segment, position);
+                    long newOffset = append(LIVE, segment.idView(position), segment.valueView(position));
+                    movedIds.add(idx);
+                    moves.add(new long[] { oldOffset, newOffset });
+                    relocate(idx, oldOffset, newOffset);
+                }
+            }
+            // the copies must be on disk before the commit and the commit before the delete.
+            force(first);
+            commit = mark(COMPACT_COMMIT, segment);
+            force(first);
+        } catch (RuntimeException e) {
+            for (int i = 0; i < moves.size(); i++) {
+                long[] move = moves.get(i);
+                segment(move[1]).kill(position(move[1]));
+                relocate(movedIds.get(i), move[1], move[0]);
+            }
+            segment(begin).kill(position(begin));
+            if (commit != -1) {
+                segment(commit).kill(position(commit));
+            }
+            force(first);
+            throw e;
+        }
+        segments.remove(segment.number);
+        segment.close();
+        Files.delete(segment.file);
+        // the delete must be on disk before the markers are dead, or a crash could restore
+        // the segment with nothing to say that its records were copied.
+        syncDirectory();
+        segment(begin).kill(position(begin));
+        segment(commit).kill(position(commit));
+        force(first);
+    }
+
+    /**
+     * Changes the offset of a record of an index.
+     * @param idx the index.
+     * @param from the old offset.
+     * @param to the new offset.
+     */
+    private void relocate(I idx, long from, long to) {
+        long[] recordOffsets = offsets.get(idx);
+        for (int i = 0; i < recordOffsets.length; i++) {
+            if (recordOffsets[i] == from) {
+                recordOffsets[i] = to;
+            }
+        }
+    }
+
+    /**
+     * Compacts on the executor, recording a failure to be thrown by the next call.
+     */
+    private synchronized void compactInBackground() {
+        if (segments.isEmpty()) {
+            // closed before the compaction ran.
+            return;
+        }
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            compactionFailure = e;
+        }
+    }
+
+    /**
+     * Throws the failure of a background compaction, if there is one.
+     * @throws RuntimeException the failure of the background compaction.
+     */
+    private void checkCompaction() {
+        RuntimeException failure = compactionFailure;
+        if (failure != null) {
+            compactionFailure = null;
+            throw failure;
+        }
+    }
+
+    /**
+     * Appends a compaction marker.
+     * @param state the marker state.
+     * @param segment the segment being compacted.
+     * @return the offset of the marker.
+     */
+    private long mark(byte state, Segment segment) {
+        ByteBuffer source = ByteBuffer.allocate(Integer.BYTES);
+        source.putInt(0, segment.number);
+        return append(state, ByteBuffer.allocate(0), source);
+    }
+
+    /**
+     * Forces the segments from a segment number to disk.
+     * @param first the number of the first segment to force.
+     */
+    private void force(int first) {
+        segments.tailMap(first).values().forEach(segment -> segment.buffer.force());
+    }
+
+    /**
+     * Forces the segments to disk.
+     */
+    public synchronized void sync() {
+        checkCompaction();
+        segments.values().forEach(segment -> segment.buffer.force());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            segment.close();
+        }
+        segments.clear();
+        offsets.clear();
+        if (compactionFailure != null) {
+            RuntimeException failure = compactionFailure;
+            compactionFailure = null;
+            throw new IOException("Background compaction failed", failure);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The segments are scanned in order and each index is listed when its first
+     * record is reached.  The iterator reflects the storage when it was created and
+     * must not be used after the storage is changed.
+     * </p>
+     */
+    @Override
+    public synchronized Iterator<Entry<I, List<E>>> list() {
+        checkCompaction();
+        List<Segment> scan = new ArrayList<Segment>(segments.values());
+        return new Iterator<Entry<I, List<E>>>() {
+            private final Iterator<Segment> segmentIter = scan.iterator();
+            private Segment segment;
+            private int position;
+            private Entry<I, List<E>> next;
+
+            @Override
+            public boolean hasNext() {
+                synchronized (MappedStorage.this) {
+                    while (next == null) {
+                        if (segment == null || !segment.hasRecord(position)) {
+                            if (!segmentIter.hasNext()) {
+                                return false;
+                            }
+                            segment = segmentIter.next();
+                            position = 0;
+                        } else {
+                            int recordPosition = position;
+                            position += segment.getLength(recordPosition);
+                            if (segment.getState(recordPosition) == LIVE) {
+                                I idx = idSerde.deserialize(segment.idView(recordPosition));
+                                long[] recordOffsets = offsets.get(idx);
+                                if (recordOffsets != null && recordOffsets[0] == offset(segment, recordPosition)) {
+                                    next = new SimpleImmutableEntry<I, List<E>>(idx, read(recordOffsets));
+                                }
+                            }
+                        }
+                    }
+                    return true;
+                }
+            }
+
+            @Override
+            public Entry<I, List<E>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<I, List<E>> result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * A memory mapped segment file.
+     */
+    private class Segment {
+        /**
+         * The segment number.
+         */
+        private final int number;
+        /**
+         * The segment file.
+         */
+        private final Path file;
+        /**
+         * The segment file channel.
+         */
+        private final FileChannel channel;
+        /**
+         * The mapped segment file.
+         */
+        private final MappedByteBuffer buffer;
+        /**
+         * The position after the last record.
+         */
+        private int position;
+        /**
+         * The number of bytes in dead records.
+         */
+        private int deadBytes;
+
+        Segment(int number, Path file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        /**
+         * Scans the records of an existing segment into the offsets.
+         */
+        void load() {
+            while (hasRecord(position)) {
+                int length = getLength(position);
+                if (getState(position) == LIVE) {
+                    I idx = idSerde.deserialize(idView(position));
+                    long[] recordOffsets = offsets.get(idx);
+                    long offset = offset(this, position);
+                    if (recordOffsets == null) {
+                        offsets.put(idx, new long[] { offset });
+                    } else {
+                        recordOffsets = Arrays.copyOf(recordOffsets, recordOffsets.length + 1);
+                        recordOffsets[recordOffsets.length - 1] = offset;
+                        offsets.put(idx, recordOffsets);
+                    }
+                } else {
+                    deadBytes += length;
+                }
+                position += length;
+            }
+        }
+
+        /**
+         * Finds the next live record.
+         * @param recordPosition the position to start from.
+         * @return the position of the next live record, or of the end of the records.
+         */
+        int nextLive(int recordPosition) {
+            int result = recordPosition;
+            while (hasRecord(result) && getState(result) != LIVE) {
+                result += getLength(result);
+            }
+            return result;
+        }
+
+        /**
+         * Determines if there is a record at a position.
+         * @param recordPosition the position.
+         * @return true if there is a record at the position.
+         */
+        boolean hasRecord(int recordPosition) {
+            return recordPosition < segmentSize - HEADER && getState(recordPosition) != END;
+        }
+
+        /**
+         * Gets the number of the compacted segment from a compaction marker.
+         * @param recordPosition the position of the marker.
+         * @return the number of the compacted segment.
+         */
+        int getSource(int recordPosition) {
+            return valueView(recordPosition).getInt();
+        }
+
+        byte getState(int recordPosition) {
+            return buffer.get(recordPosition);
+        }
+
+        int getLength(int recordPosition) {
+            return HEADER + buffer.getInt(recordPosition + 1) + buffer.getInt(recordPosition + 1 + Integer.BYTES);
+        }
+
+        /**
+         * Gets a view of the serialized index of a record.
+         * @param recordPosition the position of the record.
+         * @return a buffer positioned and limited to the serialized index.
+         */
+        ByteBuffer idView(int recordPosition) {
+            int start = recordPosition + HEADER;
+            ByteBuffer view = buffer.duplicate();
+            view.limit(start + buffer.getInt(recordPosition + 1));
+            view.position(start);
+            return view;
+        }
+
+        /**
+         * Gets a view of the serialized value of a record.
+         * @param recordPosition the position of the record.
+         * @return a buffer positioned and limited to the serialized value.
+         */
+        ByteBuffer valueView(int recordPosition) {
+            int start = recordPosition + HEADER + buffer.getInt(recordPosition + 1);
+            ByteBuffer view = buffer.duplicate();
+            view.limit(start + buffer.getInt(recordPosition + 1 + Integer.BYTES));
+            view.position(start);
+            return view;
+        }
+
+        /**
+         * Serializes a record directly into the segment.  The state is written last so
+         * that a partially written record is not read as live.
+         * @param idx the index.
+         * @param value the value.
+         * @return the position of the record or -1 if it does not fit.
+         */
+        int append(I idx, E value) {
+            int recordPosition = position;
+            if (recordPosition + HEADER > segmentSize) {
+                return -1;
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(recordPosition + HEADER);
+            int idLength;
+            try {
+                idSerde.serialize(idx, view);
+                idLength = view.position() - recordPosition - HEADER;
+                serde.serialize(value, view);
+            } catch (BufferOverflowException e) {
+                return -1;
+            }
+            buffer.putInt(recordPosition + 1, idLength);
+            buffer.putInt(recordPosition + 1 + Integer.BYTES, view.position() - recordPosition - HEADER - idLength);
+            buffer.put(recordPosition, LIVE);
+            position = view.position();
+            return recordPosition;
+        }
+
+        /**
+         * Appends a serialized record.  The state is written last so that a partially
+         * written record is not read as live.
+         * @param state the record state.
+         * @param id the serialized index.
+         * @param value the serialized value.
+         * @return the position of the record.
+         */
+        int append(byte state, ByteBuffer id, ByteBuffer value) {
+            int recordPosition = position;
+            int idLength = id.remaining();
+            int valueLength = value.remaining();
+            ByteBuffer view = buffer.duplicate();
+            view.position(recordPosition + 1);
+            view.putInt(idLength).putInt(valueLength).put(id).put(value);
+            buffer.put(recordPosition, state);
+            position += HEADER + idLength + valueLength;
+            return recordPosition;
+        }
+
+        void kill(int recordPosition) {
+            buffer.put(recordPosition, DEAD);
+            deadBytes += getLength(recordPosition);
+        }
+
+        boolean isCompactable() {
+            return deadBytes >= segmentSize * COMPACT_RATIO;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
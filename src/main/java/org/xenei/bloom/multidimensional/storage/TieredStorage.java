@@ -0,0 +1,470 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.collections4.iterators.FilterIterator;
+import org.apache.commons.collections4.iterators.LazyIteratorChain;
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+/**
+ * A Storage that keeps recently used indexes in a hot storage and spills the rest to a
+ * cold storage.
+ * <p>
+ * The number of gets and puts of each hot index is counted.  When the hot storage holds
+ * more than the maximum number of indexes the least accessed are demoted until a quarter
+ * of the hot storage is free, and the counts are halved so that old accesses fade.
+ * Demotion runs on the executor, or when {@code demote()} is called.  Accessing a cold
+ * index promotes it to the hot storage.
+ * </p>
+ * <p>
+ * A promoted index keeps its values in the cold storage, so reading never removes data
+ * from the cold storage.  Puts to a hot index only change the hot storage and mark the
+ * index dirty.  The values of a dirty index are written to the cold storage when it is
+ * demoted, when {@code flush()} is called and when the storage is closed; a clean index
+ * is demoted without writing.  Removes from an index that is only cold, and removes that
+ * empty a hot index, are written to the cold storage immediately.
+ * </p>
+ * <p>
+ * The storage is therefore only as durable as the cold storage after a flush: puts
+ * made since the last flush or demotion are lost in a crash.  Use a WriteAheadLog
+ * for durability.
+ * </p>
+ * <p>
+ * The default tiers are an InMemory hot storage and a MappedStorage cold storage.  The
+ * indexes of the cold storage are read when the storage is constructed.  All methods are
+ * synchronized so that demotion may run in the background.
+ * </p>
+ *
+ * @param <E> The type of object being stored.
+ * @param <I> The type of object used for the index.
+ */
+public class TieredStorage<E, I> implements Storage<E, I>, Closeable {
+    /**
+     * The hot storage.
+     */
+    private final Storage<E, I> hot;
+    /**
+     * The cold storage.
+     */
+    private final Storage<E, I> cold;
+    /**
+     * The maximum number of hot indexes.
+     */
+    private final int maxHot;
+    /**
+     * The executor for demotion, may be null.
+     */
+    private final Executor executor;
+    /**
+     * The executor created by this storage, shut down on close.
+     */
+    private final ExecutorService ownedExecutor;
+    /**
+     * The access counts of the hot indexes.
+     */
+    private final Map<I, Integer> hotAccess;
+    /**
+     * The indexes with values in the cold storage, including promoted indexes.
+     */
+    private final Set<I> coldIds;
+    /**
+     * The hot indexes whose values have changed since they were written to the cold storage.
+     */
+    private final Set<I> dirty;
+    /**
+     * True once the storage is closed.
+     */
+    private boolean closed;
+    /**
+     * True if a demotion has been submitted to the executor but has not run.
+     */
+    private boolean demotionPending;
+    /**
+     * The number of gets answered from the hot storage.
+     */
+    private long hotHits;
+    /**
+     * The number of gets answered from the cold storage.
+     */
+    private long coldHits;
+    /**
+     * The number of gets for indexes in neither storage.
+     */
+    private long misses;
+    /**
+     * The number of indexes demoted.
+     */
+    private long demotions;
+
+    /**
+     * Opens a tiered storage with an InMemory hot storage and a MappedStorage cold
+     * storage that demotes on a background thread.
+     * @param directory the directory for the cold storage segment files.
+     * @param idSerde the serializer for the indexes.
+     * @param serde the serializer for the values.
+     * @param maxHot the maximum number of hot indexes.
+     * @throws IOException on IO error.
+     */
+    public TieredStorage(Path directory, Serde<I> idSerde, Serde<E> serde, int maxHot) throws IOException {
+        this(new InMemory<E, I>(), new MappedStorage<E, I>(directory, idSerde, serde), maxHot, null,
+                Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "TieredStorage demotion");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    /**
+     * Constructs a tiered storage.
+     * <p>
+     * The hot storage must be empty.  The cold storage may hold values.
+     * </p>
+     * @param hot the hot storage.
+     * @param cold the cold storage.
+     * @param maxHot the maximum number of hot indexes.
+     * @param executor the executor to demote on, or {@code null} to demote when the
+     * maximum is exceeded.
+     */
+    public TieredStorage(Storage<E, I> hot, Storage<E, I> cold, int maxHot, Executor executor) {
+        this(hot, cold, maxHot, executor, null);
+    }
+
+    private TieredStorage(Storage<E, I> hot, Storage<E, I> cold, int maxHot, Executor executor,
+            ExecutorService ownedExecutor) {
+        if (maxHot < 1) {
+            throw new IllegalArgumentException("Maximum hot indexes must be greater than 0");
+        }
+        this.hot = hot;
+        this.cold = cold;
+        this.maxHot = maxHot;
+        this.ownedExecutor = ownedExecutor;
+        this.executor = ownedExecutor == null ? executor : ownedExecutor;
+        this.hotAccess = new HashMap<I, Integer>();
+        this.coldIds = new HashSet<I>();
+        this.dirty = new HashSet<I>();
+        cold.list().forEachRemaining(entry -> coldIds.add(entry.getKey()));
+    }
+
+    @Override
+    public synchronized Collection<E> get(I idx) {
+        if (hotAccess.containsKey(idx)) {
+            hotHits++;
+            hotAccess.merge(idx, 1, Integer::sum);
+            return new ArrayList<E>(hot.get(idx));
+        }
+        if (coldIds.contains(idx)) {
+            coldHits++;
+            List<E> values = new ArrayList<E>(promote(idx));
+            checkSize();
+            return values;
+        }
+        misses++;
+        return Collections.emptyList();
+    }
+
+    /**
+     * Copies the values of an index from the cold storage to the hot storage.  The cold
+     * storage keeps the values.
+     * @param idx the cold index.
+     * @return the values of the index.
+     */
+    private Collection<E> promote(I idx) {
+        List<E> values = new ArrayList<E>(cold.get(idx));
+        hot.putAll(idx, values);
+        hotAccess.put(idx, 1);
+        return values;
+    }
+
+    private void checkSize() {
+        if (hotAccess.size() > maxHot) {
+            if (executor == null) {
+                demote();
+            } else if (!demotionPending) {
+                demotionPending = true;
+                executor.execute(this::demote);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void put(I idx, E value) {
+        if (hotAccess.containsKey(idx)) {
+            hotAccess.merge(idx, 1, Integer::sum);
+        } else if (coldIds.contains(idx)) {
+            promote(idx);
+        } else {
+            hotAccess.put(idx, 1);
+        }
+        hot.put(idx, value);
+        dirty.add(idx);
+        checkSize();
+    }
+
+    @Override
+    public synchronized boolean[] remove(I idx, E value) {
+        if (hotAccess.containsKey(idx)) {
+            boolean[] result = hot.remove(idx, value);
+            if (result[REMOVED]) {
+                dirty.add(idx);
+            }
+            if (result[EMPTY]) {
+                writeBack(idx);
+                hotAccess.remove(idx);
+            }
+            return result;
+        }
+        if (coldIds.contains(idx)) {
+            boolean[] result = cold.remove(idx, value);
+            if (result[EMPTY]) {
+                coldIds.remove(idx);
+            }
+            return result;
+        }
+        boolean[] result = new boolean[2];
+        result[EMPTY] = true;
+        return result;
+    }
+
+    /**
+     * Demotes the least accessed hot indexes to the cold storage until a quarter of the
+     * hot storage is free, and halves the access counts of the rest.
+     */
+    public void demote() {
+        Map<I, Integer> victims;
+        synchronized (this) {
+            demotionPending = false;
+            if (closed) {
+                return;
+            }
+            int excess = hotAccess.size() - (maxHot - maxHot / 4);
+            if (excess <= 0) {
+                return;
+            }
+            List<Map.Entry<I, Integer>> entries = new ArrayList<Map.Entry<I, Integer>>(hotAccess.entrySet());
+            entries.sort(Map.Entry.comparingByValue());
+            hotAccess.replaceAll((k, v) -> v / 2);
+            victims = new HashMap<I, Integer>();
+            for (int i = 0; i < excess; i++) {
+                I idx = entries.get(i).getKey();
+                victims.put(idx, hotAccess.get(idx));
+            }
+        }
+        // each index is moved separately so that readers are not blocked for the whole pass.
+        for (Map.Entry<I, Integer> victim : victims.entrySet()) {
+            synchronized (this) {
+                // an index accessed since it was chosen stays hot.
+                if (!closed && victim.getValue().equals(hotAccess.get(victim.getKey()))) {
+                    moveToCold(victim.getKey());
+                }
+            }
+        }
+    }
+
+    private void moveToCold(I idx) {
+        if (dirty.contains(idx)) {
+            writeBack(idx);
+        }
+        new ArrayList<E>(hot.get(idx)).forEach(value -> hot.remove(idx, value));
+        hotAccess.remove(idx);
+        demotions++;
+    }
+
+    /**
+     * Writes the changes to the values of a hot index to the cold storage.
+     * @param idx the hot index.
+     */
+    private void writeBack(I idx) {
+        List<E> added = new ArrayList<E>(hot.get(idx));
+        List<E> removed = new ArrayList<E>();
+        if (coldIds.contains(idx)) {
+            for (E value : cold.get(idx)) {
+                if (!added.remove(value)) {
+                    removed.add(value);
+                }
+            }
+        }
+        removed.forEach(value -> cold.remove(idx, value));
+        if (!added.isEmpty()) {
+            cold.putAll(idx, added);
+        }
+        if (hot.get(idx).isEmpty()) {
+            coldIds.remove(idx);
+        } else {
+            coldIds.add(idx);
+        }
+        dirty.remove(idx);
+    }
+
+    /**
+     * Writes the values of the dirty hot indexes to the cold storage.
+     */
+    public synchronized void flush() {
+        new ArrayList<I>(dirty).forEach(this::writeBack);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The hot indexes are listed and then the indexes that are only cold.  The hot
+     * entries are copied when the iterator is created so that a background demotion can
+     * not change them during the iteration.  The cold entries are read from the cold
+     * storage list once the hot entries are exhausted.
+     * </p>
+     */
+    @Override
+    public synchronized Iterator<Map.Entry<I, List<E>>> list() {
+        Set<I> hotIds = new HashSet<I>(hotAccess.keySet());
+        List<Map.Entry<I, List<E>>> hotEntries = new ArrayList<Map.Entry<I, List<E>>>(hotIds.size());
+        hot.list().forEachRemaining(entry -> hotEntries
+                .add(new SimpleImmutableEntry<I, List<E>>(entry.getKey(), new ArrayList<E>(entry.getValue()))));
+        return new LazyIteratorChain<Map.Entry<I, List<E>>>() {
+            @Override
+            protected Iterator<? extends Map.Entry<I, List<E>>> nextIterator(int count) {
+                switch (count) {
+                case 1:
+                    return hotEntries.iterator();
+                case 2:
+                    return new FilterIterator<Map.Entry<I, List<E>>>(cold.list(),
+                            entry -> !hotIds.contains(entry.getKey()));
+                default:
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the number of hot indexes.
+     * @return the number of hot indexes.
+     */
+    public synchronized int getHotSize() {
+        return hotAccess.size();
+    }
+
+    /**
+     * Gets the number of indexes that are only cold.
+     * @return the number of cold indexes.
+     */
+    public synchronized int getColdSize() {
+        return (int) coldIds.stream().filter(idx -> !hotAccess.containsKey(idx)).count();
+    }
+
+    /**
+     * Gets the number of hot indexes with changes that have not been written to the cold storage.
+     * @return the number of dirty indexes.
+     */
+    public synchronized int getDirtySize() {
+        return dirty.size();
+    }
+
+    /**
+     * Gets the number of gets answered from the hot storage.
+     * @return the hot hit count.
+     */
+    public synchronized long getHotHitCount() {
+        return hotHits;
+    }
+
+    /**
+     * Gets the number of gets answered from the cold storage.
+     * @return the cold hit count.
+     */
+    public synchronized long getColdHitCount() {
+        return coldHits;
+    }
+
+    /**
+     * Gets the number of gets for indexes in neither storage.
+     * @return the miss count.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the fraction of gets answered from the hot storage.
+     * @return the hot hit ratio, or 0 if there have been no gets.
+     */
+    public synchronized double getHotHitRatio() {
+        long gets = hotHits + coldHits + misses;
+        return gets == 0 ? 0.0 : (double) hotHits / gets;
+    }
+
+    /**
+     * Gets the fraction of gets answered from the cold storage.
+     * @return the cold hit ratio, or 0 if there have been no gets.
+     */
+    public synchronized double getColdHitRatio() {
+        long gets = hotHits + coldHits + misses;
+        return gets == 0 ? 0.0 : (double) coldHits / gets;
+    }
+
+    /**
+     * Gets the number of indexes demoted to the cold storage.
+     * @return the demotion count.
+     */
+    public synchronized long getDemotionCount() {
+        return demotions;
+    }
+
+    /**
+     * Writes the dirty hot values to the cold storage and closes the storages that are
+     * Closeable.  A demotion that is running stops before its next index, and a pending
+     * demotion does nothing.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+        flush();
+        if (hot instanceof Closeable) {
+            ((Closeable) hot).close();
+        }
+        if (cold instanceof Closeable) {
+            ((Closeable) cold).close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TieredStorage[hot=%s cold=%s dirty=%s hotHits=%s coldHits=%s misses=%s demotions=%s]",
+                hotAccess.size(), getColdSize(), dirty.size(), hotHits, coldHits, misses, demotions);
+    }
+}
@@ -18,11 +18,21 @@
 package org.xenei.bloom.multidimensional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.bloomfilter.hasher.DynamicHasher;
 import org.apache.commons.collections4.bloomfilter.hasher.HashFunction;
@@ -33,6 +43,7 @@ import org.junit.Test;
 import org.xenei.bloom.multidimensional.Container.Index;
 import org.xenei.bloom.multidimensional.Container.Storage;
 import org.xenei.bloom.multidimensional.index.FlatBloofi;
+import org.xenei.bloom.multidimensional.query.Query;
 import org.xenei.bloom.multidimensional.storage.InMemory;
 import org.apache.commons.collections4.bloomfilter.BloomFilter;
 
@@ -131,6 +142,270 @@ public class ContainerImplTest {
 
     }
 
+    @Test
+    public void countTest() {
+        container.put(makeHasher("Hello World"), "Hello World");
+        container.put(makeHasher("Spring has Sprung"), "Spring has Sprung");
+        container.put(makeHasher("GoodBye Cruel World"), "GoodBye Cruel World");
+
+        assertEquals(2, container.count(makeHasher("World")));
+        assertEquals(1, container.count(makeHasher("Spring")));
+        assertEquals(0, container.count(makeHasher("Just another dog")));
+        assertTrue(container.exists(makeHasher("World")));
+        assertFalse(container.exists(makeHasher("Just another dog")));
+    }
+
+    @Test
+    public void pagedSearchTest() {
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            String s = "World number " + i;
+            container.put(makeHasher(s), s);
+            expected.add(s);
+        }
+        // two values with the same filter
+        container.put(makeHasher("World number 3"), "World number 3");
+        expected.add("World number 3");
+        container.put(makeHasher("Spring has Sprung"), "Spring has Sprung");
+
+        Hasher hasher = makeHasher("World");
+        List<String> lst = new ArrayList<String>();
+        Page<String> page = container.search(hasher, null, 3);
+        int pages = 1;
+        lst.addAll(page.getValues());
+        while (page.getToken().isPresent()) {
+            assertEquals(3, page.getValues().size());
+            page = container.search(hasher, page.getToken().get(), 3);
+            lst.addAll(page.getValues());
+            pages++;
+        }
+        assertEquals(4, pages);
+        lst.sort(String::compareTo);
+        expected.sort(String::compareTo);
+        assertEquals(expected, lst);
+    }
+
+    @Test
+    public void streamTest() {
+        container.put(makeHasher("Hello World"), "Hello World");
+        container.put(makeHasher("Spring has Sprung"), "Spring has Sprung");
+        container.put(makeHasher("GoodBye Cruel World"), "GoodBye Cruel World");
+
+        assertEquals(2, container.stream(makeHasher("World")).parallel().count());
+        assertEquals(1, container.stream(makeHasher("World")).limit(1).count());
+        assertEquals(0, container.stream(makeHasher("Just another dog")).count());
+    }
+
+    @Test
+    public void searchAllTest() {
+        container.put(makeHasher("Hello World"), "Hello World");
+        container.put(makeHasher("Spring has Sprung"), "Spring has Sprung");
+        container.put(makeHasher("GoodBye Cruel World"), "GoodBye Cruel World");
+
+        List<Iterator<String>> result = container.searchAll(Arrays.asList(makeHasher("World"),
+                makeHasher("Just another dog"), makeHasher("Spring")));
+        assertEquals(3, result.size());
+        List<String> lst = new ArrayList<String>();
+        result.get(0).forEachRemaining(lst::add);
+        assertEquals(2, lst.size());
+        assertFalse(result.get(1).hasNext());
+        lst.clear();
+        result.get(2).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("Spring has Sprung"), lst);
+    }
+
+    @Test
+    public void queryTest() {
+        container.put(makeHasher("Hello World"), "Hello World");
+        container.put(makeHasher("Spring has Sprung"), "Spring has Sprung");
+        container.put(makeHasher("GoodBye Cruel World"), "GoodBye Cruel World");
+
+        Query world = Query.match(makeHasher("World"));
+        List<String> lst = new ArrayList<String>();
+        container.search(world.andNot(Query.match(makeHasher("Cruel")))).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("Hello World"), lst);
+
+        lst.clear();
+        container.search(Query.match(makeHasher("Hello")).or(Query.match(makeHasher("Spring"))))
+                .forEachRemaining(lst::add);
+        lst.sort(String::compareTo);
+        assertEquals(Arrays.asList("Hello World", "Spring has Sprung"), lst);
+    }
+
+    @Test
+    public void putAllTest() {
+        List<Map.Entry<Hasher,String>> entries = new ArrayList<Map.Entry<Hasher,String>>();
+        entries.add(new SimpleEntry<Hasher,String>(makeHasher("Hello World"), "Hello World"));
+        entries.add(new SimpleEntry<Hasher,String>(makeHasher("Hello World"), "Hello Again World"));
+        entries.add(new SimpleEntry<Hasher,String>(makeHasher("Spring has Sprung"), "Spring has Sprung"));
+        container.putAll(entries);
+        assertEquals(3, container.getValueCount());
+        assertEquals(2, container.getFilterCount());
+
+        List<String> lst = new ArrayList<String>();
+        container.get(makeHasher("Hello World")).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("Hello World", "Hello Again World"), lst);
+
+        container.removeAll(entries.subList(0, 2));
+        assertEquals(1, container.getValueCount());
+        assertEquals(1, container.getFilterCount());
+        assertFalse(container.get(makeHasher("Hello World")).hasNext());
+        assertFalse(container.exists(makeHasher("Hello")));
+        assertTrue(container.exists(makeHasher("Spring")));
+    }
+
+    @Test
+    public void scalableGateTest() {
+        ContainerImpl<String,UUID> small = new ContainerImpl<String,UUID>(10, shape, storage, index);
+        for (int i = 0; i < 1000; i++) {
+            small.put(makeHasher("Value " + i), "Value " + i);
+        }
+        assertTrue(small.getGateFalsePositiveRate() < 1.0e-4);
+        assertFalse(small.exists(makeHasher("Missing")));
+        assertTrue(small.exists(makeHasher("Value 999")));
+    }
+
+    @Test
+    public void resultCacheTest() {
+        ContainerImpl<String,UUID> cached = new ContainerImpl<String,UUID>(shape, storage, index);
+        ResultCache<UUID> cache = new ResultCache<UUID>(10);
+        cached.setResultCache(cache);
+        cached.put(makeHasher("Hello World"), "Hello World");
+        cached.put(makeHasher("Spring has Sprung"), "Spring has Sprung");
+
+        List<String> lst = new ArrayList<String>();
+        cached.search(makeHasher("World")).forEachRemaining(lst::add);
+        cached.search(makeHasher("Spring")).forEachRemaining(lst::add);
+        assertEquals(2, lst.size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+
+        lst.clear();
+        cached.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("Hello World"), lst);
+        assertEquals(1, cache.getHitCount());
+
+        // only the World search can match the new filter.
+        cached.put(makeHasher("GoodBye Cruel World"), "GoodBye Cruel World");
+        assertEquals(1, cache.size());
+        lst.clear();
+        cached.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(2, lst.size());
+        assertEquals(3, cache.getMissCount());
+
+        // only the World search contains the removed filter.
+        cached.remove(makeHasher("Hello World"), "Hello World");
+        assertEquals(1, cache.size());
+        lst.clear();
+        cached.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("GoodBye Cruel World"), lst);
+        lst.clear();
+        cached.search(makeHasher("Spring")).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("Spring has Sprung"), lst);
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void prefetchTest() {
+        List<List<UUID>> batches = new ArrayList<List<UUID>>();
+        Storage<String,UUID> batched = new InMemory<String,UUID>() {
+            @Override
+            public CompletableFuture<Map<UUID, Collection<String>>> getAllAsync(Collection<UUID> idxs) {
+                batches.add(new ArrayList<UUID>(idxs));
+                return super.getAllAsync(idxs);
+            }
+        };
+        ContainerImpl<String,UUID> prefetching = new ContainerImpl<String,UUID>(shape, batched, index);
+        prefetching.setPrefetch(2);
+        for (int i = 0; i < 5; i++) {
+            prefetching.put(makeHasher("World " + i), "World " + i);
+        }
+        prefetching.put(makeHasher("World 0"), "World 0 again");
+
+        List<String> lst = new ArrayList<String>();
+        prefetching.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(6, lst.size());
+        assertTrue(lst.containsAll(Arrays.asList("World 0", "World 0 again", "World 1", "World 2", "World 3", "World 4")));
+        assertEquals(3, batches.size());
+        assertEquals(1, batches.get(2).size());
+    }
+
+    @Test
+    public void expiryTest() {
+        long[] now = { 10000 };
+        ContainerImpl<String,UUID> expiring = new ContainerImpl<String,UUID>(shape, new InMemory<String,UUID>(), index);
+        expiring.clock = () -> now[0];
+        expiring.put(makeHasher("World 0"), "World 0");
+        expiring.put(makeHasher("World 0"), "World 0 short", 500, TimeUnit.MILLISECONDS);
+        expiring.put(makeHasher("World 1"), "World 1", 5, TimeUnit.SECONDS);
+        expiring.put(makeHasher("World 2"), "World 2", 1, TimeUnit.MINUTES);
+        assertEquals(4, expiring.getValueCount());
+
+        // expired but not swept values are filtered.
+        now[0] += 600;
+        List<String> lst = new ArrayList<String>();
+        expiring.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(3, lst.size());
+        assertFalse(lst.contains("World 0 short"));
+        assertEquals(4, expiring.getValueCount());
+
+        // a removed value no longer expires.
+        expiring.remove(makeHasher("World 2"), "World 2");
+        assertEquals(3, expiring.getValueCount());
+        expiring.put(makeHasher("World 2"), "World 2");
+
+        now[0] += 5000;
+        assertFalse(expiring.get(makeHasher("World 1")).hasNext());
+        assertEquals(2, expiring.expire());
+        assertEquals(0, expiring.expire());
+        assertEquals(2, expiring.getValueCount());
+        assertEquals(2, expiring.getFilterCount());
+
+        now[0] += 60000;
+        assertEquals(0, expiring.expire());
+        lst.clear();
+        expiring.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("World 0", "World 2"), lst.stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void reshapeTest() {
+        ContainerImpl<String,UUID> reshaping = new ContainerImpl<String,UUID>(shape, new InMemory<String,UUID>(), index);
+        for (int i = 0; i < 10; i++) {
+            reshaping.put(makeHasher("World " + i), "World " + i);
+        }
+        reshaping.put(makeHasher("World 0"), "World 0 again");
+        Shape bigger = new Shape(hashFunction, 3000, 1.0 / 3000000);
+        reshaping.reshape(bigger, new InMemory<String,UUID>(), new FlatBloofi<UUID>(func, bigger),
+                value -> makeHasher(value.replace(" again", "")), 3);
+        assertTrue(reshaping.isReshaping());
+        assertEquals(shape, reshaping.getShape());
+
+        // changes to migrated and unmigrated indexes while migrating.
+        reshaping.put(makeHasher("World 10"), "World 10");
+        reshaping.remove(makeHasher("World 9"), "World 9");
+        reshaping.put(makeHasher("World 1"), "World 1 again");
+        reshaping.remove(makeHasher("World 0"), "World 0");
+        List<String> lst = new ArrayList<String>();
+        reshaping.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(11, lst.size());
+
+        assertTrue(reshaping.migrate(100));
+        assertFalse(reshaping.isReshaping());
+        assertEquals(bigger, reshaping.getShape());
+        assertEquals(11, reshaping.getValueCount());
+        lst.clear();
+        reshaping.search(makeHasher("World")).forEachRemaining(lst::add);
+        assertEquals(11, lst.size());
+        assertTrue(lst.containsAll(Arrays.asList("World 0 again", "World 1", "World 1 again", "World 10")));
+        assertFalse(lst.contains("World 9"));
+        assertFalse(lst.contains("World 0"));
+        lst.clear();
+        reshaping.get(makeHasher("World 1")).forEachRemaining(lst::add);
+        assertEquals(Arrays.asList("World 1", "World 1 again"), lst);
+    }
+
     /**
      * A standard Func to use in testing where UUID creation is desired.
      *
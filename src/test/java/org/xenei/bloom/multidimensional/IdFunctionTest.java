@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.UUID;
+
+import org.apache.commons.collections4.bloomfilter.HasherBloomFilter;
+import org.apache.commons.collections4.bloomfilter.hasher.CachingHasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.index.IndexTest;
+
+public class IdFunctionTest {
+
+    private Hasher hasher(long... values) {
+        long[][] buffer = new long[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            buffer[i] = new long[] { values[i], 0 };
+        }
+        return new CachingHasher(IndexTest.SHAPE.getHashFunctionIdentity(), buffer);
+    }
+
+    @Test
+    public void trailingZeroTest() {
+        assertEquals(FilterHash.hash64(new long[] { 5 }), FilterHash.hash64(new long[] { 5, 0, 0 }));
+        assertEquals(FilterHash.hash64(new long[0]), FilterHash.hash64(new long[] { 0 }));
+        assertNotEquals(FilterHash.hash64(new long[] { 5 }), FilterHash.hash64(new long[] { 0, 5 }));
+    }
+
+    @Test
+    public void uuidTest() {
+        IdFunction<UUID> func = IdFunction.uuid();
+        Hasher hasher1 = hasher(29, 13);
+        UUID id = IdFunction.create(func, hasher1, IndexTest.SHAPE);
+        assertEquals(id, func.apply(new HasherBloomFilter(hasher1, IndexTest.SHAPE)));
+        assertEquals(id, IdFunction.create(func, hasher(13, 29), IndexTest.SHAPE));
+        assertNotEquals(id, IdFunction.create(func, hasher(29, 14), IndexTest.SHAPE));
+    }
+
+    @Test
+    public void longIdTest() {
+        IdFunction<Long> func = IdFunction.longId();
+        Hasher hasher1 = hasher(29, 13);
+        long id = IdFunction.create(func, hasher1, IndexTest.SHAPE);
+        assertEquals(id, FilterHash.hash64(IdFunction.getWords(hasher1, IndexTest.SHAPE)));
+        assertEquals(Long.valueOf(id), func.apply(new HasherBloomFilter(hasher1, IndexTest.SHAPE)));
+        assertEquals(id, IdFunction.longId().applyAsLong(hasher1, IndexTest.SHAPE));
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.collections4.bloomfilter.hasher.DynamicHasher;
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunction;
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentity;
+import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentityImpl;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.apache.commons.collections4.bloomfilter.hasher.function.Murmur128x86Cyclic;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.gate.ScalableGate;
+import org.xenei.bloom.multidimensional.index.FlatBloofi;
+import org.xenei.bloom.multidimensional.storage.InMemory;
+import org.xenei.bloom.multidimensional.storage.Serde;
+
+public class WriteAheadLogTest {
+    private static final Serde<String> SERDE = new Serde<String>() {
+        @Override
+        public byte[] serialize(String data) {
+            return data.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
+    private HashFunction hashFunction = new Murmur128x86Cyclic();
+    private Shape shape = new Shape(hashFunction, 3, 1.0 / 3000000);
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("wal");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (String name : new String[] { WriteAheadLog.LOG_FILE, WriteAheadLog.SNAPSHOT_FILE }) {
+            Files.deleteIfExists(dir.resolve(name));
+        }
+        Files.delete(dir);
+    }
+
+    private ContainerImpl<String, UUID> open(int syncBatch) throws IOException {
+        ContainerImpl<String, UUID> container = new ContainerImpl<String, UUID>(shape, new InMemory<String, UUID>(),
+                new FlatBloofi<UUID>(new ContainerImplTest.Func(), shape));
+        container.recover(new WriteAheadLog<String>(dir, shape, SERDE, syncBatch), this::hasher);
+        return container;
+    }
+
+    private Hasher hasher(String s) {
+        return new DynamicHasher.Builder(hashFunction).with(s).build();
+    }
+
+    private List<String> get(Container<String> container, String s) {
+        List<String> lst = new ArrayList<String>();
+        container.get(hasher(s)).forEachRemaining(lst::add);
+        return lst;
+    }
+
+    @Test
+    public void recoverTest() throws IOException {
+        ContainerImpl<String, UUID> container = open(1);
+        container.put(hasher("one"), "one");
+        container.put(hasher("two"), "two");
+        container.put(hasher("two"), "two");
+        container.remove(hasher("one"), "one");
+        List<Map.Entry<Hasher, String>> entries = Arrays.asList(new SimpleEntry<Hasher, String>(hasher("three"), "three"),
+                new SimpleEntry<Hasher, String>(hasher("four"), "four"));
+        container.putAll(entries);
+        container.getWriteAheadLog().close();
+
+        container = open(1);
+        assertEquals(4, container.getValueCount());
+        assertTrue(get(container, "one").isEmpty());
+        assertEquals(Arrays.asList("two", "two"), get(container, "two"));
+        assertEquals(Arrays.asList("three"), get(container, "three"));
+        assertEquals(Arrays.asList("four"), get(container, "four"));
+        container.getWriteAheadLog().close();
+    }
+
+    @Test
+    public void checkpointTest() throws IOException {
+        ContainerImpl<String, UUID> container = open(10);
+        container.put(hasher("one"), "one");
+        container.put(hasher("two"), "two");
+        container.remove(hasher("one"), "one");
+        container.getWriteAheadLog().checkpoint();
+        long logSize = Files.size(dir.resolve(WriteAheadLog.LOG_FILE));
+        container.put(hasher("three"), "three");
+        assertTrue(Files.size(dir.resolve(WriteAheadLog.LOG_FILE)) > logSize);
+        container.getWriteAheadLog().close();
+
+        container = open(10);
+        assertEquals(2, container.getValueCount());
+        assertTrue(get(container, "one").isEmpty());
+        assertEquals(Arrays.asList("two"), get(container, "two"));
+        assertEquals(Arrays.asList("three"), get(container, "three"));
+        container.getWriteAheadLog().close();
+    }
+
+    @Test
+    public void tornRecordTest() throws IOException {
+        ContainerImpl<String, UUID> container = open(1);
+        container.put(hasher("one"), "one");
+        container.put(hasher("two"), "two");
+        container.getWriteAheadLog().close();
+
+        Path log = dir.resolve(WriteAheadLog.LOG_FILE);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        container = open(1);
+        assertEquals(1, container.getValueCount());
+        assertEquals(Arrays.asList("one"), get(container, "one"));
+        assertFalse(container.exists(hasher("two")));
+        // the torn record is replaced by new records.
+        container.put(hasher("three"), "three");
+        container.getWriteAheadLog().close();
+
+        container = open(1);
+        assertEquals(2, container.getValueCount());
+        assertEquals(Arrays.asList("three"), get(container, "three"));
+        container.getWriteAheadLog().close();
+    }
+
+    @Test
+    public void tornLengthTest() throws IOException {
+        ContainerImpl<String, UUID> container = open(1);
+        container.put(hasher("one"), "one");
+        container.getWriteAheadLog().close();
+
+        // a torn put with no words and a value length far larger than the log.
+        Path log = dir.resolve(WriteAheadLog.LOG_FILE);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer torn = ByteBuffer.allocate(9);
+            torn.put((byte) 1).putInt(0).putInt(Integer.MAX_VALUE);
+            torn.flip();
+            channel.write(torn);
+        }
+        long size = Files.size(log);
+        container = open(1);
+        assertEquals(1, container.getValueCount());
+        assertEquals(Arrays.asList("one"), get(container, "one"));
+        assertEquals(size - 9, Files.size(log));
+        container.getWriteAheadLog().close();
+    }
+
+    @Test
+    public void checkpointCrashTest() throws IOException {
+        ContainerImpl<String, UUID> container = open(1);
+        container.put(hasher("one"), "one");
+        container.put(hasher("two"), "two");
+        Path log = dir.resolve(WriteAheadLog.LOG_FILE);
+        byte[] fullLog = Files.readAllBytes(log);
+        container.getWriteAheadLog().checkpoint();
+        container.getWriteAheadLog().close();
+
+        // a crash after the snapshot is moved into place but before the log is emptied.
+        Files.write(log, fullLog);
+        container = open(1);
+        assertEquals(2, container.getValueCount());
+        assertEquals(Arrays.asList("one"), get(container, "one"));
+        assertEquals(Arrays.asList("two"), get(container, "two"));
+        container.put(hasher("three"), "three");
+        container.getWriteAheadLog().close();
+
+        container = open(1);
+        assertEquals(3, container.getValueCount());
+        assertEquals(Arrays.asList("one"), get(container, "one"));
+        assertEquals(Arrays.asList("three"), get(container, "three"));
+        container.getWriteAheadLog().close();
+    }
+
+    @Test
+    public void gateTest() throws IOException {
+        ContainerImpl<String, UUID> container = open(1);
+        container.put(hasher("one"), "one");
+        container.getWriteAheadLog().close();
+
+        ScalableGate gate = new ScalableGate(new Shape(hashFunction, 1000, shape.getProbability()));
+        container = new ContainerImpl<String, UUID>(gate, shape, new InMemory<String, UUID>(),
+                new FlatBloofi<UUID>(new ContainerImplTest.Func(), shape));
+        try (WriteAheadLog<String> log = new WriteAheadLog<String>(dir, shape, SERDE)) {
+            try {
+                container.recover(log);
+                fail("Should have thrown IllegalStateException");
+            } catch (IllegalStateException expected) {
+                // the log words can not be merged into the scalable gate.
+            }
+            container.recover(log, this::hasher);
+            // the original gate is kept and holds the recovered filter.
+            assertTrue(gate.mayContain(hasher("one")));
+            assertEquals(Arrays.asList("one"), get(container, "one"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hasherMismatchTest() throws IOException {
+        ContainerImpl<String, UUID> container = open(1);
+        container.put(hasher("one"), "one");
+        container.getWriteAheadLog().close();
+        ContainerImpl<String, UUID> other = new ContainerImpl<String, UUID>(shape, new InMemory<String, UUID>(),
+                new FlatBloofi<UUID>(new ContainerImplTest.Func(), shape));
+        try (WriteAheadLog<String> log = new WriteAheadLog<String>(dir, shape, SERDE)) {
+            other.recover(log, s -> hasher(s + "x"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hashFunctionMismatchTest() throws IOException {
+        new WriteAheadLog<String>(dir, shape, SERDE).close();
+        HashFunctionIdentity other = new HashFunctionIdentityImpl(hashFunction.getProvider(), "Other",
+                hashFunction.getSignedness(), hashFunction.getProcessType(), hashFunction.getSignature() + 1);
+        new WriteAheadLog<String>(dir, new Shape(other, shape.getNumberOfItems(), shape.getNumberOfBits(),
+                shape.getNumberOfHashFunctions()), SERDE).close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shapeMismatchTest() throws IOException {
+        new WriteAheadLog<String>(dir, shape, SERDE).close();
+        new WriteAheadLog<String>(dir, new Shape(hashFunction, 3, 1.0 / 1000), SERDE).close();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.gate;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.collections4.bloomfilter.hasher.CachingHasher;
+import org.junit.After;
+import org.junit.Before;
+import org.xenei.bloom.multidimensional.index.IndexTest;
+import org.xenei.junit.contract.Contract;
+import org.xenei.junit.contract.ContractTest;
+import org.xenei.junit.contract.IProducer;
+import org.xenei.junit.contract.Contract.Inject;
+
+@Contract(Gate.class)
+public class GateTest {
+    IProducer<Gate> producer;
+    Gate gate;
+
+    @Inject
+    public void setProducer(IProducer<Gate> producer) {
+        this.producer = producer;
+    }
+
+    @Before
+    public void setup() {
+        gate = producer.newInstance();
+    }
+
+    @After
+    public void cleanup() {
+        producer.cleanUp();
+    }
+
+    private CachingHasher hasher(long... values) {
+        long[][] buffer = new long[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            buffer[i] = new long[] { values[i], 0 };
+        }
+        return new CachingHasher(IndexTest.SHAPE.getHashFunctionIdentity(), buffer);
+    }
+
+    @ContractTest
+    public void mergeRemoveTest() {
+        CachingHasher hasher1 = hasher(29, 13);
+        assertFalse(gate.mayContain(hasher1));
+        gate.merge(hasher1);
+        assertTrue(gate.mayContain(hasher1));
+        gate.remove(hasher1);
+        assertFalse(gate.mayContain(hasher1));
+    }
+
+    @ContractTest
+    public void countTest() {
+        CachingHasher hasher1 = hasher(29, 13);
+        gate.merge(hasher1);
+        gate.merge(hasher1, 2);
+        gate.remove(hasher1, 2);
+        assertTrue(gate.mayContain(hasher1));
+        gate.remove(hasher1);
+        assertFalse(gate.mayContain(hasher1));
+    }
+
+    @ContractTest
+    public void saturationTest() {
+        CachingHasher hasher1 = hasher(29, 13);
+        gate.merge(hasher1, 100);
+        gate.remove(hasher1, 100);
+        // saturated counters are not decremented so they can not cause a false negative.
+        assertTrue(gate.mayContain(hasher1));
+    }
+
+    @ContractTest
+    public void mayMatchTest() {
+        gate.merge(hasher(29, 13, 7));
+        assertTrue(gate.mayMatch(hasher(29)));
+        assertTrue(gate.mayMatch(hasher(13, 7)));
+        assertTrue(gate.mayMatch(hasher(29, 13, 7)));
+    }
+}
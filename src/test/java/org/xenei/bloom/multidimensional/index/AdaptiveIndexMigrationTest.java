@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.apache.commons.collections4.bloomfilter.hasher.CachingHasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.ContainerImplTest;
+
+public class AdaptiveIndexMigrationTest {
+    private static final Shape SHAPE = new Shape(IndexTest.SHAPE.getHashFunctionIdentity(), 1000, 1024, 16);
+
+    private Hasher hasher(int i) {
+        return new CachingHasher(SHAPE.getHashFunctionIdentity(), new long[][] { { i, i * 2 + 1 } });
+    }
+
+    private void fill(AdaptiveIndex<UUID> index, Linear<UUID> expected, int count) {
+        for (int i = 0; i < count; i++) {
+            Hasher hasher = hasher(i);
+            UUID idx = index.create(hasher);
+            index.put(idx, hasher);
+            expected.put(idx, hasher);
+        }
+    }
+
+    private void assertSameResults(AdaptiveIndex<UUID> index, Linear<UUID> expected) {
+        assertEquals(expected.getFilterCount(), index.getFilterCount());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(expected.search(hasher(i)), index.search(hasher(i)));
+            assertEquals(expected.get(hasher(i)), index.get(hasher(i)));
+        }
+    }
+
+    @Test
+    public void switchTest() {
+        AdaptiveIndex<UUID> index = new AdaptiveIndex<UUID>(new ContainerImplTest.Func(), SHAPE, Runnable::run);
+        Linear<UUID> expected = new Linear<UUID>(new ContainerImplTest.Func(), SHAPE);
+        assertEquals(AdaptiveIndex.Kind.LINEAR, index.getKind());
+
+        fill(index, expected, 3000);
+        assertTrue(index.getFilterCount() >= AdaptiveIndex.SMALL_POPULATION);
+        for (int i = 0; i < AdaptiveIndex.EVALUATION_INTERVAL; i++) {
+            index.search(hasher(i));
+        }
+        assertEquals(AdaptiveIndex.Kind.FLAT_BLOOFI, index.getKind());
+        assertFalse(index.isMigrating());
+        assertSameResults(index, expected);
+
+        for (int i = 0; i < AdaptiveIndex.EVALUATION_INTERVAL * 3; i++) {
+            index.get(hasher(i));
+        }
+        assertEquals(AdaptiveIndex.Kind.TRIE, index.getKind());
+        assertEquals(2, index.getMigrationCount());
+        assertSameResults(index, expected);
+    }
+
+    @Test
+    public void alternatingWorkloadTest() {
+        AdaptiveIndex<UUID> index = new AdaptiveIndex<UUID>(new ContainerImplTest.Func(), SHAPE, Runnable::run);
+        Linear<UUID> expected = new Linear<UUID>(new ContainerImplTest.Func(), SHAPE);
+        fill(index, expected, 3000);
+        assertEquals(AdaptiveIndex.Kind.FLAT_BLOOFI, index.getKind());
+        assertEquals(1, index.getMigrationCount());
+        // align the workload with the evaluations.
+        for (int i = 3000; i < AdaptiveIndex.EVALUATION_INTERVAL * 3; i++) {
+            index.search(hasher(i));
+        }
+
+        // every other evaluation would choose the trie.
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < AdaptiveIndex.EVALUATION_INTERVAL; i++) {
+                index.get(hasher(i));
+            }
+            for (int i = 0; i < AdaptiveIndex.EVALUATION_INTERVAL; i++) {
+                index.search(hasher(i));
+            }
+        }
+        assertEquals(AdaptiveIndex.Kind.FLAT_BLOOFI, index.getKind());
+        assertEquals(1, index.getMigrationCount());
+
+        // a workload that stays changed migrates.
+        for (int i = 0; i < AdaptiveIndex.EVALUATION_INTERVAL * AdaptiveIndex.STABLE_EVALUATIONS; i++) {
+            index.get(hasher(i));
+        }
+        assertEquals(AdaptiveIndex.Kind.TRIE, index.getKind());
+        assertEquals(2, index.getMigrationCount());
+        assertSameResults(index, expected);
+    }
+
+    @Test
+    public void changesDuringMigrationTest() {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        AdaptiveIndex<UUID> index = new AdaptiveIndex<UUID>(new ContainerImplTest.Func(), SHAPE, tasks::add);
+        Linear<UUID> expected = new Linear<UUID>(new ContainerImplTest.Func(), SHAPE);
+        fill(index, expected, 3000);
+        while (tasks.isEmpty()) {
+            index.search(hasher(1));
+        }
+        assertTrue(index.isMigrating());
+        assertEquals(AdaptiveIndex.Kind.LINEAR, index.getKind());
+
+        Hasher added = hasher(5000);
+        UUID addedIdx = index.create(added);
+        index.put(addedIdx, added);
+        expected.put(addedIdx, added);
+        UUID removedIdx = index.create(hasher(7));
+        index.remove(removedIdx);
+        expected.remove(removedIdx);
+        assertEquals(Optional.of(addedIdx), index.get(added));
+
+        tasks.remove(0).run();
+        assertFalse(index.isMigrating());
+        assertEquals(AdaptiveIndex.Kind.FLAT_BLOOFI, index.getKind());
+        assertEquals(Optional.of(addedIdx), index.get(added));
+        assertFalse(index.search(hasher(7)).contains(removedIdx));
+        assertSameResults(index, expected);
+    }
+}
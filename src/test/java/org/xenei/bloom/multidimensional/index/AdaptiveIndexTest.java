@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import java.util.UUID;
+
+import org.junit.runner.RunWith;
+import org.xenei.bloom.multidimensional.ContainerImplTest;
+import org.xenei.junit.contract.Contract.Inject;
+import org.xenei.junit.contract.ContractImpl;
+import org.xenei.junit.contract.ContractSuite;
+import org.xenei.junit.contract.IProducer;
+
+@ContractImpl(AdaptiveIndex.class)
+@RunWith(ContractSuite.class)
+public class AdaptiveIndexTest {
+
+    @Inject
+    public IProducer<AdaptiveIndex<UUID>> getProducer() {
+        return new IProducer<AdaptiveIndex<UUID>>() {
+
+            @Override
+            public AdaptiveIndex<UUID> newInstance() {
+                return new AdaptiveIndex<UUID>(new ContainerImplTest.Func(), IndexTest.SHAPE);
+            }
+
+            @Override
+            public void cleanUp() {
+
+            }
+        };
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.apache.commons.collections4.bloomfilter.hasher.CachingHasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.ContainerImplTest;
+
+public class BufferBlockStoreTest {
+    private static final Shape SHAPE = new Shape(IndexTest.SHAPE.getHashFunctionIdentity(), 1000, 1.0 / 10000);
+    private Path file;
+
+    @Before
+    public void setup() throws IOException {
+        file = Files.createTempFile("blocks", ".bin");
+        Files.delete(file);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private Hasher hasher(int i) {
+        return new CachingHasher(SHAPE.getHashFunctionIdentity(),
+                new long[][] { { i, 0 }, { i * 7 + 3, 0 } });
+    }
+
+    @Test
+    public void reopenTest() throws IOException {
+        Hasher[] hashers = new Hasher[500];
+        UUID[] ids = new UUID[hashers.length];
+        int count;
+        try (BufferBlockStore store = BufferBlockStore.open(file, SHAPE, 1)) {
+            FlatBloofi<UUID> index = new FlatBloofi<UUID>(new ContainerImplTest.Func(), SHAPE, store);
+            for (int i = 0; i < hashers.length; i++) {
+                hashers[i] = hasher(i);
+                ids[i] = index.create(hashers[i]);
+                index.put(ids[i], hashers[i]);
+            }
+            index.remove(ids[0]);
+            count = index.getFilterCount();
+            assertTrue(store.getBlockCount() > 1);
+        }
+
+        try (BufferBlockStore store = BufferBlockStore.open(file, SHAPE)) {
+            FlatBloofi<UUID> index = new FlatBloofi<UUID>(new ContainerImplTest.Func(), SHAPE, store);
+            assertEquals(count, index.getFilterCount());
+            assertFalse(index.get(hashers[0]).isPresent());
+            for (int i = 1; i < hashers.length; i++) {
+                if (!ids[i].equals(ids[0])) {
+                    assertEquals(Optional.of(ids[i]), index.get(hashers[i]));
+                    assertTrue(index.search(hashers[i]).contains(ids[i]));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shapeMismatchTest() throws IOException {
+        BufferBlockStore.open(file, SHAPE).close();
+        BufferBlockStore.open(file, IndexTest.SHAPE).close();
+    }
+}
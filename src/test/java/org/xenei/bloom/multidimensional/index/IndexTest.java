@@ -21,20 +21,29 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.collections4.bloomfilter.hasher.CachingHasher;
 import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentity;
 import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentity.ProcessType;
 import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentity.Signedness;
 import org.apache.commons.collections4.bloomfilter.hasher.HashFunctionIdentityImpl;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
 import org.apache.commons.collections4.bloomfilter.hasher.Shape;
 import org.junit.After;
 import org.junit.Before;
 import org.xenei.bloom.multidimensional.Container;
 import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.query.Query;
 import org.xenei.junit.contract.Contract;
 import org.xenei.junit.contract.ContractTest;
 import org.xenei.junit.contract.IProducer;
@@ -139,4 +148,154 @@ public class IndexTest {
 
     }
 
+    @ContractTest
+    public void countTest() {
+        CachingHasher hasher1 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 13, 0 } });
+        CachingHasher hasher2 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 14, 0 } });
+        CachingHasher hasher3 = new CachingHasher(HASH_IDENTITY, new long[][] { { 30, 0 }, { 13, 0 } });
+
+        index.put( index.create(hasher1), hasher1 );
+        index.put( index.create(hasher2), hasher2 );
+        UUID idx3 = index.create(hasher3);
+        index.put( idx3, hasher3 );
+
+        assertEquals(2, index.count(new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 } })));
+        assertEquals(2, index.count(new CachingHasher(HASH_IDENTITY, new long[][] { { 13, 0 } })));
+        assertEquals(1, index.count(new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 13, 0 } })));
+        assertEquals(0, index.count(new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 30, 0 } })));
+
+        index.remove(idx3);
+        assertEquals(1, index.count(new CachingHasher(HASH_IDENTITY, new long[][] { { 13, 0 } })));
+    }
+
+    @ContractTest
+    public void existsTest() {
+        CachingHasher hasher1 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 13, 0 } });
+        CachingHasher search = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 } });
+        assertFalse(index.exists(search));
+
+        UUID idx1 = index.create(hasher1);
+        index.put( idx1, hasher1 );
+        assertTrue(index.exists(search));
+        assertTrue(index.exists(hasher1));
+        assertFalse(index.exists(new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 14, 0 } })));
+
+        index.remove(idx1);
+        assertFalse(index.exists(search));
+    }
+
+    @ContractTest
+    public void cursorTest() {
+        CachingHasher hasher1 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 13, 0 } });
+        CachingHasher hasher2 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 14, 0 } });
+        CachingHasher hasher3 = new CachingHasher(HASH_IDENTITY, new long[][] { { 30, 0 }, { 13, 0 } });
+        CachingHasher hasher4 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 30, 0 } });
+        index.put( index.create(hasher1), hasher1 );
+        index.put( index.create(hasher2), hasher2 );
+        index.put( index.create(hasher3), hasher3 );
+        index.put( index.create(hasher4), hasher4 );
+
+        CachingHasher search = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 } });
+        Set<UUID> expected = index.search(search);
+        assertEquals(3, expected.size());
+
+        Index.Cursor<UUID> cursor = index.cursor(search, 0);
+        assertEquals(-1, cursor.getPosition());
+        Set<UUID> result = new HashSet<UUID>();
+        result.add(cursor.next());
+        UUID second = cursor.next();
+        result.add(second);
+
+        // resume at the second result
+        long position = cursor.getPosition();
+        cursor = index.cursor(search, position);
+        assertEquals(-1, cursor.getPosition());
+        assertEquals(second, cursor.next());
+        assertEquals(position, cursor.getPosition());
+        cursor.forEachRemaining(result::add);
+        assertEquals(expected, result);
+
+        assertEquals(expected, StreamSupport.stream(index.spliterator(search), true).collect(Collectors.toSet()));
+    }
+
+    @ContractTest
+    public void searchAllTest() {
+        CachingHasher hasher1 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 13, 0 } });
+        CachingHasher hasher2 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 14, 0 } });
+        CachingHasher hasher3 = new CachingHasher(HASH_IDENTITY, new long[][] { { 30, 0 }, { 13, 0 } });
+        index.put( index.create(hasher1), hasher1 );
+        index.put( index.create(hasher2), hasher2 );
+        index.put( index.create(hasher3), hasher3 );
+
+        List<Hasher> queries = Arrays.asList(
+                new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 } }),
+                new CachingHasher(HASH_IDENTITY, new long[][] { { 13, 0 } }),
+                new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 30, 0 } }),
+                new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 } }));
+        List<Set<UUID>> result = index.searchAll(queries);
+        assertEquals(queries.size(), result.size());
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(index.search(queries.get(i)), result.get(i));
+        }
+        assertEquals(2, result.get(0).size());
+        assertEquals(0, result.get(2).size());
+    }
+
+    @ContractTest
+    public void putAllTest() {
+        CachingHasher first = new CachingHasher(HASH_IDENTITY, new long[][] { { 0, 0 }, { 3, 0 } });
+        index.put( index.create(first), first );
+        Map<UUID, Hasher> entries = new LinkedHashMap<UUID, Hasher>();
+        for (int i = 0; i < 100; i++) {
+            CachingHasher hasher = new CachingHasher(HASH_IDENTITY, new long[][] { { i, 0 }, { i * 7 + 3, 0 } });
+            entries.put(index.create(hasher), hasher);
+        }
+        index.putAll(entries);
+        assertEquals(entries.size(), index.getFilterCount());
+        entries.forEach((idx, hasher) -> {
+            assertEquals(Optional.of(idx), index.get(hasher));
+            assertTrue(index.search(hasher).contains(idx));
+        });
+
+        List<UUID> removed = entries.keySet().stream().limit(50).collect(Collectors.toList());
+        index.removeAll(removed);
+        assertEquals(entries.size() - removed.size(), index.getFilterCount());
+        entries.forEach((idx, hasher) -> assertEquals(!removed.contains(idx), index.get(hasher).isPresent()));
+    }
+
+    @ContractTest
+    public void searchPlanTest() {
+        CachingHasher hasher1 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 13, 0 } });
+        CachingHasher hasher2 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 14, 0 } });
+        CachingHasher hasher3 = new CachingHasher(HASH_IDENTITY, new long[][] { { 30, 0 }, { 13, 0 } });
+        CachingHasher hasher4 = new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 }, { 30, 0 } });
+        UUID idx1 = index.create(hasher1);
+        index.put( idx1, hasher1 );
+        UUID idx2 = index.create(hasher2);
+        index.put( idx2, hasher2 );
+        UUID idx3 = index.create(hasher3);
+        index.put( idx3, hasher3 );
+        UUID idx4 = index.create(hasher4);
+        index.put( idx4, hasher4 );
+
+        Query a = Query.match(new CachingHasher(HASH_IDENTITY, new long[][] { { 29, 0 } }));
+        Query b = Query.match(new CachingHasher(HASH_IDENTITY, new long[][] { { 13, 0 } }));
+        Query c = Query.match(new CachingHasher(HASH_IDENTITY, new long[][] { { 14, 0 } }));
+        Query d = Query.match(new CachingHasher(HASH_IDENTITY, new long[][] { { 30, 0 } }));
+
+        // 29 and (13 or 14)
+        assertEquals(new HashSet<UUID>(Arrays.asList(idx1, idx2)), index.search(a.and(b.or(c)).compile(SHAPE)));
+        // 29 and not 30
+        assertEquals(new HashSet<UUID>(Arrays.asList(idx1, idx2)), index.search(a.andNot(d).compile(SHAPE)));
+        // not 29
+        assertEquals(new HashSet<UUID>(Arrays.asList(idx3)), index.search(Query.not(a).compile(SHAPE)));
+        // 13 or 30
+        assertEquals(new HashSet<UUID>(Arrays.asList(idx1, idx3, idx4)), index.search(b.or(d).compile(SHAPE)));
+        // 29 and 13 and not 14
+        assertEquals(new HashSet<UUID>(Arrays.asList(idx1)), index.search(Query.and(a, b, Query.not(c)).compile(SHAPE)));
+
+        index.remove(idx3);
+        assertTrue(index.search(Query.not(a).compile(SHAPE)).isEmpty());
+    }
+
 }
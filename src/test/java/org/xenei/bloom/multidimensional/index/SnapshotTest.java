@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Function;
+
+import org.apache.commons.collections4.bloomfilter.BloomFilter;
+import org.apache.commons.collections4.bloomfilter.hasher.CachingHasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Shape;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.Container.Index;
+import org.xenei.bloom.multidimensional.ContainerImplTest;
+
+public class SnapshotTest {
+    private static final Shape SHAPE = IndexTest.SHAPE;
+
+    private interface Loader {
+        Index<UUID> load(Function<BloomFilter,UUID> func, Shape shape, InputStream in) throws IOException;
+    }
+
+    private Hasher hasher(int i) {
+        return new CachingHasher(SHAPE.getHashFunctionIdentity(), new long[][] { { i, 0 }, { i * 7 + 3, 0 } });
+    }
+
+    private byte[] save(Index<UUID> index) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.save(out);
+        return out.toByteArray();
+    }
+
+    private void roundTrip(Index<UUID> index, Loader loader) throws IOException {
+        Hasher[] hashers = new Hasher[20];
+        for (int i = 0; i < hashers.length; i++) {
+            hashers[i] = hasher(i);
+            index.put(index.create(hashers[i]), hashers[i]);
+        }
+        index.remove(index.create(hashers[0]));
+
+        Index<UUID> loaded = loader.load(new ContainerImplTest.Func(), SHAPE, new ByteArrayInputStream(save(index)));
+        assertEquals(index.getFilterCount(), loaded.getFilterCount());
+        assertEquals(index.getAll(), loaded.getAll());
+        assertFalse(loaded.get(hashers[0]).isPresent());
+        for (int i = 1; i < hashers.length; i++) {
+            UUID id = index.create(hashers[i]);
+            assertEquals(Optional.of(id), loaded.get(hashers[i]));
+            assertEquals(index.search(hashers[i]), loaded.search(hashers[i]));
+        }
+    }
+
+    @Test
+    public void linearTest() throws IOException {
+        roundTrip(new Linear<UUID>(new ContainerImplTest.Func(), SHAPE), Linear::load);
+    }
+
+    @Test
+    public void blockedSetIndexTest() throws IOException {
+        roundTrip(new BlockedSetIndex<UUID>(new ContainerImplTest.Func(), SHAPE), BlockedSetIndex::load);
+    }
+
+    @Test
+    public void flatBloofiTest() throws IOException {
+        roundTrip(new FlatBloofi<UUID>(new ContainerImplTest.Func(), SHAPE), FlatBloofi::load);
+    }
+
+    @Test
+    public void rangePackedTest() throws IOException {
+        roundTrip(new RangePacked<UUID>(new ContainerImplTest.Func(), SHAPE), RangePacked::load);
+    }
+
+    @Test
+    public void trie4Test() throws IOException {
+        roundTrip(new Trie4<UUID>(new ContainerImplTest.Func(), SHAPE), Trie4::load);
+    }
+
+    @Test
+    public void trie8Test() throws IOException {
+        roundTrip(new Trie8<UUID>(new ContainerImplTest.Func(), SHAPE), Trie8::load);
+    }
+
+    @Test
+    public void corruptTest() throws IOException {
+        Index<UUID> index = new Linear<UUID>(new ContainerImplTest.Func(), SHAPE);
+        index.put(index.create(hasher(1)), hasher(1));
+        byte[] buffer = save(index);
+        buffer[buffer.length - 5] ^= 0x01;
+        try {
+            Linear.load(new ContainerImplTest.Func(), SHAPE, new ByteArrayInputStream(buffer));
+            fail("Should have thrown IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void corruptBodyTest() throws IOException {
+        Index<UUID> index = new Linear<UUID>(new ContainerImplTest.Func(), SHAPE);
+        // the body starts after the header, the empty body is a count and the checksum.
+        int body = save(index).length - Integer.BYTES - Long.BYTES;
+        index.put(index.create(hasher(1)), hasher(1));
+        index.put(index.create(hasher(2)), hasher(2));
+        byte[] buffer = save(index);
+
+        byte[] corrupt = buffer.clone();
+        corrupt[buffer.length - 5] ^= 0x01;
+        Index<UUID> loaded = new Linear<UUID>(new ContainerImplTest.Func(), SHAPE);
+        try {
+            Snapshot.loadFilters(new ByteArrayInputStream(corrupt), Linear.class.getSimpleName(), loaded);
+            fail("Should have thrown IOException");
+        } catch (IOException expected) {
+            assertEquals(0, loaded.getFilterCount());
+        }
+
+        for (int length : new int[] { -1, Integer.MAX_VALUE }) {
+            corrupt = buffer.clone();
+            ByteBuffer.wrap(corrupt).putInt(body + Integer.BYTES, length);
+            try {
+                Linear.load(new ContainerImplTest.Func(), SHAPE, new ByteArrayInputStream(corrupt));
+                fail("Should have thrown IOException");
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void typeMismatchTest() throws IOException {
+        byte[] buffer = save(new Linear<UUID>(new ContainerImplTest.Func(), SHAPE));
+        Trie4.load(new ContainerImplTest.Func(), SHAPE, new ByteArrayInputStream(buffer));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shapeMismatchTest() throws IOException {
+        byte[] buffer = save(new Linear<UUID>(new ContainerImplTest.Func(), SHAPE));
+        Shape other = new Shape(SHAPE.getHashFunctionIdentity(), 1000, 1.0 / 10000);
+        Linear.load(new ContainerImplTest.Func(), other, new ByteArrayInputStream(buffer));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.query;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.collections4.bloomfilter.hasher.CachingHasher;
+import org.apache.commons.collections4.bloomfilter.hasher.Hasher;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.index.IndexTest;
+
+public class PlanTest {
+
+    private Query match(long... bits) {
+        long[][] buffers = new long[bits.length][];
+        for (int i = 0; i < bits.length; i++) {
+            buffers[i] = new long[] { bits[i], 0 };
+        }
+        Hasher hasher = new CachingHasher(IndexTest.SHAPE.getHashFunctionIdentity(), buffers);
+        return Query.match(hasher);
+    }
+
+    @Test
+    public void mergeMatchesTest() {
+        Plan plan = Query.and(match(1), match(2), match(3)).compile(IndexTest.SHAPE);
+        assertEquals(1, plan.size());
+        assertEquals("[1, 2, 3]", plan.toString());
+    }
+
+    @Test
+    public void commonSubexpressionTest() {
+        Query bc = match(2).or(match(3));
+        Plan plan = Query.or(match(1).and(bc), Query.not(bc), match(3).or(match(2))).compile(IndexTest.SHAPE);
+        // [2], [3], OR([2],[3]), AND([1], OR), NOT(OR), [1], root OR
+        assertEquals(7, plan.size());
+    }
+
+    @Test
+    public void doubleNegationTest() {
+        Plan plan = Query.not(Query.not(match(1))).compile(IndexTest.SHAPE);
+        assertEquals(1, plan.size());
+        assertEquals("[1]", plan.toString());
+    }
+
+    @Test
+    public void flattenTest() {
+        Plan plan = Query.or(match(1), Query.or(match(2), match(1))).compile(IndexTest.SHAPE);
+        assertEquals("OR([1], [2])", plan.toString());
+    }
+}
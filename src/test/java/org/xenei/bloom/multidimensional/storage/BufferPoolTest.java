@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquireReleaseTest() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer buffer = pool.acquire(100);
+        assertEquals(128, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer again = pool.acquire(128);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(64, pool.acquire(1).capacity());
+        assertEquals(2, pool.getAllocationCount());
+
+        BufferPool direct = new BufferPool(true, 1);
+        assertTrue(direct.acquire(10).isDirect());
+        // heap buffers are not pooled in a direct pool
+        direct.release(ByteBuffer.allocate(64));
+        direct.acquire(64);
+        assertEquals(2, direct.getAllocationCount());
+    }
+
+    @Test
+    public void serializeTest() {
+        BufferPool pool = new BufferPool();
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        ByteBuffer buffer = pool.serialize(MappedStorageTest.BUFFER_STRING_SERDE, value);
+        assertEquals(600, buffer.remaining());
+        assertEquals(value, MappedStorageTest.BUFFER_STRING_SERDE.deserialize(buffer));
+        pool.release(buffer);
+
+        byte[] bytes = MappedStorageTest.BUFFER_STRING_SERDE.serialize(value);
+        assertEquals(600, bytes.length);
+        assertEquals(value, MappedStorageTest.BUFFER_STRING_SERDE.deserialize(bytes));
+    }
+
+    @Test
+    public void adapterTest() {
+        BufferSerde<String> serde = BufferSerde.of(MappedStorageTest.STRING_SERDE);
+        assertSame(MappedStorageTest.BUFFER_STRING_SERDE, BufferSerde.of(MappedStorageTest.BUFFER_STRING_SERDE));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer.put((byte) 0);
+        serde.serialize("value", buffer);
+        buffer.flip();
+        buffer.get();
+        assertEquals("value", serde.deserialize(buffer));
+        assertEquals(1, buffer.position());
+    }
+}
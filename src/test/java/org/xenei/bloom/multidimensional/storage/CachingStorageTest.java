@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class CachingStorageTest {
+
+    private void cacheTest(boolean holdObjects) throws Exception {
+        InMemory<String, Integer> delegate = new InMemory<String, Integer>();
+        CachingStorage<String, Integer> storage = new CachingStorage<String, Integer>(delegate,
+                MappedStorageTest.STRING_SERDE, 1024, holdObjects);
+        storage.put(1, "one");
+        assertEquals(Collections.singletonList("one"), storage.get(1));
+        assertEquals(Collections.singletonList("one"), storage.get(1));
+        assertEquals(1, storage.getHitCount());
+        assertEquals(1, storage.getMissCount());
+
+        // changes through the cache invalidate it
+        storage.put(1, "uno");
+        assertEquals(Arrays.asList("one", "uno"), storage.get(1));
+        storage.remove(1, "one");
+        assertEquals(Collections.singletonList("uno"), storage.get(1));
+        assertEquals(3, storage.getMissCount());
+
+        // missing indexes are cached too
+        assertTrue(storage.get(2).isEmpty());
+        assertTrue(storage.get(2).isEmpty());
+        assertEquals(2, storage.getHitCount());
+
+        delegate.put(3, "three");
+        Map<Integer, Collection<String>> all = storage.getAll(Arrays.asList(1, 3));
+        assertEquals(Collections.singletonList("uno"), all.get(1));
+        assertEquals(Collections.singletonList("three"), all.get(3));
+        all = storage.getAllAsync(Arrays.asList(1, 3)).get();
+        assertEquals(Collections.singletonList("three"), all.get(3));
+        assertEquals(5, storage.getHitCount());
+        assertEquals(5, storage.getMissCount());
+    }
+
+    @Test
+    public void objectTest() throws Exception {
+        cacheTest(true);
+    }
+
+    @Test
+    public void bytesTest() throws Exception {
+        cacheTest(false);
+    }
+
+    @Test
+    public void concurrentPutTest() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        InMemory<String, Integer> delegate = new InMemory<String, Integer>() {
+            @Override
+            public Collection<String> get(Integer idx) {
+                Collection<String> values = new ArrayList<String>(super.get(idx));
+                if (reading.getCount() > 0) {
+                    // a slow read that returns the values from before the put.
+                    reading.countDown();
+                    try {
+                        written.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return values;
+            }
+        };
+        CachingStorage<String, Integer> storage = new CachingStorage<String, Integer>(delegate,
+                MappedStorageTest.STRING_SERDE, 1024, true);
+        storage.put(1, "one");
+        CompletableFuture<Collection<String>> read = CompletableFuture.supplyAsync(() -> storage.get(1));
+        reading.await();
+        storage.put(1, "uno");
+        written.countDown();
+        assertEquals(Collections.singletonList("one"), read.get());
+        // the stale read was not cached.
+        assertEquals(Arrays.asList("one", "uno"), storage.get(1));
+        assertEquals(Arrays.asList("one", "uno"), storage.get(1));
+        assertEquals(1, storage.getHitCount());
+    }
+
+    @Test
+    public void evictionTest() {
+        InMemory<String, Integer> delegate = new InMemory<String, Integer>();
+        CachingStorage<String, Integer> storage = new CachingStorage<String, Integer>(delegate,
+                MappedStorageTest.STRING_SERDE, 400, true);
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        for (int i = 0; i < 4; i++) {
+            delegate.put(i, value);
+            storage.get(i);
+        }
+        // each entry costs its 100 bytes plus the entry cost.
+        assertEquals(2, storage.size());
+        assertEquals(2, storage.getEvictionCount());
+        assertTrue(storage.getCost() <= 400);
+        storage.get(3);
+        assertEquals(1, storage.getHitCount());
+        storage.get(0);
+        assertEquals(5, storage.getMissCount());
+        assertEquals(3, storage.getEvictionCount());
+
+        // values larger than the cache are not cached.
+        chars = new char[400];
+        Arrays.fill(chars, 'y');
+        delegate.put(5, new String(chars));
+        storage.get(5);
+        assertEquals(2, storage.size());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+public class CompactInMemoryTest {
+
+    private void putGetRemove(Storage<String, Integer> storage) {
+        storage.put(1, "one");
+        storage.put(2, "two");
+        storage.put(2, "deux");
+        storage.put(2, "zwei");
+        assertEquals(Collections.singletonList("one"), storage.get(1));
+        assertEquals(Arrays.asList("two", "deux", "zwei"), storage.get(2));
+        assertTrue(storage.get(3).isEmpty());
+
+        boolean[] result = storage.remove(2, "deux");
+        assertTrue(result[Storage.REMOVED]);
+        assertFalse(result[Storage.EMPTY]);
+        assertEquals(Arrays.asList("two", "zwei"), storage.get(2));
+        result = storage.remove(2, "deux");
+        assertFalse(result[Storage.REMOVED]);
+        assertFalse(result[Storage.EMPTY]);
+        storage.remove(2, "two");
+        assertEquals(Collections.singletonList("zwei"), storage.get(2));
+        result = storage.remove(2, "zwei");
+        assertTrue(result[Storage.REMOVED]);
+        assertTrue(result[Storage.EMPTY]);
+        assertTrue(storage.get(2).isEmpty());
+        result = storage.remove(3, "three");
+        assertFalse(result[Storage.REMOVED]);
+        assertTrue(result[Storage.EMPTY]);
+
+        Map<Integer, List<String>> listed = new HashMap<Integer, List<String>>();
+        storage.put(4, "four");
+        storage.put(4, "vier");
+        storage.list().forEachRemaining(e -> listed.put(e.getKey(), e.getValue()));
+        assertEquals(2, listed.size());
+        assertEquals(Collections.singletonList("one"), listed.get(1));
+        assertEquals(Arrays.asList("four", "vier"), listed.get(4));
+    }
+
+    @Test
+    public void objectTest() {
+        putGetRemove(new CompactInMemory<String, Integer>());
+    }
+
+    @Test
+    public void arenaTest() {
+        putGetRemove(new CompactInMemory<String, Integer>(MappedStorageTest.STRING_SERDE));
+    }
+
+    @Test
+    public void arenaCompactionTest() {
+        CompactInMemory<String, Integer> storage = new CompactInMemory<String, Integer>(
+                MappedStorageTest.STRING_SERDE, 64);
+        for (int i = 0; i < 100; i++) {
+            storage.put(i, "value " + i);
+        }
+        storage.put(99, "a value much longer than the sixty four byte page size of this arena");
+        long size = storage.getArenaSize();
+        for (int i = 0; i < 90; i++) {
+            storage.remove(i, "value " + i);
+        }
+        assertTrue(storage.getArenaSize() < size);
+        for (int i = 90; i < 99; i++) {
+            assertEquals(Collections.singletonList("value " + i), storage.get(i));
+        }
+        assertEquals(Arrays.asList("value 99", "a value much longer than the sixty four byte page size of this arena"),
+                storage.get(99));
+    }
+
+    @Test
+    public void bufferSerdeTest() {
+        putGetRemove(new CompactInMemory<String, Integer>(MappedStorageTest.BUFFER_STRING_SERDE));
+        CompactInMemory<String, Integer> storage = new CompactInMemory<String, Integer>(
+                MappedStorageTest.BUFFER_STRING_SERDE, 64);
+        for (int i = 0; i < 100; i++) {
+            storage.put(i, "value " + i);
+        }
+        storage.put(99, "a value longer than the page size");
+        for (int i = 0; i < 90; i++) {
+            storage.remove(i, "value " + i);
+        }
+        for (int i = 90; i < 99; i++) {
+            assertEquals(Collections.singletonList("value " + i), storage.get(i));
+        }
+        assertEquals(Arrays.asList("value 99", "a value longer than the page size"), storage.get(99));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressingSerdeTest {
+
+    private static String document(int i) {
+        return String.format("{\"id\":%s,\"type\":\"sensor-reading\",\"location\":{\"site\":\"north-%s\","
+                + "\"building\":\"warehouse\"},\"status\":\"%s\",\"tags\":[\"temperature\",\"humidity\"]}", i, i % 7,
+                i % 3 == 0 ? "active" : "inactive");
+    }
+
+    private static List<String> documents(int from, int to) {
+        List<String> result = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            result.add(document(i));
+        }
+        return result;
+    }
+
+    @Test
+    public void dictionaryTest() {
+        byte[] dictionary = CompressingSerde.train(MappedStorageTest.STRING_SERDE, documents(0, 50),
+                CompressingSerde.DEFAULT_DICTIONARY_SIZE);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= CompressingSerde.DEFAULT_DICTIONARY_SIZE);
+
+        CompressingSerde<String> trained = new CompressingSerde<String>(MappedStorageTest.STRING_SERDE, dictionary);
+        CompressingSerde<String> plain = new CompressingSerde<String>(MappedStorageTest.STRING_SERDE, new byte[0]);
+        for (String doc : documents(100, 200)) {
+            assertEquals(doc, trained.deserialize(trained.serialize(doc)));
+            assertEquals(doc, plain.deserialize(plain.serialize(doc)));
+        }
+        assertTrue(trained.getCompressionRatio() > 3.0);
+        assertTrue(trained.getCompressionRatio() > plain.getCompressionRatio());
+        assertTrue(trained.getCompressNanos() > 0);
+        assertTrue(trained.getDecompressNanos() > 0);
+        assertEquals(trained.getRawBytes(), plain.getRawBytes());
+    }
+
+    @Test
+    public void incompressibleTest() {
+        CompressingSerde<String> serde = new CompressingSerde<String>(MappedStorageTest.STRING_SERDE, new byte[0]);
+        byte[] random = new byte[64];
+        new Random(1).nextBytes(random);
+        String value = new String(random, StandardCharsets.ISO_8859_1);
+        CompressingSerde<String> latin = new CompressingSerde<String>(new Serde<String>() {
+            @Override
+            public byte[] serialize(String data) {
+                return data.getBytes(StandardCharsets.ISO_8859_1);
+            }
+
+            @Override
+            public String deserialize(byte[] data) {
+                return new String(data, StandardCharsets.ISO_8859_1);
+            }
+        }, new byte[0]);
+        byte[] bytes = latin.serialize(value);
+        assertEquals(65, bytes.length);
+        assertEquals(value, latin.deserialize(bytes));
+        assertEquals("", serde.deserialize(serde.serialize("")));
+    }
+
+    @Test
+    public void storageTest() {
+        CompressingSerde<String> serde = new CompressingSerde<String>(MappedStorageTest.STRING_SERDE,
+                CompressingSerde.train(MappedStorageTest.STRING_SERDE, documents(0, 20), 1024));
+        CompactInMemory<String, Integer> storage = new CompactInMemory<String, Integer>(serde);
+        for (String doc : documents(0, 10)) {
+            storage.put(1, doc);
+        }
+        assertEquals(documents(0, 10), storage.get(1));
+        storage.remove(1, document(3));
+        assertEquals(9, storage.get(1).size());
+        assertTrue(storage.getArenaSize() < serde.getRawBytes());
+    }
+}
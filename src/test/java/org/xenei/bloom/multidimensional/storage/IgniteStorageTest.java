@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.Ignition;
+import org.apache.ignite.cache.affinity.rendezvous.RendezvousAffinityFunction;
+import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.IgniteClient;
+import org.apache.ignite.configuration.ClientConfiguration;
+import org.apache.ignite.configuration.IgniteConfiguration;
+import org.apache.ignite.spi.discovery.tcp.TcpDiscoverySpi;
+import org.apache.ignite.spi.discovery.tcp.ipfinder.vm.TcpDiscoveryVmIpFinder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+/**
+ * Runs IgniteStorage against an embedded local Ignite node.
+ */
+public class IgniteStorageTest {
+    private static Ignite ignite;
+    private static IgniteClient client;
+    private IgniteStorage<String> storage;
+
+    @BeforeClass
+    public static void startIgnite() throws Exception {
+        TcpDiscoveryVmIpFinder ipFinder = new TcpDiscoveryVmIpFinder();
+        ipFinder.setAddresses(Collections.singletonList("127.0.0.1:47500..47509"));
+        IgniteConfiguration config = new IgniteConfiguration();
+        config.setIgniteInstanceName(IgniteStorageTest.class.getSimpleName());
+        config.setLocalHost("127.0.0.1");
+        config.setWorkDirectory(Files.createTempDirectory("ignite").toString());
+        config.setDiscoverySpi(new TcpDiscoverySpi().setIpFinder(ipFinder));
+        ignite = Ignition.start(config);
+        client = Ignition.startClient(new ClientConfiguration().setAddresses("127.0.0.1:10800"));
+    }
+
+    @AfterClass
+    public static void stopIgnite() throws Exception {
+        client.close();
+        ignite.close();
+    }
+
+    @Before
+    public void setup() {
+        storage = new IgniteStorage<String>(client, MappedStorageTest.STRING_SERDE);
+        client.cache(IgniteStorage.CACHE_NAME).clear();
+    }
+
+    @Test
+    public void putGetRemoveTest() {
+        UUID one = UUID.randomUUID();
+        UUID two = UUID.randomUUID();
+        storage.put(one, "one");
+        storage.put(two, "two");
+        storage.putAll(two, Arrays.asList("deux", "zwei"));
+        assertEquals(Arrays.asList("one"), storage.get(one));
+        assertEquals(Arrays.asList("two", "deux", "zwei"), storage.get(two));
+
+        boolean[] result = storage.remove(two, "deux");
+        assertTrue(result[Storage.REMOVED]);
+        assertFalse(result[Storage.EMPTY]);
+        result = storage.remove(two, "deux");
+        assertFalse(result[Storage.REMOVED]);
+        assertEquals(Arrays.asList("two", "zwei"), storage.get(two));
+
+        result = storage.remove(one, "one");
+        assertTrue(result[Storage.REMOVED]);
+        assertTrue(result[Storage.EMPTY]);
+        assertTrue(storage.get(one).isEmpty());
+        result = storage.remove(one, "one");
+        assertFalse(result[Storage.REMOVED]);
+        assertTrue(result[Storage.EMPTY]);
+
+        Map<UUID, List<String>> listed = new HashMap<UUID, List<String>>();
+        storage.list().forEachRemaining(e -> listed.put(e.getKey(), e.getValue()));
+        assertEquals(1, listed.size());
+        assertEquals(Arrays.asList("two", "zwei"), listed.get(two));
+    }
+
+    @Test
+    public void duplicateValueTest() {
+        UUID idx = UUID.randomUUID();
+        storage.put(idx, "one");
+        storage.put(idx, "two");
+        storage.put(idx, "one");
+        assertEquals(Arrays.asList("one", "one", "two"), storage.get(idx));
+        assertTrue(storage.remove(idx, "one")[Storage.REMOVED]);
+        assertEquals(Arrays.asList("one", "two"), storage.get(idx));
+        assertTrue(storage.remove(idx, "one")[Storage.REMOVED]);
+        assertFalse(storage.remove(idx, "one")[Storage.REMOVED]);
+        boolean[] result = storage.remove(idx, "two");
+        assertTrue(result[Storage.REMOVED]);
+        assertTrue(result[Storage.EMPTY]);
+        assertFalse(storage.list().hasNext());
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        UUID one = UUID.randomUUID();
+        UUID two = UUID.randomUUID();
+        UUID three = UUID.randomUUID();
+        Map<UUID, List<String>> values = new HashMap<UUID, List<String>>();
+        values.put(one, Arrays.asList("one"));
+        values.put(two, Arrays.asList("two", "deux"));
+        storage.putAll(values);
+        values.clear();
+        values.put(two, Arrays.asList("zwei"));
+        storage.putAllAsync(values).get();
+
+        Map<UUID, Collection<String>> found = storage.getAll(Arrays.asList(one, two, three));
+        assertEquals(2, found.size());
+        assertEquals(Arrays.asList("one"), found.get(one));
+        assertEquals(Arrays.asList("two", "deux", "zwei"), found.get(two));
+        assertEquals(found, storage.getAllAsync(Arrays.asList(one, two, three)).get());
+    }
+
+    @Test
+    public void concurrentPutTest() throws Exception {
+        UUID idx = UUID.randomUUID();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 25; i++) {
+                        storage.put(idx, thread + ":" + i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(100, storage.get(idx).size());
+    }
+
+    @Test
+    public void scanTest() throws Exception {
+        Map<UUID, List<String>> values = new HashMap<UUID, List<String>>();
+        for (int i = 0; i < 200; i++) {
+            values.put(UUID.randomUUID(), Arrays.asList("a" + i, "b" + i));
+        }
+        storage.putAll(values);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Map<UUID, List<String>> scanned = new ConcurrentHashMap<UUID, List<String>>();
+            storage.scan(16, executor, batch -> {
+                assertTrue(batch.size() <= 16);
+                scanned.putAll(batch);
+            });
+            assertEquals(values, scanned);
+
+            Set<UUID> ids = ConcurrentHashMap.newKeySet();
+            storage.scanIds(16, executor, ids::addAll);
+            assertEquals(values.keySet(), ids);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void partitionsTest() {
+        assertEquals(RendezvousAffinityFunction.DFLT_PARTITION_COUNT, storage.getPartitions());
+        assertEquals(RendezvousAffinityFunction.DFLT_PARTITION_COUNT, new IgniteStorage<String>(client,
+                MappedStorageTest.STRING_SERDE, RendezvousAffinityFunction.DFLT_PARTITION_COUNT).getPartitions());
+        for (int partitions : new int[] { 1, RendezvousAffinityFunction.DFLT_PARTITION_COUNT / 2,
+                RendezvousAffinityFunction.DFLT_PARTITION_COUNT + 1 }) {
+            try {
+                new IgniteStorage<String>(client, MappedStorageTest.STRING_SERDE, partitions);
+                fail("Should have thrown IllegalArgumentException for " + partitions);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void migrateTest() {
+        UUID one = UUID.randomUUID();
+        UUID two = UUID.randomUUID();
+        ClientCache<UUID, List<byte[]>> legacy = client.getOrCreateCache(IgniteStorage.LEGACY_CACHE_NAME);
+        legacy.put(one, new ArrayList<byte[]>(Arrays.asList(MappedStorageTest.STRING_SERDE.serialize("one"))));
+        legacy.put(two, new ArrayList<byte[]>(Arrays.asList(MappedStorageTest.STRING_SERDE.serialize("two"),
+                MappedStorageTest.STRING_SERDE.serialize("deux"), MappedStorageTest.STRING_SERDE.serialize("two"))));
+        storage.put(two, "zwei");
+
+        storage = new IgniteStorage<String>(client, MappedStorageTest.STRING_SERDE);
+        assertFalse(client.cacheNames().contains(IgniteStorage.LEGACY_CACHE_NAME));
+        assertEquals(Arrays.asList("one"), storage.get(one));
+        assertEquals(Arrays.asList("zwei", "two", "two", "deux"), storage.get(two));
+        assertTrue(storage.remove(two, "two")[Storage.REMOVED]);
+        assertEquals(Arrays.asList("zwei", "two", "deux"), storage.get(two));
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+public class MappedStorageTest {
+    static final Serde<String> STRING_SERDE = new Serde<String>() {
+        @Override
+        public byte[] serialize(String data) {
+            return data.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
+    static final Serde<Integer> INT_SERDE = new Serde<Integer>() {
+        @Override
+        public byte[] serialize(Integer data) {
+            return ByteBuffer.allocate(Integer.BYTES).putInt(data).array();
+        }
+
+        @Override
+        public Integer deserialize(byte[] data) {
+            return ByteBuffer.wrap(data).getInt();
+        }
+    };
+
+    /**
+     * A serde that writes the characters of the string directly to the buffer.
+     */
+    static final BufferSerde<String> BUFFER_STRING_SERDE = new BufferSerde<String>() {
+        @Override
+        public void serialize(String data, ByteBuffer buffer) {
+            for (int i = 0; i < data.length(); i++) {
+                buffer.putChar(data.charAt(i));
+            }
+        }
+
+        @Override
+        public String deserialize(ByteBuffer buffer) {
+            return buffer.duplicate().asCharBuffer().toString();
+        }
+    };
+
+    static final BufferSerde<Integer> BUFFER_INT_SERDE = new BufferSerde<Integer>() {
+        @Override
+        public void serialize(Integer data, ByteBuffer buffer) {
+            buffer.putInt(data);
+        }
+
+        @Override
+        public Integer deserialize(ByteBuffer buffer) {
+            return buffer.getInt(buffer.position());
+        }
+    };
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("storage");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private MappedStorage<String, Integer> open() throws IOException {
+        return new MappedStorage<String, Integer>(dir, INT_SERDE, STRING_SERDE, 256, null);
+    }
+
+    @Test
+    public void putGetRemoveTest() throws IOException {
+        try (MappedStorage<String, Integer> storage = open()) {
+            storage.put(1, "one");
+            storage.put(2, "two");
+            storage.put(2, "deux");
+            assertEquals(Arrays.asList("one"), storage.get(1));
+            assertEquals(Arrays.asList("two", "deux"), storage.get(2));
+            assertTrue(storage.get(3).isEmpty());
+
+            boolean[] result = storage.remove(2, "two");
+            assertTrue(result[Storage.REMOVED]);
+            assertFalse(result[Storage.EMPTY]);
+            result = storage.remove(2, "two");
+            assertFalse(result[Storage.REMOVED]);
+            result = storage.remove(2, "deux");
+            assertTrue(result[Storage.REMOVED]);
+            assertTrue(result[Storage.EMPTY]);
+            assertTrue(storage.get(2).isEmpty());
+        }
+    }
+
+    @Test
+    public void reopenTest() throws IOException {
+        try (MappedStorage<String, Integer> storage = open()) {
+            for (int i = 0; i < 50; i++) {
+                storage.put(i, "value " + i);
+            }
+            storage.remove(7, "value 7");
+            assertTrue(storage.getSegmentCount() > 1);
+        }
+        try (MappedStorage<String, Integer> storage = open()) {
+            assertTrue(storage.get(7).isEmpty());
+            for (int i = 0; i < 50; i++) {
+                if (i != 7) {
+                    assertEquals(Collections.singletonList("value " + i), storage.get(i));
+                }
+            }
+            storage.put(50, "value 50");
+            assertEquals(Collections.singletonList("value 50"), storage.get(50));
+        }
+    }
+
+    @Test
+    public void compactTest() throws IOException {
+        try (MappedStorage<String, Integer> storage = open()) {
+            for (int i = 0; i < 50; i++) {
+                storage.put(i, "value " + i);
+            }
+            int segments = storage.getSegmentCount();
+            for (int i = 0; i < 40; i++) {
+                storage.remove(i, "value " + i);
+            }
+            storage.compact();
+            assertTrue(storage.getSegmentCount() < segments);
+            for (int i = 40; i < 50; i++) {
+                assertEquals(Collections.singletonList("value " + i), storage.get(i));
+            }
+        }
+        try (MappedStorage<String, Integer> storage = open()) {
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i < 40 ? Collections.emptyList() : Collections.singletonList("value " + i),
+                        storage.get(i));
+            }
+        }
+    }
+
+    private Map<Path, byte[]> readSegments() throws IOException {
+        Map<Path, byte[]> result = new HashMap<Path, byte[]>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                result.put(file, Files.readAllBytes(file));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fills a storage and removes enough records for the first segments to be compacted.
+     */
+    private void fillForCompaction(MappedStorage<String, Integer> storage) {
+        for (int i = 0; i < 50; i++) {
+            storage.put(i, "value " + i);
+        }
+        for (int i = 0; i < 40; i++) {
+            if (i % 3 != 0) {
+                storage.remove(i, "value " + i);
+            }
+        }
+    }
+
+    private void assertCompactedValues(MappedStorage<String, Integer> storage, int entries) {
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i < 40 && i % 3 != 0 ? Collections.emptyList() : Collections.singletonList("value " + i),
+                    storage.get(i));
+        }
+        Iterator<Map.Entry<Integer, List<String>>> iter = storage.list();
+        int count = 0;
+        while (iter.hasNext()) {
+            assertEquals(1, iter.next().getValue().size());
+            count++;
+        }
+        assertEquals(entries, count);
+    }
+
+    /**
+     * Marks the dead compaction markers live again, as a crash before they were marked
+     * dead would leave them.  The first marker for a source is the begin marker and the
+     * second is the commit marker.
+     */
+    private void reviveMarkers() throws IOException {
+        Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        List<Path> files = new ArrayList<Path>(readSegments().keySet());
+        Collections.sort(files);
+        for (Path file : files) {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            int position = 0;
+            while (position < bytes.limit() - 9 && bytes.get(position) != 0) {
+                if (bytes.get(position) == 2 && bytes.getInt(position + 1) == 0) {
+                    int count = seen.merge(bytes.getInt(position + 9), 1, Integer::sum);
+                    bytes.put(position, (byte) (count == 1 ? 3 : 4));
+                }
+                position += 9 + bytes.getInt(position + 1) + bytes.getInt(position + 5);
+            }
+            Files.write(file, bytes.array());
+        }
+    }
+
+    /**
+     * Compacts and then writes back the segment files that compaction deleted, as a crash
+     * before the deletes reached the disk would leave them.
+     * @return the number of segments after compaction.
+     */
+    private int compactAndRestore() throws IOException {
+        Map<Path, byte[]> before;
+        int segments;
+        try (MappedStorage<String, Integer> storage = open()) {
+            fillForCompaction(storage);
+            storage.sync();
+            before = readSegments();
+            storage.compact();
+            segments = storage.getSegmentCount();
+            assertTrue(segments < before.size());
+        }
+        for (Map.Entry<Path, byte[]> entry : before.entrySet()) {
+            if (!Files.exists(entry.getKey())) {
+                Files.write(entry.getKey(), entry.getValue());
+            }
+        }
+        reviveMarkers();
+        return segments;
+    }
+
+    @Test
+    public void compactCrashBeforeDeleteTest() throws IOException {
+        int segments = compactAndRestore();
+        try (MappedStorage<String, Integer> storage = open()) {
+            assertEquals(segments, storage.getSegmentCount());
+            assertCompactedValues(storage, 24);
+        }
+    }
+
+    @Test
+    public void compactCrashBeforeCommitTest() throws IOException {
+        compactAndRestore();
+        // remove the commit markers, as a crash before they reached the disk would.
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+                int position = 0;
+                while (position < bytes.limit() - 9 && bytes.get(position) != 0) {
+                    if (bytes.get(position) == 4) {
+                        bytes.put(position, (byte) 0);
+                        break;
+                    }
+                    position += 9 + bytes.getInt(position + 1) + bytes.getInt(position + 5);
+                }
+                Files.write(file, bytes.array());
+            }
+        }
+        try (MappedStorage<String, Integer> storage = open()) {
+            assertCompactedValues(storage, 24);
+            storage.put(50, "value 50");
+            storage.compact();
+            assertCompactedValues(storage, 25);
+        }
+        try (MappedStorage<String, Integer> storage = open()) {
+            assertCompactedValues(storage, 25);
+            assertEquals(Collections.singletonList("value 50"), storage.get(50));
+        }
+    }
+
+    @Test
+    public void compactCommitCompactedTest() throws IOException {
+        try (MappedStorage<String, Integer> storage = open()) {
+            // records of 16 bytes, segment 0 holds 0 to 15 and segment 1 holds 16 to 30 leaving
+            // room for the begin marker but not the copies.
+            for (int i = 0; i < 31; i++) {
+                storage.put(i, String.format("a%02d", i));
+            }
+            for (int i = 0; i < 13; i++) {
+                storage.remove(i, String.format("a%02d", i));
+            }
+            storage.compact();
+            // segment 0 is gone and the copies and commit marker are in segment 2.
+            assertEquals(2, storage.getSegmentCount());
+            for (int i = 31; i < 48; i++) {
+                storage.put(i, String.format("a%02d", i));
+            }
+            for (int i = 31; i < 40; i++) {
+                storage.remove(i, String.format("a%02d", i));
+            }
+            storage.compact();
+            assertEquals(2, storage.getSegmentCount());
+        }
+        try (MappedStorage<String, Integer> storage = open()) {
+            for (int i = 0; i < 48; i++) {
+                assertEquals(i < 13 || (i >= 31 && i < 40) ? Collections.emptyList()
+                        : Collections.singletonList(String.format("a%02d", i)), storage.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void backgroundCompactionFailureTest() throws IOException {
+        AtomicBoolean failing = new AtomicBoolean();
+        Serde<Integer> idSerde = new Serde<Integer>() {
+            @Override
+            public byte[] serialize(Integer data) {
+                return INT_SERDE.serialize(data);
+            }
+
+            @Override
+            public Integer deserialize(byte[] data) {
+                if (failing.get()) {
+                    throw new IllegalStateException("Compaction failure");
+                }
+                return INT_SERDE.deserialize(data);
+            }
+        };
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        try (MappedStorage<String, Integer> storage = new MappedStorage<String, Integer>(dir, idSerde, STRING_SERDE,
+                256, tasks::add)) {
+            fillForCompaction(storage);
+            assertFalse(tasks.isEmpty());
+            failing.set(true);
+            tasks.forEach(Runnable::run);
+            failing.set(false);
+            try {
+                storage.get(45);
+                fail("Should have thrown IllegalStateException");
+            } catch (IllegalStateException expected) {
+                // expected
+            }
+            assertCompactedValues(storage, 24);
+        }
+        try (MappedStorage<String, Integer> storage = open()) {
+            assertCompactedValues(storage, 24);
+        }
+    }
+
+    @Test
+    public void listTest() throws IOException {
+        try (MappedStorage<String, Integer> storage = open()) {
+            for (int i = 0; i < 20; i++) {
+                storage.put(i % 10, "value " + i);
+            }
+            storage.remove(3, "value 3");
+            Map<Integer, List<String>> listed = new HashMap<Integer, List<String>>();
+            Iterator<Map.Entry<Integer, List<String>>> iter = storage.list();
+            iter.forEachRemaining(e -> assertEquals(null, listed.put(e.getKey(), e.getValue())));
+            assertEquals(10, listed.size());
+            assertEquals(Arrays.asList("value 13"), listed.get(3));
+            assertEquals(Arrays.asList("value 4", "value 14"), listed.get(4));
+        }
+    }
+
+    @Test
+    public void bufferSerdeTest() throws IOException {
+        try (MappedStorage<String, Integer> storage = new MappedStorage<String, Integer>(dir, BUFFER_INT_SERDE,
+                BUFFER_STRING_SERDE, 256, null)) {
+            for (int i = 0; i < 50; i++) {
+                storage.put(i, "value " + i);
+            }
+            assertTrue(storage.getSegmentCount() > 1);
+            for (int i = 0; i < 40; i++) {
+                assertTrue(storage.remove(i, "value " + i)[Storage.REMOVED]);
+            }
+            storage.compact();
+        }
+        try (MappedStorage<String, Integer> storage = new MappedStorage<String, Integer>(dir, BUFFER_INT_SERDE,
+                BUFFER_STRING_SERDE, 256, null)) {
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i < 40 ? Collections.emptyList() : Collections.singletonList("value " + i),
+                        storage.get(i));
+            }
+            char[] chars = new char[200];
+            Arrays.fill(chars, 'x');
+            try {
+                storage.put(99, new String(chars));
+                fail("Should have thrown IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+            storage.put(99, "value 99");
+            assertEquals(Collections.singletonList("value 99"), storage.get(99));
+        }
+    }
+}
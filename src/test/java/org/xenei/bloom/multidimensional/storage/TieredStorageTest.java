@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.bloom.multidimensional.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.xenei.bloom.multidimensional.Container.Storage;
+
+public class TieredStorageTest {
+
+    @Test
+    public void demotionTest() throws IOException {
+        InMemory<String, Integer> cold = new InMemory<String, Integer>();
+        try (TieredStorage<String, Integer> storage = new TieredStorage<String, Integer>(
+                new InMemory<String, Integer>(), cold, 4, null)) {
+            storage.put(0, "zero");
+            for (int i = 1; i < 10; i++) {
+                storage.put(i, "value " + i);
+                // index 0 is used often so it stays hot.
+                storage.get(0);
+                storage.get(0);
+            }
+            assertTrue(storage.getHotSize() <= 4);
+            assertEquals(10, storage.getHotSize() + storage.getColdSize());
+            assertEquals(18, storage.getHotHitCount());
+            assertEquals(Collections.singletonList("zero"), storage.get(0));
+            assertTrue(cold.get(0).isEmpty());
+            assertTrue(storage.getDemotionCount() > 0);
+
+            // a cold index is promoted on access.
+            assertEquals(Collections.singletonList("value 1"), cold.get(1));
+            storage.put(1, "one");
+            assertEquals(Arrays.asList("value 1", "one"), storage.get(1));
+            assertEquals(Collections.singletonList("value 2"), storage.get(2));
+            assertEquals(1, storage.getColdHitCount());
+            assertTrue(storage.get(20).isEmpty());
+            assertEquals(1, storage.getMissCount());
+            assertEquals(1.0 / 22, storage.getColdHitRatio(), 0.0001);
+
+            boolean[] result = storage.remove(3, "value 3");
+            assertTrue(result[Storage.REMOVED]);
+            assertTrue(result[Storage.EMPTY]);
+            assertEquals(9, storage.getHotSize() + storage.getColdSize());
+
+            Map<Integer, List<String>> listed = new HashMap<Integer, List<String>>();
+            storage.list().forEachRemaining(e -> listed.put(e.getKey(), e.getValue()));
+            assertEquals(9, listed.size());
+        }
+    }
+
+    @Test
+    public void listDuringDemotionTest() throws IOException {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        try (TieredStorage<String, Integer> storage = new TieredStorage<String, Integer>(
+                new InMemory<String, Integer>(), new InMemory<String, Integer>(), 4, tasks::add)) {
+            for (int i = 0; i < 6; i++) {
+                storage.put(i, "value " + i);
+            }
+            assertFalse(tasks.isEmpty());
+            Map<Integer, List<String>> listed = new HashMap<Integer, List<String>>();
+            Iterator<Map.Entry<Integer, List<String>>> iter = storage.list();
+            Map.Entry<Integer, List<String>> first = iter.next();
+            listed.put(first.getKey(), first.getValue());
+            // the demotion removes hot entries while the list is being read.
+            tasks.forEach(Runnable::run);
+            assertTrue(storage.getDemotionCount() > 0);
+            iter.forEachRemaining(e -> listed.put(e.getKey(), e.getValue()));
+            assertEquals(6, listed.size());
+            for (int i = 0; i < 6; i++) {
+                assertEquals(Collections.singletonList("value " + i), listed.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void writeBackTest() throws IOException {
+        InMemory<String, Integer> cold = new InMemory<String, Integer>();
+        cold.put(1, "value 1");
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        TieredStorage<String, Integer> storage = new TieredStorage<String, Integer>(new InMemory<String, Integer>(),
+                cold, 2, tasks::add);
+        // reading promotes without removing the cold copy.
+        assertEquals(Collections.singletonList("value 1"), storage.get(1));
+        assertEquals(Collections.singletonList("value 1"), cold.get(1));
+        assertEquals(0, storage.getDirtySize());
+
+        storage.put(2, "value 2");
+        assertTrue(cold.get(2).isEmpty());
+        assertEquals(1, storage.getDirtySize());
+        storage.flush();
+        assertEquals(Collections.singletonList("value 2"), cold.get(2));
+        assertEquals(0, storage.getDirtySize());
+
+        storage.put(1, "one");
+        storage.remove(1, "value 1");
+        assertEquals(Collections.singletonList("value 1"), cold.get(1));
+        storage.flush();
+        assertEquals(Collections.singletonList("one"), cold.get(1));
+
+        // a demotion submitted before close does not run after it.
+        storage.put(3, "value 3");
+        assertFalse(tasks.isEmpty());
+        storage.close();
+        assertEquals(Collections.singletonList("value 3"), cold.get(3));
+        long demotions = storage.getDemotionCount();
+        tasks.forEach(Runnable::run);
+        assertEquals(demotions, storage.getDemotionCount());
+        assertEquals(Collections.singletonList("value 3"), cold.get(3));
+    }
+
+    @Test
+    public void persistenceTest() throws IOException {
+        Path dir = Files.createTempDirectory("tiered");
+        try {
+            try (TieredStorage<String, Integer> storage = new TieredStorage<String, Integer>(dir,
+                    MappedStorageTest.INT_SERDE, MappedStorageTest.STRING_SERDE, 8)) {
+                for (int i = 0; i < 20; i++) {
+                    storage.put(i, "value " + i);
+                }
+            }
+            try (TieredStorage<String, Integer> storage = new TieredStorage<String, Integer>(dir,
+                    MappedStorageTest.INT_SERDE, MappedStorageTest.STRING_SERDE, 8)) {
+                assertEquals(20, storage.getColdSize());
+                for (int i = 0; i < 20; i++) {
+                    assertEquals(Collections.singletonList("value " + i), storage.get(i));
+                }
+                assertEquals(20, storage.getColdHitCount());
+            }
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+}